@@ -0,0 +1,46 @@
+package com.avsystem.scex
+package benchmarks
+
+import com.avsystem.scex.compiler._
+import com.avsystem.scex.compiler.presentation.{CachingScexPresentationCompiler, ScexPresentationCompiler}
+import com.avsystem.scex.presentation.SymbolAttributes
+import com.avsystem.scex.util.{PredefinedAccessSpecs, SimpleContext}
+import com.avsystem.scex.validation.{SymbolValidator, SyntaxValidator}
+
+/**
+ * [[DefaultScexCompiler]] which exposes compilation of already prepared expression definitions,
+ * so that cache lookups can be measured without preprocessing.
+ */
+class BenchmarkScexCompiler(settings: ScexSettings) extends DefaultScexCompiler(settings) {
+  def compiledExpression(exprDef: ExpressionDef): Expression[SimpleContext[Unit], Any] =
+    getCompiledExpression[SimpleContext[Unit], Any](exprDef)
+}
+
+/**
+ * Same as [[DefaultScexCompiler]] but without [[WeakReferenceWrappingScexCompiler]], used as a baseline for
+ * measuring the overhead of weak expression wrappers.
+ */
+class NonWrappingScexCompiler(val settings: ScexSettings)
+  extends ScexCompiler
+  with ScexPresentationCompiler
+  with ClassfileReusingScexCompiler
+  with TieredScexCompiler
+  with TemplateOptimizingScexCompiler
+  with CachingScexCompiler
+  with CachingScexPresentationCompiler
+
+object BenchmarkCompilers {
+  def settings(): ScexSettings = {
+    val settings = new ScexSettings
+    settings.noGetterAdapters.value = true
+    settings
+  }
+
+  def profile(name: String): ExpressionProfile =
+    new ExpressionProfile(name,
+      SyntaxValidator.SimpleExpressions,
+      SymbolValidator(PredefinedAccessSpecs.basicOperations),
+      SymbolAttributes(Nil),
+      "",
+      NamedSource(name, "def utilValue = 42"))
+}
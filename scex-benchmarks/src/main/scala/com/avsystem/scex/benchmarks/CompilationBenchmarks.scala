@@ -0,0 +1,47 @@
+package com.avsystem.scex
+package benchmarks
+
+import java.util.concurrent.TimeUnit
+
+import com.avsystem.scex.compiler.ExpressionDef
+import com.avsystem.scex.util.SimpleContext
+import org.openjdk.jmh.annotations._
+
+/**
+ * Measures latency of expression compilation: cold (every invocation compiles a new expression with scalac),
+ * warm (expression is already compiled and goes through the whole public API) and bare expression cache hit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+class CompilationBenchmarks {
+  private var compiler: BenchmarkScexCompiler = _
+  private var profile: ExpressionProfile = _
+  private var exprDef: ExpressionDef = _
+  private var counter = 0
+
+  @Setup
+  def setup(): Unit = {
+    compiler = new BenchmarkScexCompiler(BenchmarkCompilers.settings())
+    profile = BenchmarkCompilers.profile("compilation")
+    exprDef = compiler.expressionDef[SimpleContext[Unit], Any](profile, "utilValue + 1", template = false)
+    compiler.compiledExpression(exprDef)
+  }
+
+  @Benchmark
+  def coldCompilation(): Expression[SimpleContext[Unit], Int] = {
+    counter += 1
+    compiler.getCompiledExpression[SimpleContext[Unit], Int](profile, s"utilValue - $counter", template = false)
+  }
+
+  @Benchmark
+  def warmCompilation(): Expression[SimpleContext[Unit], Any] =
+    compiler.getCompiledExpression[SimpleContext[Unit], Any](profile, "utilValue + 1", template = false)
+
+  @Benchmark
+  def cacheHit(): Expression[SimpleContext[Unit], Any] =
+    compiler.compiledExpression(exprDef)
+}
@@ -0,0 +1,35 @@
+package com.avsystem.scex
+package benchmarks
+
+import java.util.concurrent.TimeUnit
+
+import com.avsystem.scex.compiler.presentation.ScexPresentationCompiler.Completion
+import com.avsystem.scex.util.SimpleContext
+import org.openjdk.jmh.annotations._
+
+/**
+ * Measures type completion computed by the presentation compiler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+class CompletionBenchmarks {
+  private var completer: BenchmarkScexCompiler#Completer = _
+  private var counter = 0
+
+  @Setup
+  def setup(): Unit = {
+    val compiler = new BenchmarkScexCompiler(BenchmarkCompilers.settings())
+    completer = compiler.getCompleter[SimpleContext[Unit], String](BenchmarkCompilers.profile("completion"), template = false)
+  }
+
+  @Benchmark
+  def typeCompletion(): Completion = {
+    // different expression every time so that completion caches are bypassed
+    counter += 1
+    completer.getTypeCompletion(s""""$counter".""", counter.toString.length + 2)
+  }
+}
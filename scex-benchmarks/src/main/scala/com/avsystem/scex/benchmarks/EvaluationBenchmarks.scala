@@ -0,0 +1,56 @@
+package com.avsystem.scex
+package benchmarks
+
+import java.util.concurrent.TimeUnit
+
+import com.avsystem.scex.compiler.ScexCompiler
+import com.avsystem.scex.util.SimpleContext
+import org.openjdk.jmh.annotations._
+
+/**
+ * Measures per-call cost of evaluating already compiled expressions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+class EvaluationBenchmarks {
+  private val context = SimpleContext(())
+
+  private var optimizedTemplate: Expression[SimpleContext[Unit], String] = _
+  private var literal: Expression[SimpleContext[Unit], Int] = _
+  private var wrapped: Expression[SimpleContext[Unit], Int] = _
+  private var unwrapped: Expression[SimpleContext[Unit], Int] = _
+
+  private def compile[T](compiler: ScexCompiler, expression: String, template: Boolean)
+    (implicit tts: com.avsystem.commons.misc.TypeString[T]): Expression[SimpleContext[Unit], T] =
+    compiler.getCompiledExpression[SimpleContext[Unit], T](
+      BenchmarkCompilers.profile("evaluation"), expression, template = template)
+
+  @Setup
+  def setup(): Unit = {
+    val compiler = new BenchmarkScexCompiler(BenchmarkCompilers.settings())
+    optimizedTemplate = compile[String](compiler, "value: ${utilValue} and ${utilValue + 1}!", template = true)
+    literal = compile[Int](compiler, "42", template = true)
+    wrapped = compile[Int](compiler, "utilValue * 2", template = false)
+    unwrapped = compile[Int](new NonWrappingScexCompiler(BenchmarkCompilers.settings()), "utilValue * 2", template = false)
+  }
+
+  @Benchmark
+  def optimizedTemplateExpression(): String =
+    optimizedTemplate(context)
+
+  @Benchmark
+  def literalExpression(): Int =
+    literal(context)
+
+  @Benchmark
+  def weakWrappedExpression(): Int =
+    wrapped(context)
+
+  @Benchmark
+  def unwrappedExpression(): Int =
+    unwrapped(context)
+}
@@ -0,0 +1,70 @@
+package com.avsystem.scex
+package benchmarks
+
+import java.util.concurrent.TimeUnit
+
+import com.avsystem.scex.compiler.xmlfriendly.XmlFriendlyTranslator
+import com.avsystem.scex.parsing.{CombinatorTemplateParser, PString, TemplateParser}
+import org.openjdk.jmh.annotations._
+
+/**
+ * Measures parsers used during preprocessing of expressions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+class ParsingBenchmarks {
+  private val xmlFriendlyExpression =
+    "${'value' + 1 lt 5 and not empty} some 'quoted' text ${if (a gt b) 'yes' else 'no'} and ${\"double\" + 'single'}"
+
+  private val template =
+    "Device ${device.id} reported ${stats.count} events (${stats.errors} errors) at ${time} in ${location.name}"
+
+  // templates from TemplateParserTest
+  private val templateCorpus = Array(
+    "", "stuff", "$$", "abc$$def", "$ident", "${ident}", "abc${ident}", "${ident}def", "abc${ident}def",
+    "${\"}\"}", "${{{}{{}}{}}}}", "${\"\"}a\na$$b\nb${\"\"}", template
+  )
+
+  @Setup
+  def setup(): Unit =
+    templateCorpus.foreach { tpl =>
+      val result = TemplateParser.parseTemplate(tpl)
+      val expected = CombinatorTemplateParser.parseTemplate(tpl)
+      if (result.successful != expected.successful || result.successful && result.get != expected.get)
+        throw new IllegalStateException(s"Template parsers disagree on $tpl: $result vs $expected")
+    }
+
+  @Benchmark
+  def xmlFriendlyTranslation(): PString =
+    XmlFriendlyTranslator.translate(xmlFriendlyExpression, template = true)
+
+  @Benchmark
+  def templateParsing(): TemplateParser.ParseResult[(List[String], List[PString])] =
+    TemplateParser.parseTemplate(template)
+
+  @Benchmark
+  def combinatorTemplateParsing(): CombinatorTemplateParser.ParseResult[(List[String], List[PString])] =
+    CombinatorTemplateParser.parseTemplate(template)
+
+  @Benchmark
+  def templateCorpusParsing(): Int = {
+    var successes = 0
+    templateCorpus.foreach { tpl =>
+      if (TemplateParser.parseTemplate(tpl).successful) successes += 1
+    }
+    successes
+  }
+
+  @Benchmark
+  def combinatorTemplateCorpusParsing(): Int = {
+    var successes = 0
+    templateCorpus.foreach { tpl =>
+      if (CombinatorTemplateParser.parseTemplate(tpl).successful) successes += 1
+    }
+    successes
+  }
+}
@@ -0,0 +1,23 @@
+package com.avsystem.scex
+
+/**
+  * Receives results of batch evaluation of an expression (see [[Expression.applyAll]]), along with indices of contexts
+  * for which they were evaluated.
+  */
+trait EvaluationSink[-T] {
+  def result(index: Int, value: T): Unit
+
+  def failure(index: Int, exception: EvaluationException): Unit
+}
+
+object EvaluationSink {
+  /**
+    * Sink which stores results and failures in given arrays, at indices of their contexts. Every index is written
+    * only once, so it may be used for parallel evaluation.
+    */
+  def intoArrays[T](results: Array[T], failures: Array[EvaluationException]): EvaluationSink[T] =
+    new EvaluationSink[T] {
+      def result(index: Int, value: T): Unit = results(index) = value
+      def failure(index: Int, exception: EvaluationException): Unit = failures(index) = exception
+    }
+}
@@ -1,5 +1,7 @@
 package com.avsystem.scex
 
+import java.util.concurrent.{ForkJoinPool, ForkJoinTask, RecursiveAction}
+
 import com.avsystem.scex.compiler.SourceInfo
 
 import scala.runtime.AbstractFunction1
@@ -10,6 +12,57 @@ trait Expression[-C <: ExpressionContext[_, _], +T] extends (C => T) {
   def apply(c: C): T
 
   def debugInfo: ExpressionDebugInfo
+
+  /**
+    * Evaluates this expression for contexts with indices from `from` (inclusive) to `until` (exclusive) and passes
+    * every result or evaluation failure to the sink. Failure doesn't interrupt evaluation of remaining contexts.
+    * Expressions which wrap other expressions override this in order to resolve the wrapped one once per batch
+    * instead of once per context.
+    */
+  def applyAll(contexts: IndexedSeq[C], from: Int, until: Int, sink: EvaluationSink[T]): Unit = {
+    var i = from
+    while (i < until) {
+      var failed = false
+      val result = try apply(contexts(i)) catch {
+        case e: EvaluationException =>
+          failed = true
+          sink.failure(i, e)
+          null.asInstanceOf[T]
+      }
+      if (!failed) {
+        sink.result(i, result)
+      }
+      i += 1
+    }
+  }
+
+  def applyAll(contexts: IndexedSeq[C], sink: EvaluationSink[T]): Unit =
+    applyAll(contexts, 0, contexts.size, sink)
+
+  /**
+    * Like [[applyAll]], but splits contexts into chunks of at most `chunkSize` contexts, which are evaluated in
+    * parallel in given fork/join pool. Returns when all contexts are evaluated. The sink may be called concurrently
+    * for different indices.
+    */
+  def applyAllParallel(contexts: IndexedSeq[C], sink: EvaluationSink[T], pool: ForkJoinPool, chunkSize: Int): Unit = {
+    require(chunkSize > 0, "chunk size must be positive")
+    pool.invoke(new Expression.BatchTask(this, contexts, 0, contexts.size, sink, chunkSize))
+  }
+}
+
+object Expression {
+  private final class BatchTask[C <: ExpressionContext[_, _], T](expr: Expression[C, T], contexts: IndexedSeq[C],
+    from: Int, until: Int, sink: EvaluationSink[T], chunkSize: Int) extends RecursiveAction {
+
+    def compute(): Unit =
+      if (until - from <= chunkSize) expr.applyAll(contexts, from, until, sink)
+      else {
+        val mid = (from + until) >>> 1
+        ForkJoinTask.invokeAll(
+          new BatchTask(expr, contexts, from, mid, sink, chunkSize),
+          new BatchTask(expr, contexts, mid, until, sink, chunkSize))
+      }
+  }
 }
 
 abstract class AbstractExpression[-C <: ExpressionContext[_, _], +T]
@@ -0,0 +1,122 @@
+package com.avsystem.scex
+
+import scala.util.control.NonFatal
+
+/**
+  * Expressions with primitive result type, which may be evaluated without boxing the result. Compiled expressions
+  * with `Boolean`, `Int`, `Long` or `Double` result type implement the corresponding trait.
+  */
+trait BooleanExpression[-C <: ExpressionContext[_, _]] extends Expression[C, Boolean] {
+  @throws(classOf[EvaluationException])
+  def applyBoolean(c: C): Boolean
+}
+
+trait IntExpression[-C <: ExpressionContext[_, _]] extends Expression[C, Int] {
+  @throws(classOf[EvaluationException])
+  def applyInt(c: C): Int
+}
+
+trait LongExpression[-C <: ExpressionContext[_, _]] extends Expression[C, Long] {
+  @throws(classOf[EvaluationException])
+  def applyLong(c: C): Long
+}
+
+trait DoubleExpression[-C <: ExpressionContext[_, _]] extends Expression[C, Double] {
+  @throws(classOf[EvaluationException])
+  def applyDouble(c: C): Double
+}
+
+/**
+  * Expressions which don't implement a primitive expression trait (e.g. optimized literals) are wrapped into
+  * adapters which unbox their results.
+  */
+object BooleanExpression {
+  def of[C <: ExpressionContext[_, _]](expr: Expression[C, Boolean]): BooleanExpression[C] = expr match {
+    case expr: BooleanExpression[C@unchecked] => expr
+    case _ => new PrimitiveAdapter(expr) with BooleanExpression[C] {
+      def applyBoolean(c: C): Boolean = expr.apply(c)
+    }
+  }
+}
+
+object IntExpression {
+  def of[C <: ExpressionContext[_, _]](expr: Expression[C, Int]): IntExpression[C] = expr match {
+    case expr: IntExpression[C@unchecked] => expr
+    case _ => new PrimitiveAdapter(expr) with IntExpression[C] {
+      def applyInt(c: C): Int = expr.apply(c)
+    }
+  }
+}
+
+object LongExpression {
+  def of[C <: ExpressionContext[_, _]](expr: Expression[C, Long]): LongExpression[C] = expr match {
+    case expr: LongExpression[C@unchecked] => expr
+    case _ => new PrimitiveAdapter(expr) with LongExpression[C] {
+      def applyLong(c: C): Long = expr.apply(c)
+    }
+  }
+}
+
+object DoubleExpression {
+  def of[C <: ExpressionContext[_, _]](expr: Expression[C, Double]): DoubleExpression[C] = expr match {
+    case expr: DoubleExpression[C@unchecked] => expr
+    case _ => new PrimitiveAdapter(expr) with DoubleExpression[C] {
+      def applyDouble(c: C): Double = expr.apply(c)
+    }
+  }
+}
+
+private abstract class PrimitiveAdapter[-C <: ExpressionContext[_, _], +T](expr: Expression[C, T])
+  extends Expression[C, T] {
+
+  def apply(c: C): T = expr.apply(c)
+
+  def debugInfo: ExpressionDebugInfo = expr.debugInfo
+
+  override def applyAll(contexts: IndexedSeq[C], from: Int, until: Int, sink: EvaluationSink[T]): Unit =
+    expr.applyAll(contexts, from, until, sink)
+}
+
+/**
+  * Base classes of compiled expressions with primitive result type. Generated code implements `eval` redeclared
+  * with primitive result, so that it can be called without boxing.
+  */
+abstract class AbstractBooleanExpression[-C <: ExpressionContext[_, _]]
+  extends AbstractExpression[C, Boolean] with BooleanExpression[C] {
+
+  def eval(context: C): Boolean
+
+  final def applyBoolean(context: C): Boolean = try eval(context) catch {
+    case NonFatal(cause) => throw new EvaluationException(cause)
+  }
+}
+
+abstract class AbstractIntExpression[-C <: ExpressionContext[_, _]]
+  extends AbstractExpression[C, Int] with IntExpression[C] {
+
+  def eval(context: C): Int
+
+  final def applyInt(context: C): Int = try eval(context) catch {
+    case NonFatal(cause) => throw new EvaluationException(cause)
+  }
+}
+
+abstract class AbstractLongExpression[-C <: ExpressionContext[_, _]]
+  extends AbstractExpression[C, Long] with LongExpression[C] {
+
+  def eval(context: C): Long
+
+  final def applyLong(context: C): Long = try eval(context) catch {
+    case NonFatal(cause) => throw new EvaluationException(cause)
+  }
+}
+
+abstract class AbstractDoubleExpression[-C <: ExpressionContext[_, _]]
+  extends AbstractExpression[C, Double] with DoubleExpression[C] {
+
+  def eval(context: C): Double
+
+  final def applyDouble(context: C): Double = try eval(context) catch {
+    case NonFatal(cause) => throw new EvaluationException(cause)
+  }
+}
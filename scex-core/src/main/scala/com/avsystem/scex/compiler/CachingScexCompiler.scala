@@ -1,29 +1,87 @@
 package com.avsystem.scex
 package compiler
 
+import com.avsystem.commons.jiop.JavaInterop._
 import com.avsystem.scex.compiler.ScexCompiler.CompilationFailedException
 import com.avsystem.scex.parsing.PositionMapping
 import com.avsystem.scex.validation.{SymbolValidator, SyntaxValidator}
-import com.google.common.cache.CacheBuilder
-import com.google.common.util.concurrent.ExecutionError
+import com.google.common.cache.{CacheBuilder, RemovalCause, RemovalListener, Weigher}
 
 import java.time.Duration
-import java.util.concurrent.ExecutionException
+import java.util.concurrent.CompletableFuture
+import scala.reflect.io.AbstractFile
 import scala.util.{Failure, Success, Try}
 
 trait CachingScexCompiler extends ScexCompiler {
 
+  import com.avsystem.scex.compiler.CachingScexCompiler._
   import com.avsystem.scex.util.CommonUtils._
 
+  private val logger = createLogger[CachingScexCompiler]
+
   private val preprocessingCache = CacheBuilder.newBuilder
     .expireAfterAccess(Duration.ofSeconds(settings.expressionExpirationTime.value))
     .maximumSize(settings.expressionCacheSize.value)
+    .removalListener(evictionListener[(String, Boolean), (String, PositionMapping)](PreprocessingCacheName))
     .build[(String, Boolean), (String, PositionMapping)]
 
-  private val expressionCache = CacheBuilder.newBuilder
-    .expireAfterAccess(Duration.ofSeconds(settings.expressionExpirationTime.value))
-    .maximumSize(settings.expressionCacheSize.value)
-    .build[ExpressionDef, Try[RawExpression]]
+  private val expressionCache = {
+    val builder = CacheBuilder.newBuilder
+      .expireAfterAccess(Duration.ofSeconds(settings.expressionExpirationTime.value))
+      .removalListener(expressionRemovalListener)
+    if (settings.expressionCacheWeight.value > 0)
+      builder.maximumWeight(settings.expressionCacheWeight.value)
+        .weigher[ExpressionDef, Try[RawExpression]](new Weigher[ExpressionDef, Try[RawExpression]] {
+          def weigh(exprDef: ExpressionDef, result: Try[RawExpression]): Int = estimatedWeight(exprDef, result)
+        })
+        .build[ExpressionDef, Try[RawExpression]]
+    else
+      builder.maximumSize(settings.expressionCacheSize.value)
+        .build[ExpressionDef, Try[RawExpression]]
+  }
+
+  private def expressionRemovalListener: RemovalListener[ExpressionDef, Try[RawExpression]] = {
+    val eviction = evictionListener[ExpressionDef, Try[RawExpression]](ExpressionCacheName)
+    notification => {
+      eviction.onRemoval(notification)
+      // the same result may be put again, which doesn't drop the reference held by the cache
+      val stillCached = notification.getCause == RemovalCause.REPLACED &&
+        (expressionCache.asMap.get(notification.getKey) eq notification.getValue)
+      if (!stillCached) {
+        releaseGenerationSlot(notification.getValue)
+      }
+    }
+  }
+
+  /**
+   * Every successfully compiled expression packed into an [[ExpressionGeneration]] takes a slot in it, which must
+   * be released exactly once - when the expression is removed from cache or when it never gets into it.
+   */
+  private def releaseGenerationSlot(result: Try[RawExpression]): Unit = result match {
+    case Success(expr: AbstractExpression[_, _]) => expr.getClass.getClassLoader match {
+      case generation: ExpressionGeneration if generation.release(expr.sourceInfo.sourceName) =>
+        CompletableFuture.runAsync(() => migrateSurvivors(generation), compilationExecutor)
+      case _ =>
+    }
+    case _ =>
+  }
+
+  /**
+   * Moves expressions which are still cached out of a dropped generation, so that it can be unloaded. Expressions
+   * which can't be migrated are invalidated and will be compiled again when needed.
+   */
+  private def migrateSurvivors(generation: ExpressionGeneration): Unit = {
+    val survivors = expressionCache.asMap.asScala.iterator.collect {
+      case (exprDef, result@Success(expr)) if expr.getClass.getClassLoader eq generation => (exprDef, result, expr)
+    }.toList
+    survivors.foreach { case (exprDef, result, expr) =>
+      Try(migrateExpression(expr)).toOption.flatten match {
+        case Some(migrated) => expressionCache.asMap.replace(exprDef, result, Success(migrated))
+        case None => expressionCache.asMap.remove(exprDef, result)
+      }
+    }
+    logger.debug(s"Dropped expression generation, migrated ${survivors.size} remaining expressions")
+  }
 
   // holds names of packages to which profiles are compiled
   private val profileCompilationResultsCache =
@@ -43,6 +101,40 @@ trait CachingScexCompiler extends ScexCompiler {
   private val symbolValidatorsCache =
     CacheBuilder.newBuilder.build[String, SymbolValidator]
 
+  /**
+   * Rough estimation of memory taken by cached compilation result: size of expression's bytecode and generated source
+   * code (or source code and messages of compilation errors) plus constant overhead of cache entry and classloader.
+   */
+  private def estimatedWeight(exprDef: ExpressionDef, result: Try[RawExpression]): Int = {
+    def bytecodeSize(file: AbstractFile): Int =
+      if (file.isDirectory) file.iterator.map(bytecodeSize).sum
+      else file.sizeOption.getOrElse(0)
+
+    val resultWeight = result match {
+      case Success(expr: AbstractExpression[_, _]) =>
+        val classLoaderWeight = expr.getClass.getClassLoader match {
+          case generation: ExpressionGeneration =>
+            val pkgDir = generation.synchronized(generation.classfileDirectory.lookupName(expr.sourceInfo.sourceName, directory = true))
+            ClassLoaderOverhead / generation.capacity + Option(pkgDir).fold(0)(bytecodeSize)
+          case classLoader: ScexClassLoader => ClassLoaderOverhead + bytecodeSize(classLoader.classfileDirectory)
+          case _ => 0
+        }
+        2 * expr.sourceInfo.fullCode.length + classLoaderWeight
+      case Success(_) => 0
+      case Failure(CompilationFailedException(source, errors)) =>
+        2 * (source.length + errors.iterator.map(e => e.line.length + e.msg.length).sum)
+      case Failure(_) => 0
+    }
+    EntryOverhead + 2 * (exprDef.expression.length + exprDef.originalExpression.length) + resultWeight
+  }
+
+  /**
+   * Returns estimated memory (in bytes) taken by expressions currently held in expression cache, computed the same
+   * way as weights used for eviction when `-SCEXexpression-cache-weight` is set.
+   */
+  def expressionCacheWeightedSize: Long =
+    expressionCache.asMap.entrySet.iterator.asScala.map(e => estimatedWeight(e.getKey, e.getValue).toLong).sum
+
   // used to avoid unexpected exceptions caching, such as a random NPE thrown during a machine I/O error
   private def invalidateCacheEntry(result: Try[_], invalidate: () => Unit): Unit =
     if (!settings.cacheUnexpectedCompilationExceptions.value)
@@ -51,44 +143,90 @@ trait CachingScexCompiler extends ScexCompiler {
         case Failure(_) => invalidate()
       }
 
+  // values which may require compilation of shared sources are loaded under compiler lock
+  private object LockedLoading extends CacheLoading {
+    def apply[T](load: => T): T = underLock(load)
+  }
+
   override protected def preprocess(expression: String, template: Boolean) =
-    unwrapExecutionException(
-      preprocessingCache.get((expression, template), callable(super.preprocess(expression, template))))
+    cached(metrics, PreprocessingCacheName, preprocessingCache, (expression, template))(super.preprocess(expression, template))
 
-  override protected def compileExpression(exprDef: ExpressionDef) = {
-    val result = unwrapExecutionException(expressionCache.get(exprDef, callable(super.compileExpression(exprDef))))
+  // expressions are compiled without holding the lock, so a reset may invalidate the cache before the result is put
+  private def invalidateIfReset(startGeneration: Int, exprDef: ExpressionDef): Unit =
+    if (resetGeneration != startGeneration) {
+      expressionCache.invalidate(exprDef)
+    }
+
+  private def cachedExpression(exprDef: ExpressionDef): Try[RawExpression] = {
+    val startGeneration = resetGeneration
+    val result = cached(metrics, ExpressionCacheName, expressionCache, exprDef)(super.compileExpression(exprDef))
     invalidateCacheEntry(result, () => expressionCache.invalidate(exprDef))
+    invalidateIfReset(startGeneration, exprDef)
 
     result
   }
 
+  override protected def compileExpression(exprDef: ExpressionDef) =
+    cachedExpression(exprDef)
+
+  override protected def compiledExpressionIfPresent(exprDef: ExpressionDef) =
+    expressionCache.getIfPresent(exprDef) match {
+      case null => super.compiledExpressionIfPresent(exprDef)
+      case result =>
+        metrics.cacheHit(ExpressionCacheName)
+        Some(result)
+    }
+
+  override protected def replaceCompiledExpression(exprDef: ExpressionDef, previous: RawExpression, result: Try[RawExpression]): Unit = {
+    if (expressionCache.asMap.replace(exprDef, Success(previous), result)) {
+      invalidateCacheEntry(result, () => expressionCache.asMap.remove(exprDef, result))
+    }
+    super.replaceCompiledExpression(exprDef, previous, result)
+  }
+
+  override protected def compileExpressions(exprDefs: Seq[ExpressionDef]) = {
+    val missing = exprDefs.filter(expressionCache.getIfPresent(_) == null).distinct
+    val compiled = if (missing.isEmpty) Map.empty[ExpressionDef, Try[RawExpression]] else {
+      val startGeneration = resetGeneration
+      val results = missing zip super.compileExpressions(missing)
+      results.map { case (exprDef, result) =>
+        // the same expression may have been compiled (or still be compiling) by a concurrent single compilation,
+        // whose result has already been returned, so it wins over the batch result
+        val cachedResult = unwrapExecutionException(expressionCache.get(exprDef, callable(result)))
+        if (cachedResult ne result) {
+          releaseGenerationSlot(result)
+        }
+        invalidateCacheEntry(cachedResult, () => expressionCache.invalidate(exprDef))
+        invalidateIfReset(startGeneration, exprDef)
+        (exprDef, cachedResult)
+      }.toMap
+    }
+    exprDefs.map(exprDef => compiled.getOrElse(exprDef, cachedExpression(exprDef)))
+  }
+
   override protected def compileProfileObject(profile: ExpressionProfile) = {
-    val result = unwrapExecutionException(underLock(
-      profileCompilationResultsCache.get(profile, callable(super.compileProfileObject(profile)))))
+    val result = cached(metrics, ProfileCacheName, profileCompilationResultsCache, profile, LockedLoading)(super.compileProfileObject(profile))
     invalidateCacheEntry(result, () => profileCompilationResultsCache.invalidate(profile))
 
     result
   }
 
   override protected def compileExpressionUtils(source: NamedSource) = {
-    val result = unwrapExecutionException(underLock(
-      utilsCompilationResultsCache.get(source.name, callable(super.compileExpressionUtils(source)))))
+    val result = cached(metrics, UtilsCacheName, utilsCompilationResultsCache, source.name, LockedLoading)(super.compileExpressionUtils(source))
     invalidateCacheEntry(result, () => utilsCompilationResultsCache.invalidate(source.name))
 
     result
   }
 
   override protected def compileJavaGetterAdapters(profile: ExpressionProfile, name: String, classes: Seq[Class[_]], full: Boolean) =
-    unwrapExecutionException(underLock(
-      javaGetterAdaptersCache.get((profile.name, name, classes, full), callable(super.compileJavaGetterAdapters(profile, name, classes, full)))))
+    cached(metrics, AdaptersCacheName, javaGetterAdaptersCache, (profile.name, name, classes, full), LockedLoading)(
+      super.compileJavaGetterAdapters(profile, name, classes, full))
 
   override def compileSyntaxValidator(source: NamedSource) =
-    unwrapExecutionException(
-      syntaxValidatorsCache.get(source.name, callable(super.compileSyntaxValidator(source))))
+    cached(metrics, SyntaxValidatorCacheName, syntaxValidatorsCache, source.name)(super.compileSyntaxValidator(source))
 
   override def compileSymbolValidator(source: NamedSource) =
-    unwrapExecutionException(
-      symbolValidatorsCache.get(source.name, callable(super.compileSymbolValidator(source))))
+    cached(metrics, SymbolValidatorCacheName, symbolValidatorsCache, source.name)(super.compileSymbolValidator(source))
 
   override def reset(): Unit = underLock {
     super.reset()
@@ -99,10 +237,20 @@ trait CachingScexCompiler extends ScexCompiler {
     syntaxValidatorsCache.invalidateAll()
     symbolValidatorsCache.invalidateAll()
   }
+}
 
-  private def unwrapExecutionException[T](code: => T) =
-    try code catch {
-      case e: ExecutionException => throw e.getCause
-      case e: ExecutionError => throw e.getCause
-    }
+object CachingScexCompiler {
+  // names of caches reported to ScexMetrics
+  final val PreprocessingCacheName = "preprocessing"
+  final val ExpressionCacheName = "expression"
+  final val ProfileCacheName = "profile"
+  final val UtilsCacheName = "utils"
+  final val AdaptersCacheName = "adapters"
+  final val SyntaxValidatorCacheName = "syntaxValidator"
+  final val SymbolValidatorCacheName = "symbolValidator"
+
+  // approximate size of cache entry, expression definition and expression object itself
+  final val EntryOverhead = 512
+  // approximate metaspace and heap taken by a classloader with its bookkeeping, apart from loaded bytecode
+  final val ClassLoaderOverhead = 8 * 1024
 }
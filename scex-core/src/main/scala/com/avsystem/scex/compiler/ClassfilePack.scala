@@ -0,0 +1,240 @@
+package com.avsystem.scex
+package compiler
+
+import java.io._
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption.{CREATE, READ, WRITE}
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.locks.ReentrantLock
+import java.util.zip.CRC32
+
+import com.avsystem.commons.jiop.JavaInterop._
+import com.avsystem.scex.compiler.ClassfilePack._
+import com.avsystem.scex.util.LoggingUtils
+
+import scala.annotation.tailrec
+
+/**
+ * Append-only archive of compiled expressions, which may be shared by many compilers, also running in different
+ * JVMs, as long as they use the same classfile directory. Every entry contains all the files generated for a single
+ * expression source file (classfiles and signature file) and is identified by the name of that source file, which
+ * contains MD5 hash of its code - the archive is content-addressed.
+ *
+ * Every entry consists of payload length (int), payload and CRC32 of the payload (long). Payload starts with entry
+ * name and expression signature (length and UTF-8 bytes), followed by number of files and path, length and content
+ * of each file. Signature position is recorded in the index, so signatures may be read without reading (and
+ * checksumming) the files. Entries are appended with a single
+ * write while holding an exclusive lock on the lock file, so concurrent writers never interleave. Readers build
+ * the index by scanning entry headers and stop at an incomplete entry, which may only be a leftover of a crashed
+ * writer and is truncated by the next one. When the same name is written more than once, the last entry wins.
+ */
+private[compiler] final class ClassfilePack(packFile: File, lockFile: File) extends Closeable with LoggingUtils {
+
+  private val logger = createLogger[ClassfilePack]
+
+  private val channel = FileChannel.open(packFile.toPath, CREATE, READ, WRITE)
+  private val lockChannel = FileChannel.open(lockFile.toPath, CREATE, READ, WRITE)
+  // file locks are held on behalf of the whole JVM, threads (and compilers) within the JVM need additional locking
+  private val jvmLock = jvmLocks.computeIfAbsent(lockFile.getCanonicalPath, _ => new ReentrantLock)
+
+  private val index = new ConcurrentHashMap[String, IndexEntry]
+  // guarded by this
+  private var indexedUntil = 0L
+
+  withFileLock(synchronized {
+    if (!hasValidHeader) {
+      logger.info(s"Initializing classfile pack $packFile")
+      channel.truncate(0)
+      writeFully(ByteBuffer.allocate(HeaderLength).putLong(Magic).flip(), 0)
+    }
+  })
+  refresh()
+
+  private def hasValidHeader: Boolean =
+    channel.size >= HeaderLength && {
+      val header = ByteBuffer.allocate(HeaderLength)
+      readFully(header, 0)
+      header.flip().getLong == Magic
+    }
+
+  private def readFully(buffer: ByteBuffer, position: Long): Unit = {
+    var pos = position
+    while (buffer.hasRemaining) {
+      val read = channel.read(buffer, pos)
+      if (read < 0) throw new EOFException(s"Unexpected end of $packFile")
+      pos += read
+    }
+  }
+
+  private def writeFully(buffer: ByteBuffer, position: Long): Unit = {
+    var pos = position
+    while (buffer.hasRemaining) {
+      pos += channel.write(buffer, pos)
+    }
+  }
+
+  private def withFileLock[T](code: => T): T = {
+    jvmLock.lock()
+    try {
+      val fileLock = lockChannel.lock()
+      try code finally fileLock.release()
+    } finally {
+      jvmLock.unlock()
+    }
+  }
+
+  /**
+   * Indexes entries appended (possibly by other processes) since last refresh.
+   */
+  private def refresh(): Unit = synchronized {
+    val size = channel.size
+    if (indexedUntil == 0 && size >= HeaderLength) {
+      indexedUntil = HeaderLength
+    }
+
+    @tailrec def indexFrom(position: Long): Long =
+      if (position + EntryHeaderLength > size) position
+      else {
+        val header = ByteBuffer.allocate(EntryHeaderLength)
+        readFully(header, position)
+        header.flip()
+        val payloadLength = header.getInt
+        val nameLength = header.getShort & 0xFFFF
+        val entryEnd = position + 4 + payloadLength + 8
+        if (payloadLength < 2 + nameLength + 4 || entryEnd > size) position
+        else {
+          val nameBuffer = ByteBuffer.allocate(2 + nameLength + 4)
+          readFully(nameBuffer, position + 4)
+          val input = new DataInputStream(new ByteArrayInputStream(nameBuffer.array))
+          val name = input.readUTF()
+          val signatureLength = input.readInt()
+          val signaturePosition = position + 4 + nameBuffer.capacity
+          if (signatureLength < 0 || signaturePosition + signatureLength > entryEnd) position
+          else {
+            index.put(name, IndexEntry(position + 4, payloadLength, signaturePosition, signatureLength))
+            indexFrom(entryEnd)
+          }
+        }
+      }
+
+    if (indexedUntil > 0) {
+      indexedUntil = indexFrom(indexedUntil)
+    }
+  }
+
+  private def readEntry(name: String, entry: IndexEntry): Option[Entry] = {
+    val buffer = ByteBuffer.allocate(entry.length + 8)
+    readFully(buffer, entry.position)
+    buffer.flip()
+    val payload = new Array[Byte](entry.length)
+    buffer.get(payload)
+    val crc = new CRC32
+    crc.update(payload)
+    if (crc.getValue != buffer.getLong) {
+      logger.warn(s"Entry $name in classfile pack $packFile is corrupted")
+      None
+    } else {
+      val input = new DataInputStream(new ByteArrayInputStream(payload))
+      input.readUTF()
+      val signature = new Array[Byte](input.readInt())
+      input.readFully(signature)
+      val files = Vector.fill(input.readInt()) {
+        val path = input.readUTF()
+        val content = new Array[Byte](input.readInt())
+        input.readFully(content)
+        (path, content)
+      }
+      Some(Entry(new String(signature, UTF_8), files))
+    }
+  }
+
+  private def indexEntry(name: String): Option[IndexEntry] =
+    Option(index.get(name)).orElse {
+      refresh()
+      Option(index.get(name))
+    }
+
+  /**
+   * Returns signature and files stored under given name (paths relative to the root of expression's classfile
+   * directory).
+   */
+  def read(name: String): Option[Entry] =
+    indexEntry(name).flatMap(readEntry(name, _))
+
+  /**
+   * Returns signature stored under given name, without reading the files. Signature is not covered by a separate
+   * checksum, so it must only be used as a hint - a corrupted entry will be rejected by [[read]] anyway.
+   */
+  def signature(name: String): Option[String] =
+    indexEntry(name).map { entry =>
+      val buffer = ByteBuffer.allocate(entry.signatureLength)
+      readFully(buffer, entry.signaturePosition)
+      new String(buffer.array, UTF_8)
+    }
+
+  /**
+   * Returns names of all entries, including the ones appended by other processes since last refresh.
+   */
+  def names: Iterator[String] = {
+    refresh()
+    index.keySet.iterator.asScala
+  }
+
+  def write(name: String, signature: String, files: Seq[(String, Array[Byte])]): Unit = {
+    val bytes = new ByteArrayOutputStream
+    val output = new DataOutputStream(bytes)
+    output.writeUTF(name)
+    val signatureBytes = signature.getBytes(UTF_8)
+    output.writeInt(signatureBytes.length)
+    val signatureOffset = output.size
+    output.write(signatureBytes)
+    output.writeInt(files.size)
+    files.foreach { case (path, content) =>
+      output.writeUTF(path)
+      output.writeInt(content.length)
+      output.write(content)
+    }
+    output.flush()
+    val payload = bytes.toByteArray
+    val crc = new CRC32
+    crc.update(payload)
+    val entry = ByteBuffer.allocate(4 + payload.length + 8).putInt(payload.length).put(payload).putLong(crc.getValue)
+
+    withFileLock(synchronized {
+      refresh()
+      if (channel.size > indexedUntil) {
+        logger.warn(s"Truncating incomplete entry at the end of classfile pack $packFile")
+        channel.truncate(indexedUntil)
+      }
+      writeFully(entry.flip(), indexedUntil)
+      channel.force(false)
+      index.put(name, IndexEntry(indexedUntil + 4, payload.length, indexedUntil + 4 + signatureOffset, signatureBytes.length))
+      indexedUntil += entry.limit()
+    })
+  }
+
+  /**
+   * Returns false if the pack file has been deleted since it was opened (e.g. together with the classfile directory).
+   */
+  def exists: Boolean = packFile.exists
+
+  def close(): Unit = {
+    channel.close()
+    lockChannel.close()
+  }
+}
+
+private[compiler] object ClassfilePack {
+  final val Magic = 0x5343455850414B32L // SCEXPAK2
+  final val HeaderLength = 8
+  // payload length + length of entry name (from writeUTF)
+  final val EntryHeaderLength = 6
+
+  case class Entry(signature: String, files: Seq[(String, Array[Byte])])
+
+  private case class IndexEntry(position: Long, length: Int, signaturePosition: Long, signatureLength: Int)
+
+  private val jvmLocks = new ConcurrentHashMap[String, ReentrantLock]
+}
@@ -1,26 +1,33 @@
 package com.avsystem.scex.compiler
 
-import java.io.{IOException, OutputStreamWriter}
+import java.io.IOException
+import java.util.concurrent.{CompletableFuture, ConcurrentHashMap, Executors}
+import java.{lang => jl}
 
-import com.avsystem.scex.compiler.ClassfileReusingScexCompiler.GlobalCacheVersion
+import com.avsystem.scex.compiler.ClassfileReusingScexCompiler._
+import com.avsystem.scex.util.NamingThreadFactory
 import com.google.common.cache.{Cache, CacheBuilder}
 
 import scala.collection.mutable
-import scala.reflect.io.AbstractFile
+import scala.reflect.io.{AbstractFile, VirtualDirectory}
+import scala.tools.nsc.Phase
 import scala.tools.nsc.io.JFile
 import scala.tools.nsc.plugins.{Plugin, PluginComponent}
-import scala.tools.nsc.util.ClassPath
-import scala.tools.nsc.{Phase, Settings}
 import scala.util.Try
 
 object ClassfileReusingScexCompiler {
-  final val GlobalCacheVersion = 2
+  final val GlobalCacheVersion = 3
+  final val PackFileName = "classfiles.pack"
+  final val LockFileName = "classfiles.lock"
+  // common prefix of names of all packages with generated code
+  final val GeneratedCodeMarker = "_scex_"
 }
 
 /**
-  * An adaptation of ScexCompiler which compiles non-shared classes to disk instead of memory (assuming that classfile
+  * An adaptation of ScexCompiler which persists classfiles of compiled expressions (assuming that classfile
   * directory is configured). Class files are never being deleted automatically and thus are reused even if the entire
-  * process is restarted.
+  * process is restarted. They are stored in a single [[ClassfilePack]] keyed by expression source name (which contains
+  * hash of expression code), so the classfile directory may be safely shared by multiple processes.
   *
   * The decision about need for recompilation is made based on signature file generated every time an expression is compiled
   * Signature file contains typed and erased (bytecode) signatures of all symbols (methods, fields, etc.) used by
@@ -45,14 +52,11 @@ trait ClassfileReusingScexCompiler extends ScexCompiler {
   private val sigHeader = "SIGNATURES:\n"
   private val logger = createLogger[ClassfileReusingScexCompiler]
 
-  private class State(val classfileDir: AbstractFile) {
-    def adjustCompilerSettings(settings: Settings): Settings =
-      if (!ClassPath.split(settings.classpath.value).contains(classfileDir.path)) {
-        val adjustedSettings = new ScexSettings
-        settings.copyInto(adjustedSettings)
-        adjustedSettings.classpath.append(classfileDir.path)
-        adjustedSettings
-      } else settings
+  // Classfile pack is opened once per classfile directory and survives resets, only classloaders are per-Global
+  private class State(val classfileDir: AbstractFile, val version: String, val pack: ClassfilePack) {
+    def this(classfileDir: AbstractFile, version: String) =
+      this(classfileDir, version,
+        new ClassfilePack(new JFile(classfileDir.file, PackFileName), new JFile(classfileDir.file, LockFileName)))
 
     val nonSharedClassLoaders: Cache[String, ScexClassLoader] =
       CacheBuilder.newBuilder.weakValues.build[String, ScexClassLoader]
@@ -60,9 +64,6 @@ trait ClassfileReusingScexCompiler extends ScexCompiler {
 
   private var _stateOpt: Option[State] = _
 
-  override protected def compilerSettings: Settings =
-    stateOpt.map(_.adjustCompilerSettings(super.compilerSettings)).getOrElse(super.compilerSettings)
-
   private def stateOpt = {
     if (_stateOpt == null) {
       setup()
@@ -82,6 +83,19 @@ trait ClassfileReusingScexCompiler extends ScexCompiler {
     }
   }
 
+  private def unpack(dir: AbstractFile, files: Seq[(String, Array[Byte])]): Unit =
+    files.foreach { case (path, content) =>
+      val segments = path.split('/')
+      val os = segments.init.foldLeft(dir)(_.subdirectoryNamed(_)).fileNamed(segments.last).output
+      try os.write(content) finally os.close()
+    }
+
+  private def packedFiles(dir: AbstractFile, prefix: String): List[(String, Array[Byte])] =
+    dir.iterator.flatMap { file =>
+      if (file.isDirectory) packedFiles(file, prefix + file.name + "/")
+      else List((prefix + file.name, file.toByteArray))
+    }.toList
+
   override protected def createNonSharedClassLoader(sourceFile: ScexSourceFile): ScexClassLoader =
     stateOpt.map { state =>
       import state._
@@ -89,78 +103,172 @@ trait ClassfileReusingScexCompiler extends ScexCompiler {
       val sourceName = sourceFile.file.name
 
       def createClassLoader = {
-        val dir = classfileDir.subdirectoryNamed(sourceName)
-        ensureDirectoryExists(dir.file)
+        val dir = new VirtualDirectory(sourceName, None)
+        pack.read(sourceName).foreach { entry =>
+          logger.debug(s"Loading previously compiled classes of $sourceName from classfile pack")
+          unpack(dir, (sourceName + ".sig", entry.signature.getBytes) +: entry.files)
+        }
         new ScexClassLoader(dir, getSharedClassLoader)
       }
 
       nonSharedClassLoaders.get(sourceName, callable(createClassLoader))
     } getOrElse super.createNonSharedClassLoader(sourceFile)
 
+  private def reusableState(prevState: Option[State], classfileDir: AbstractFile, version: String) =
+    prevState.filter(s => s.classfileDir.file == classfileDir.file && s.version == version && s.pack.exists)
+      .map(s => new State(s.classfileDir, s.version, s.pack))
+
   override protected def setup(): Unit = {
-    _stateOpt = settings.resolvedClassfileDir.map(new State(_))
-    stateOpt.foreach { state =>
+    val prevState = Option(_stateOpt).flatten
+    forgetGeneratedCodeSignatures()
+    _stateOpt = settings.resolvedClassfileDir.map { classfileDir =>
       val currentVersion = GlobalCacheVersion.toString + "." + settings.backwardsCompatCacheVersion.value
-      val versionFileName = "cacheVersion"
-      if (state.classfileDir.exists) {
-        val savedVersion = Option(state.classfileDir.lookupName(versionFileName, directory = false))
-          .flatMap(versionFile => Try(new String(versionFile.toCharArray)).toOption)
-          .getOrElse("0")
-
-        if (savedVersion != currentVersion) {
-          logger.info("Classfile cache version changed, deleting classfile directory")
-          state.classfileDir.delete()
-        }
-      }
-      ensureDirectoryExists(state.classfileDir.file)
-      val os = state.classfileDir.fileNamed(versionFileName).output
-      try os.write(currentVersion.getBytes) finally os.close()
+      reusableState(prevState, classfileDir, currentVersion).getOrElse(openState(classfileDir, currentVersion))
     }
+    // other threads may still be reading from the previous pack, so it is closed only when it's not reused
+    prevState.filterNot(s => _stateOpt.exists(_.pack eq s.pack)).foreach(_.pack.close())
     super.setup()
   }
 
-  override protected def runCompiler(global: ScexGlobal, sourceFile: ScexSourceFile): Unit = {
+  private def openState(classfileDir: AbstractFile, currentVersion: String): State = {
+    val versionFileName = "cacheVersion"
+    if (classfileDir.exists) {
+      val savedVersion = Option(classfileDir.lookupName(versionFileName, directory = false))
+        .flatMap(versionFile => Try(new String(versionFile.toCharArray)).toOption)
+        .getOrElse("0")
+
+      if (savedVersion != currentVersion) {
+        logger.info("Classfile cache version changed, deleting classfile directory")
+        classfileDir.delete()
+      }
+    }
+    ensureDirectoryExists(classfileDir.file)
+    val os = classfileDir.fileNamed(versionFileName).output
+    try os.write(currentVersion.getBytes) finally os.close()
+    new State(classfileDir, currentVersion)
+  }
+
+  // Validity of signatures of symbols used by expressions, shared by all compiler instances. Signatures of library
+  // symbols can't change during lifetime of the process, but generated code (profile objects, expression utils, etc.)
+  // may be recompiled and therefore signatures referring to it are forgotten every time a shared source is compiled.
+  private val signatureValidity = new ConcurrentHashMap[String, jl.Boolean]
+
+  private def isLibrarySignature(sig: String) =
+    !sig.contains(GeneratedCodeMarker)
+
+  private def forgetGeneratedCodeSignatures(): Unit =
+    signatureValidity.keySet.removeIf(!isLibrarySignature(_))
+
+  private def signatureEntries(signature: String): Option[Iterator[String]] =
+    if (signature.startsWith(sigHeader))
+      Some(signature.stripPrefix(sigHeader).split("\\n{2,}").iterator.map(_.trim).filter(!_.isEmpty))
+    else None
+
+  /**
+   * Checks whether a symbol with given typed and erased signature exists. Must be called within a compiler run.
+   */
+  private def validateSignatureEntry(global: ScexGlobal)(sig: String): Boolean = {
     import global._
-    new Run
 
-    def isValid(signature: String): Boolean = signature.startsWith(sigHeader) &&
-      signature.stripPrefix(sigHeader).split("\\n{2,}").iterator.map(_.trim).filter(!_.isEmpty).forall { sig =>
-        val Array(typedSig, erasedSig) = sig.split("\n")
-        val Array(fullName, _) = typedSig.split(":", 2)
-
-        def symbolsWithName(owner: Symbol, nameParts: List[String]): Iterator[Symbol] =
-          nameParts match {
-            case namePart :: rest if owner.isClass || owner.isModule =>
-              val ownerType = owner.toType
-              val members = Iterator(ownerType.member(TypeName(namePart))) ++ symAlternatives(ownerType.member(TermName(namePart)))
-              members.filter(_ != NoSymbol).flatMap(symbolsWithName(_, rest))
-            case Nil => Iterator(owner)
-            case _ => Iterator.empty
-          }
-
-        symbolsWithName(RootClass, fullName.split("\\.").toList)
-          .filter(_.isTerm).flatMap(s => s :: s.overrides)
-          .map(s => (typedSignature(global)(s.asTerm), erasedSignature(global)(s.asTerm)))
-          .contains((typedSig, erasedSig))
+    val Array(typedSig, erasedSig) = sig.split("\n")
+    val Array(fullName, _) = typedSig.split(":", 2)
+
+    def symbolsWithName(owner: Symbol, nameParts: List[String]): Iterator[Symbol] =
+      nameParts match {
+        case namePart :: rest if owner.isClass || owner.isModule =>
+          val ownerType = owner.toType
+          val members = Iterator(ownerType.member(TypeName(namePart))) ++ symAlternatives(ownerType.member(TermName(namePart)))
+          members.filter(_ != NoSymbol).flatMap(symbolsWithName(_, rest))
+        case Nil => Iterator(owner)
+        case _ => Iterator.empty
       }
 
-    val sigFileName = sourceFile.file.name + ".sig"
-    val optimizedRun = for {
-      state <- stateOpt
-      outDir <- global.settings.outputDirs.getSingleOutput
-      sigFile <- Option(outDir.lookupName(sigFileName, directory = false)) if isValid(new String(sigFile.toCharArray))
-    } yield {
-      logger.debug(s"Expression source file ${sourceFile.file.name} has already been compiled and bytecode is compatible.")
+    symbolsWithName(RootClass, fullName.split("\\.").toList)
+      .filter(_.isTerm).flatMap(s => s :: s.overrides)
+      .map(s => (typedSignature(global)(s.asTerm), erasedSignature(global)(s.asTerm)))
+      .contains((typedSig, erasedSig))
+  }
+
+  private def isValidSignatureEntry(global: ScexGlobal)(sig: String): Boolean =
+    signatureValidity.get(sig) match {
+      case null =>
+        val valid = validateSignatureEntry(global)(sig)
+        signatureValidity.put(sig, valid)
+        valid
+      case valid => valid
+    }
+
+  /**
+   * Validates signatures of all expressions stored in the classfile pack, in parallel on all compiler instances
+   * from the pool. Results are memoized, so that expressions compiled by previous runs of the process may be reused
+   * without resolving the same symbols over and over again. Signatures which refer to profile objects or expression
+   * utils are skipped, because these can't be validated until profiles are compiled. This is meant to be invoked
+   * right after startup, before any expressions are compiled.
+   */
+  def prevalidateClassfileCache(): Unit = stateOpt.foreach { state =>
+    val startTime = System.nanoTime
+    val signatures = state.pack.names.flatMap(state.pack.signature(_).iterator)
+      .flatMap(signatureEntries(_).iterator.flatten).filter(isLibrarySignature).distinct
+      .filterNot(signatureValidity.containsKey).toVector
+
+    // dedicated executor, so that all compiler instances are used regardless of number of async compilation threads
+    val poolSize = settings.compilerPoolSize.value
+    val executor = Executors.newFixedThreadPool(poolSize, new NamingThreadFactory("scex-prevalidation"))
+    try {
+      val groupSize = math.max(1, (signatures.size + poolSize - 1) / poolSize)
+      val validations = signatures.grouped(groupSize).map { group =>
+        CompletableFuture.runAsync(() => withPooledGlobal { global =>
+          new global.Run
+          group.foreach(isValidSignatureEntry(global))
+        }, executor)
+      }.toVector
+      validations.foreach(_.join())
+    } finally {
+      executor.shutdown()
     }
 
-    // If we're about to recompile expression, then we need to make the compiler forget about the old, cached one that
-    // we've just inspected. Otherwise the compiler will see a conflict and issue an error (at least since 2.12.5):
-    // "package x contains object and package with same name: x"
-    val rootScope = RootClass.info.decls
-    val exprPkgSym = rootScope.lookup(TermName(sourceFile.file.name))
-    rootScope.unlink(exprPkgSym)
+    val duration = System.nanoTime - startTime
+    logger.info(s"Validated ${signatures.size} distinct signatures from classfile cache in ${duration / 1000000}ms")
+  }
+
+  override protected def runCompiler(global: ScexGlobal, sourceFiles: List[ScexSourceFile]): Unit = {
+    import global._
+    new Run
+
+    def isValid(signature: String): Boolean =
+      signatureEntries(signature).exists(_.forall(isValidSignatureEntry(global)))
+
+    def isCompiled(sourceFile: ScexSourceFile): Boolean = {
+      val sigFileName = sourceFile.file.name + ".sig"
+      val optimizedRun = for {
+        state <- stateOpt
+        outDir <- global.settings.outputDirs.getSingleOutput
+        sigFile <- Option(outDir.lookupName(sigFileName, directory = false)) if isValid(new String(sigFile.toCharArray))
+      } yield {
+        logger.debug(s"Expression source file ${sourceFile.file.name} has already been compiled and bytecode is compatible.")
+      }
 
-    optimizedRun getOrElse super.runCompiler(global, sourceFile)
+      // If we're about to recompile expression, then we need to make the compiler forget about the old, cached one that
+      // we've just inspected. Otherwise the compiler will see a conflict and issue an error (at least since 2.12.5):
+      // "package x contains object and package with same name: x"
+      val rootScope = RootClass.info.decls
+      val exprPkgSym = rootScope.lookup(TermName(sourceFile.file.name))
+      rootScope.unlink(exprPkgSym)
+
+      if (stateOpt.isDefined) {
+        if (optimizedRun.isDefined) metrics.classfilesReused(SourceKind.of(sourceFile))
+        else metrics.classfilesRecompiled(SourceKind.of(sourceFile))
+      }
+      optimizedRun.isDefined
+    }
+
+    val sourcesToCompile = sourceFiles.filterNot(isCompiled)
+    if (sourcesToCompile.nonEmpty) {
+      super.runCompiler(global, sourcesToCompile)
+    }
+    if (sourcesToCompile.exists(_.shared)) {
+      forgetGeneratedCodeSignatures()
+    }
   }
 
   private def erasedSignature(global: ScexGlobal)(sym: global.TermSymbol) = try {
@@ -215,33 +323,39 @@ trait ClassfileReusingScexCompiler extends ScexCompiler {
         state <- stateOpt
         outDir <- global.settings.outputDirs.getSingleOutput
       } {
-        unit.body.find(_.hasAttachment[ExpressionTreeAttachment.type]).foreach { tree =>
+        // fused templates contain multiple expression trees, one for every template argument
+        val expressionTrees = unit.body.filter(_.hasAttachment[ExpressionTreeAttachment.type])
+        if (expressionTrees.nonEmpty) {
           val signatures = new mutable.HashSet[String]
 
-          tree.foreach { t =>
+          expressionTrees.foreach(_.foreach { t =>
             val s = t.symbol
             if (s != null && s.isTerm && !s.hasPackageFlag && s.sourceFile != unit.source.file) {
               signatures += typedSignature(global)(s.asTerm) + "\n" + erasedSignature(global)(s.asTerm)
             }
-          }
+          })
 
           sigs(unit) = signatures.toList.sorted.mkString(sigHeader, "\n\n", "\n")
         }
       }
     }
 
-    // signature is saved after full compilation when we're sure that there were no compilation errors
+    // signature and classfiles are saved after full compilation when we're sure that there were no compilation errors
     private object saveSignature extends BaseComponent("jvm", "saveSignature") {
       def applyComponentPhase(unit: CompilationUnit): Unit = for {
         state <- stateOpt
         outDir <- global.settings.outputDirs.getSingleOutput
         sig <- sigs.get(unit)
       } {
-        logger.debug(s"Saving source and signatures file for ${unit.source.file.name}:\n$sig")
-        val sourceWriter = new OutputStreamWriter(outDir.fileNamed(unit.source.file.name + ".scala").output)
-        try sourceWriter.write(unit.source.content) finally sourceWriter.close()
-        val sigOutputStream = outDir.fileNamed(unit.source.file.name + ".sig").output
-        try sigOutputStream.write(sig.getBytes) finally sigOutputStream.close()
+        val sourceName = unit.source.file.name
+        logger.debug(s"Saving classfiles and signatures of $sourceName to classfile pack:\n$sig")
+        val sigFileName = sourceName + ".sig"
+        val sigBytes = sig.getBytes
+        val sigOutputStream = outDir.fileNamed(sigFileName).output
+        try sigOutputStream.write(sigBytes) finally sigOutputStream.close()
+        val classfiles = Option(outDir.lookupName(sourceName, directory = true))
+          .map(packedFiles(_, sourceName + "/")).getOrElse(Nil)
+        state.pack.write(sourceName, sig, classfiles)
         sigs.remove(unit)
       }
     }
@@ -44,6 +44,8 @@ object CodeGeneration {
   val SymbolAttributesPkgPrefix = "_symbol_attributes_"
   val ConversionSupplierPkgPrefix = "_conversion_supplier_"
   val ArbitraryClassSourceNamePrefix = "_scex_class_"
+  val AdaptersSourceNamePrefix = "Adapters_"
+  val FullAdapterSourceNamePrefix = "FullAdapter_"
 
   val VariableAccessorClassName = "_variableAccessor"
   val ExpressionClassName = "Expression"
@@ -57,6 +59,8 @@ object CodeGeneration {
   val ImplicitContextSymbol = "_implicit_ctx"
   val VariablesSymbol = "_vars"
   val RootSymbol = "_root"
+  val ResultSymbol = "_result"
+  val TemplateArgSymbol = "_arg"
   val AdapterWrappedSymbol = "_wrapped"
   val AdaptedRootSymbol = "_adapted_root"
   val ScexPkg = "com.avsystem.scex"
@@ -68,6 +72,14 @@ object CodeGeneration {
   val NoMacrosInterpolationOpen = "p\"\"\""
   val InterpolationClose = "\"\"\""
 
+  // base classes of expressions whose result type is primitive, so that it can be evaluated without boxing
+  val PrimitiveExpressionBaseClasses = Map(
+    "Boolean" -> "AbstractBooleanExpression",
+    "Int" -> "AbstractIntExpression",
+    "Long" -> "AbstractLongExpression",
+    "Double" -> "AbstractDoubleExpression"
+  )
+
   def adapterName(clazz: Class[_], full: Boolean) =
     (if (full) "Full" else "") + "Adapter_" + clazz.getName.replaceAll("\\.", "_")
 
@@ -80,7 +92,7 @@ object CodeGeneration {
     case '"' => "\\\""
     case '\'' => "\\\'"
     case '\\' => "\\\\"
-    case _ => if (ch.isControl) "\\0" + Integer.toOctalString(ch.toInt) else String.valueOf(ch)
+    case _ => if (ch.isControl) f"\\u${ch.toInt}%04x" else String.valueOf(ch)
   }
 
   def escapeString(str: String) =
@@ -140,37 +152,142 @@ object CodeGeneration {
     utilsObjectPkg: Option[String],
     noMacroProcessing: Boolean) = {
 
-    val ExpressionDef(profile, template, setter, expression, header, contextType, resultType, variableTypes) = exprDef
+    val ExpressionDef(_, template, setter, expression, _, contextType, resultType, _) = exprDef
 
     val resultOrSetterType = if (setter) s"$ScexPkg.Setter[$resultType]" else resultType
+    val expressionBaseClass =
+      if (setter) None
+      else PrimitiveExpressionBaseClasses.get(resultType.stripPrefix("_root_.").stripPrefix("scala."))
+    val expressionSuperType = expressionBaseClass
+      .fold(s"$ScexPkg.AbstractExpression[$contextType, $resultOrSetterType]")(cls => s"$ScexPkg.$cls[$contextType]")
 
-    val profileHeader = Option(profile.expressionHeader).getOrElse("")
-    val additionalHeader = Option(header).getOrElse("")
+    val interpolationPrefix = if (template) if (!noMacroProcessing) InterpolationOpen else NoMacrosInterpolationOpen else ""
+    val interpolationPostfix = if (template) InterpolationClose else ""
 
-    val rootGetterAdapterCode = fullAdapterClassNameOpt match {
-      case Some(fullAdapterClassName) =>
+    //_result is needed because: https://groups.google.com/forum/#!topic/scala-user/BAK-mU7o6nM
+    val prefix = expressionClassPrefix(exprDef, expressionSuperType, resultType, resultOrSetterType,
+      fullAdapterClassNameOpt, profileObjectPkg, utilsObjectPkg, noMacroProcessing) +
+      s"""
+         |    val $ResultSymbol =
+         |      ${processingPrefix(contextType, resultType, setter, noMacroProcessing)}
+         |      {
+         |""".stripMargin + interpolationPrefix
+
+    val postfix = interpolationPostfix +
+      s"""
+         |    }
+         |    ${processingPostfix(noMacroProcessing)}
+         |    $ResultSymbol
+         |  }
+         |}
+         |
+      """.stripMargin
+
+    val exprCode = prefix + expression + postfix
+    val exprOffset = prefix.length
+
+    (exprCode, exprOffset)
+  }
+
+  // string constants in classfiles are limited to 65535 bytes of modified UTF-8, i.e. at least 21845 chars
+  private final val MaxStringConstantLength = 16384
+
+  /**
+   * Generates code of a single class which evaluates all arguments of a string template and concatenates them
+   * with template parts. Every argument is processed and validated just like an expression compiled on its own
+   * (see [[generateExpressionClass]]), so that compilation errors can still be attributed to particular arguments.
+   * Returns the code and offsets of all arguments within it.
+   */
+  def generateFusedTemplateClass(
+    exprDef: ExpressionDef,
+    parts: List[String],
+    argDefs: List[ExpressionDef],
+    fullAdapterClassNameOpt: Option[String],
+    profileObjectPkg: Option[String],
+    utilsObjectPkg: Option[String]) = {
+
+    require(parts.size == argDefs.size + 1, "There must be exactly one more template part than arguments")
+    val contextType = exprDef.contextType
+
+    val code = new jl.StringBuilder(expressionClassPrefix(exprDef, s"$ScexPkg.AbstractExpression[$contextType, ${exprDef.resultType}]",
+      "String", exprDef.resultType, fullAdapterClassNameOpt, profileObjectPkg, utilsObjectPkg, noMacroProcessing = false))
+
+    val argOffsets = argDefs.zipWithIndex.map { case (argDef, i) =>
+      code.append(
         s"""
-           |val $AdaptedRootSymbol = new $fullAdapterClassName($RootSymbol): @$AnnotationPkg.RootAdapter
-           |import $AdaptedRootSymbol._
-           |""".stripMargin
-      case None =>
-        ""
+           |    val $TemplateArgSymbol$i =
+           |      ${processingPrefix(contextType, "String", setter = false, noMacroProcessing = false)}
+           |      {
+           |""".stripMargin).append(InterpolationOpen)
+      val offset = code.length
+      code.append(argDef.expression).append(InterpolationClose).append(
+        s"""
+           |    }
+           |    ${processingPostfix(noMacroProcessing = false)}
+           |""".stripMargin)
+      offset
     }
 
-    val interpolationPrefix = if (template) if (!noMacroProcessing) InterpolationOpen else NoMacrosInterpolationOpen else ""
-    val interpolationPostfix = if (template) InterpolationClose else ""
-    val setterConversion = if (setter) s"$MacroProcessor.asSetter[$resultType]" else ""
+    val concatenation = parts.iterator.zipWithIndex.map { case (part, i) =>
+      val partAppends = part.grouped(MaxStringConstantLength).map(chunk => s""".append("${escapeString(chunk)}")""").mkString
+      partAppends + (if (i < argDefs.size) s".append($TemplateArgSymbol$i)" else "")
+    }.mkString
 
-    val processingPrefix = if (noMacroProcessing) ""
-    else
+    code.append(
+      s"""
+         |    val $ResultSymbol =
+         |      new _root_.java.lang.StringBuilder(${parts.foldLeft(0)(_ + _.length) + 16 * argDefs.size})$concatenation.toString
+         |    $ResultSymbol
+         |  }
+         |}
+         |
+      """.stripMargin)
+
+    (code.toString, argOffsets)
+  }
+
+  private def processingPrefix(contextType: String, resultType: String, setter: Boolean, noMacroProcessing: Boolean) =
+    if (noMacroProcessing) ""
+    else {
+      val setterConversion = if (setter) s"$MacroProcessor.asSetter[$resultType]" else ""
       s"""
          |      $MacroProcessor.markExpression(
          |      $setterConversion(
          |      $MacroProcessor.validate[$contextType, ${if (setter) "Any" else resultType}](
          |      $MacroProcessor.applyTypesafeEquals(
       """.stripMargin
+    }
+
+  private def processingPostfix(noMacroProcessing: Boolean) =
+    if (noMacroProcessing) "" else "))))"
+
+  /**
+   * Beginning of expression class, up to and including all the definitions that are visible in expression code.
+   */
+  private def expressionClassPrefix(
+    exprDef: ExpressionDef,
+    expressionSuperType: String,
+    interpolationResultType: String,
+    evalResultType: String,
+    fullAdapterClassNameOpt: Option[String],
+    profileObjectPkg: Option[String],
+    utilsObjectPkg: Option[String],
+    noMacroProcessing: Boolean) = {
 
-    val processingPostfix = if (noMacroProcessing) "" else "))))"
+    val ExpressionDef(profile, _, _, _, header, contextType, _, variableTypes) = exprDef
+
+    val profileHeader = Option(profile.expressionHeader).getOrElse("")
+    val additionalHeader = Option(header).getOrElse("")
+
+    val rootGetterAdapterCode = fullAdapterClassNameOpt match {
+      case Some(fullAdapterClassName) =>
+        s"""
+           |val $AdaptedRootSymbol = new $fullAdapterClassName($RootSymbol): @$AnnotationPkg.RootAdapter
+           |import $AdaptedRootSymbol._
+           |""".stripMargin
+      case None =>
+        ""
+    }
 
     val dynamicVariablesDef = {
       // skip definition if neither typed variables provided nor dynamic variable accessor enabled
@@ -217,8 +334,6 @@ object CodeGeneration {
     val utilsImport = utilsObjectPkg.fold("")(pkg => s"import $pkg.$UtilsObjectName._")
 
     //comment with profile name ensures that caching distinguishes between profiles
-    //_result is needed because: https://groups.google.com/forum/#!topic/scala-user/BAK-mU7o6nM
-    val prefix =
     s"""
        |// profile: ${profile.name}
        |
@@ -227,10 +342,10 @@ object CodeGeneration {
        |final class $ExpressionClassName(
        |  val debugInfo: com.avsystem.scex.ExpressionDebugInfo,
        |  val sourceInfo: com.avsystem.scex.compiler.SourceInfo
-       |) extends $ScexPkg.AbstractExpression[$contextType, $resultOrSetterType]
-       |  with $CompilerPkg.TemplateInterpolations[$resultType] {
+       |) extends $expressionSuperType
+       |  with $CompilerPkg.TemplateInterpolations[$interpolationResultType] {
        |
-       |  def eval($ContextSymbol: $contextType @$AnnotationPkg.Input): $resultOrSetterType = {
+       |  def eval($ContextSymbol: $contextType @$AnnotationPkg.Input): $evalResultType = {
        |    implicit def $ImplicitContextSymbol: $contextType @$AnnotationPkg.Input = $ContextSymbol
        |    val $RootSymbol = $ContextSymbol.root: @$AnnotationPkg.RootValue
        |    $profileImport
@@ -239,26 +354,7 @@ object CodeGeneration {
        |    $rootGetterAdapterCode
        |    $profileHeader
        |    $additionalHeader
-       |    $dynamicVariablesDef
-       |    val _result =
-       |      $processingPrefix
-       |      {
-       |""".stripMargin + interpolationPrefix
-
-    val postfix = interpolationPostfix +
-      s"""
-         |    }
-         |    $processingPostfix
-         |    _result
-         |  }
-         |}
-         |
-      """.stripMargin
-
-    val exprCode = prefix + expression + postfix
-    val exprOffset = prefix.length
-
-    (exprCode, exprOffset)
+       |    $dynamicVariablesDef""".stripMargin
   }
 
   def generateProfileObject(profile: ExpressionProfile, adapters: Seq[(Class[_], String)]) = {
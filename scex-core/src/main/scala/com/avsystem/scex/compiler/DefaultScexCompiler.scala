@@ -11,6 +11,7 @@ class DefaultScexCompiler(val settings: ScexSettings)
   extends ScexCompiler
   with ScexPresentationCompiler
   with ClassfileReusingScexCompiler
+  with TieredScexCompiler
   with TemplateOptimizingScexCompiler
   with CachingScexCompiler
   with CachingScexPresentationCompiler
@@ -3,7 +3,12 @@ package compiler
 
 import com.avsystem.scex.parsing.PositionMapping
 
+import scala.util.hashing.MurmurHash3
+
 /**
+  * Used as a key in compilation and presentation caches, therefore its hash code is computed only once and equality
+  * checks start with identity and hash code comparison, before comparing (potentially long) strings.
+  *
   * Created: 14-11-2013
   * Author: ghik
   */
@@ -20,4 +25,16 @@ final case class ExpressionDef(
   val originalExpression: String,
   val positionMapping: PositionMapping,
   val rootObjectClass: Class[_],
-)
+) {
+
+  override val hashCode: Int = MurmurHash3.caseClassHash(this)
+
+  override def equals(other: Any): Boolean = other match {
+    case that: ExpressionDef =>
+      (this eq that) || hashCode == that.hashCode &&
+        profile == that.profile && template == that.template && setter == that.setter &&
+        expression == that.expression && header == that.header && contextType == that.contextType &&
+        resultType == that.resultType && variableTypes == that.variableTypes
+    case _ => false
+  }
+}
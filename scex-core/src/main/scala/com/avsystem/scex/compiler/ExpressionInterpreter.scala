@@ -0,0 +1,497 @@
+package com.avsystem.scex
+package compiler
+
+import java.lang.reflect.{AccessibleObject, Constructor, InvocationTargetException, Member, Modifier, Array => JArray}
+
+import com.avsystem.scex.compiler.CodeGeneration.ExpressionClassName
+
+import scala.collection.mutable
+import scala.runtime.{BoxedUnit, BoxesRunTime, Statics}
+import scala.util.control.{NoStackTrace, NonFatal}
+
+/**
+ * Translates typechecked tree of an expression class (as generated by [[CodeGeneration]]) into a tree of closures
+ * which evaluate the expression using Java reflection, without any bytecode generation.
+ *
+ * Only a conservative subset of typed trees is supported: literals, local values, method and constructor invocations,
+ * field accesses, conditionals and operations on primitive values. Statements of blocks are evaluated eagerly,
+ * in order, just like in compiled code. If the expression contains anything else (even in a statement whose value
+ * is never used), no interpreter is created. Reflective invocations of expression members may throw
+ * `InvocationTargetException` - any other failure is reported as [[ExpressionInterpreter.InterpreterFailure]],
+ * which means that the interpreter was not able to evaluate the expression.
+ */
+class ExpressionInterpreter(val global: ScexGlobal) {
+
+  import ExpressionInterpreter._
+  import global._
+  import definitions._
+
+  private type Node = Frame => Any
+
+  private final class Frame(val context: Any, slotCount: Int) {
+    val values = new Array[Any](slotCount)
+    // set before any reflective invocation, which may have side effects
+    var invoked = false
+  }
+
+  private sealed trait Local
+  private case class LocalVal(slot: Int) extends Local
+  private case class LocalDef(node: Node) extends Local
+
+  private case class Unsupported(tree: Tree) extends Exception(s"Cannot interpret ${tree.productPrefix}") with NoStackTrace
+
+  private val locals = new mutable.HashMap[Symbol, Local]
+  private var contextSymbol: Symbol = NoSymbol
+  private var slotCount = 0
+
+  /**
+   * Returns interpreter of expression contained in given typechecked expression source tree,
+   * or `None` if the expression uses constructs not supported by this interpreter.
+   */
+  def interpreter(sourceTree: Tree): Option[ExpressionContext[_, _] => Any] =
+    sourceTree.collect {
+      case dd@DefDef(_, TermName("eval"), _, List(List(ctxParam)), _, rhs)
+        if dd.symbol.owner.name == TypeName(ExpressionClassName) => (ctxParam.symbol, rhs)
+    }.headOption.flatMap { case (ctxSym, rhs) =>
+      contextSymbol = ctxSym
+      try {
+        val node = translate(rhs)
+        val slots = slotCount
+        Some { ctx =>
+          val frame = new Frame(ctx, slots)
+          try node(frame) catch {
+            case e: InvocationTargetException => throw e
+            case NonFatal(cause) => throw new InterpreterFailure(cause, repeatable = !frame.invoked)
+          }
+        }
+      } catch {
+        case _: Unsupported | _: ReflectiveOperationException | _: LinkageError => None
+      }
+    }
+
+  private def unsupported(tree: Tree): Nothing =
+    throw Unsupported(tree)
+
+  private def translate(tree: Tree): Node = tree match {
+    case Literal(Constant(value)) => value match {
+      case _: Type | _: Symbol => unsupported(tree)
+      case () => _ => BoxedUnit.UNIT
+      case _ => _ => value
+    }
+    case Typed(expr, _) =>
+      translate(expr)
+    case Block(stats, expr) =>
+      translateBlock(stats, expr)
+    case If(cond, thenp, elsep) =>
+      val condNode = translate(cond)
+      val thenNode = translate(thenp)
+      val elseNode = translate(elsep)
+      f => if (asBoolean(condNode(f))) thenNode(f) else elseNode(f)
+    case TypeApply(Select(qual, _), List(targ)) if isCastSymbol(tree.symbol) || isTypeTestSymbol(tree.symbol) =>
+      translateTypeOperation(tree, qual, targ.tpe)
+    case _: Ident | _: Select if tree.symbol == contextSymbol =>
+      _.context
+    case _: Ident if locals.contains(tree.symbol) =>
+      translateLocal(tree)
+    case _: Ident | _: Select if tree.symbol != null && tree.symbol.isModule =>
+      translateModule(tree)
+    case Select(qual, _) if tree.symbol.isMethod =>
+      translateInvocation(tree, qual, tree.symbol.asMethod, Nil)
+    case Select(qual, _) if tree.symbol.isTerm && tree.symbol.isJavaDefined =>
+      translateJavaField(qual, tree.symbol.asTerm)
+    case _: Apply | _: TypeApply =>
+      translateApplication(tree)
+    case _ =>
+      unsupported(tree)
+  }
+
+  private def translateBlock(stats: List[Tree], expr: Tree): Node = {
+    val statNodes = stats.flatMap {
+      case vd: ValDef if !vd.symbol.isMutable && !vd.symbol.isLazy =>
+        val rhsNode = translate(vd.rhs)
+        val slot = slotCount
+        slotCount += 1
+        locals(vd.symbol) = LocalVal(slot)
+        List((f: Frame) => f.values(slot) = rhsNode(f))
+      case dd: DefDef if dd.vparamss.flatten.isEmpty && dd.tparams.isEmpty =>
+        locals(dd.symbol) = LocalDef(translate(dd.rhs))
+        Nil
+      case _: Import | _: ClassDef | _: ModuleDef | _: TypeDef | EmptyTree =>
+        Nil
+      case stat =>
+        List(translate(stat))
+    }
+    val exprNode = translate(expr)
+    if (statNodes.isEmpty) exprNode
+    else f => {
+      statNodes.foreach(_.apply(f))
+      exprNode(f)
+    }
+  }
+
+  private def translateLocal(tree: Tree): Node = locals(tree.symbol) match {
+    case LocalVal(slot) => _.values(slot)
+    case LocalDef(node) => node
+  }
+
+  private def translateModule(tree: Tree): Node = {
+    val moduleSym = tree.symbol
+    if (moduleSym.isJavaDefined || moduleSym.hasPackageFlag) unsupported(tree)
+    val moduleClass = typeToJavaClass(moduleSym.moduleClass.toType)
+    lazy val instance = moduleClass.getField("MODULE$").get(null)
+    _ => instance
+  }
+
+  private def translateJavaField(qual: Tree, sym: TermSymbol): Node = {
+    val field = fieldToJava(sym)
+    makeAccessible(field)
+    if (Modifier.isStatic(field.getModifiers)) _ => field.get(null)
+    else {
+      val qualNode = translate(qual)
+      f => field.get(qualNode(f))
+    }
+  }
+
+  private def translateTypeOperation(tree: Tree, qual: Tree, tpe: Type): Node = {
+    val qualNode = translate(qual)
+    val erased = erasureClass(tpe)
+    if (erased == null) unsupported(tree)
+    val clazz = boxedJavaClass(erased)
+    if (isTypeTestSymbol(tree.symbol)) f => clazz.isInstance(qualNode(f))
+    // casts to primitive types would need unboxing semantics of null
+    else if (erased.isPrimitive) unsupported(tree)
+    else f => {
+      val value = qualNode(f)
+      if (value == null || clazz.isInstance(value)) value
+      else throw new ClassCastException(s"${value.getClass.getName} cannot be cast to ${clazz.getName}")
+    }
+  }
+
+  private def translateApplication(tree: Tree): Node = {
+    def flatten(t: Tree, argss: List[List[Tree]]): (Tree, List[List[Tree]]) = t match {
+      case Apply(fun, args) => flatten(fun, args :: argss)
+      case TypeApply(fun, _) => flatten(fun, argss)
+      case _ => (t, argss)
+    }
+
+    flatten(tree, Nil) match {
+      case (fun@Select(New(_), nme.CONSTRUCTOR), argss) =>
+        translateConstruction(fun, fun.symbol.asMethod, argss)
+      case (fun@Select(qual, _), argss) if fun.symbol.isMethod =>
+        translateInvocation(fun, qual, fun.symbol.asMethod, argss)
+      case (fun: Ident, argss) if locals.contains(fun.symbol) && argss.forall(_.isEmpty) =>
+        translateLocal(fun)
+      case _ =>
+        unsupported(tree)
+    }
+  }
+
+  private def translateArguments(tree: Tree, method: MethodSymbol, argss: List[List[Tree]]): List[Node] = {
+    if (method.paramss.size != argss.size) unsupported(tree)
+    (method.paramss zip argss).flatMap { case (params, args) =>
+      def translateArg(param: Symbol, arg: Tree): Node =
+        if (isByNameParamType(param.tpe)) {
+          val node = translate(arg)
+          f => () => node(f)
+        } else translate(arg)
+
+      def isSplice(arg: Tree) = arg match {
+        case Typed(_, Ident(tpnme.WILDCARD_STAR)) => true
+        case _ => false
+      }
+
+      params.lastOption.filter(p => isRepeatedParamType(p.tpe)) match {
+        case Some(repeated) =>
+          val (regularArgs, varArgs) = args.splitAt(params.size - 1)
+          val regularNodes = (params.init zip regularArgs).map { case (p, a) => translateArg(p, a) }
+          val varArgsNode: Node = varArgs match {
+            case List(arg@Typed(expr, _)) if isSplice(arg) => translate(expr)
+            case _ =>
+              val nodes = varArgs.map(translate)
+              if (isJavaRepeatedParamType(repeated.tpe)) {
+                val elementClass = typeToJavaClass(repeatedToSingle(repeated.tpe).erasure)
+                f => {
+                  val array = JArray.newInstance(elementClass, nodes.size)
+                  nodes.iterator.zipWithIndex.foreach { case (node, i) => JArray.set(array, i, node(f)) }
+                  array
+                }
+              } else f => nodes.map(_.apply(f))
+          }
+          regularNodes :+ varArgsNode
+        case None =>
+          if (params.size != args.size) unsupported(tree)
+          (params zip args).map { case (p, a) => translateArg(p, a) }
+      }
+    }
+  }
+
+  private def translateConstruction(tree: Tree, constructor: MethodSymbol, argss: List[List[Tree]]): Node = {
+    if (!constructor.owner.owner.isStaticOwner) unsupported(tree)
+    val javaConstructor: Constructor[_] = constructorToJava(constructor)
+    makeAccessible(javaConstructor)
+    val argNodes = translateArguments(tree, constructor, argss)
+    f => {
+      val args = argNodes.map(_.apply(f).asInstanceOf[AnyRef])
+      f.invoked = true
+      javaConstructor.newInstance(args: _*)
+    }
+  }
+
+  private def translateInvocation(tree: Tree, qual: Tree, method: MethodSymbol, argss: List[List[Tree]]): Node =
+    primitiveOperation(tree, qual, method, argss) getOrElse {
+      val javaMethod = method.owner match {
+        case AnyClass => classOf[Object].getMethod(method.name.toString, transformedType(method).paramTypes.map(typeToJavaClass): _*)
+        case _ => methodToJava(method)
+      }
+      makeAccessible(javaMethod)
+      val argNodes = translateArguments(tree, method, argss)
+      val unit = method.tpe.finalResultType.typeSymbol == UnitClass
+
+      def invoke(receiver: Any, f: Frame): Any = {
+        val args = argNodes.map(_.apply(f).asInstanceOf[AnyRef])
+        f.invoked = true
+        val result = javaMethod.invoke(receiver, args: _*)
+        if (unit) BoxedUnit.UNIT else result
+      }
+
+      if (Modifier.isStatic(javaMethod.getModifiers)) f => invoke(null, f)
+      else {
+        val qualNode = translate(qual)
+        if (method.owner.isDerivedValueClass) {
+          // underlying values of value classes must be boxed back into value class instances
+          val valueClass = javaMethod.getDeclaringClass
+          val valueClassConstructor = valueClass.getConstructors.head
+          f => {
+            val receiver = qualNode(f)
+            invoke(if (valueClass.isInstance(receiver)) receiver
+            else valueClassConstructor.newInstance(receiver.asInstanceOf[AnyRef]), f)
+          }
+        } else f => invoke(qualNode(f), f)
+      }
+    }
+
+  private def primitiveOperation(tree: Tree, qual: Tree, method: MethodSymbol, argss: List[List[Tree]]): Option[Node] = {
+    def qualNode = translate(qual)
+    def argTrees = argss.flatten
+    def argNode = argTrees match {
+      case List(arg) => translate(arg)
+      case _ => unsupported(tree)
+    }
+    val name = method.name.decodedName.toString
+
+    if (method == Any_== || method == Object_==) {
+      val (l, r) = (qualNode, argNode)
+      Some(f => BoxesRunTime.equals(l(f), r(f)))
+    } else if (method == Any_!= || method == Object_!=) {
+      val (l, r) = (qualNode, argNode)
+      Some(f => !BoxesRunTime.equals(l(f), r(f)))
+    } else if (method == Object_eq) {
+      val (l, r) = (qualNode, argNode)
+      Some(f => l(f).asInstanceOf[AnyRef] eq r(f).asInstanceOf[AnyRef])
+    } else if (method == Object_ne) {
+      val (l, r) = (qualNode, argNode)
+      Some(f => l(f).asInstanceOf[AnyRef] ne r(f).asInstanceOf[AnyRef])
+    } else if (method == Any_##) {
+      val q = qualNode
+      Some(f => Statics.anyHash(q(f)))
+    } else if (method == String_+) {
+      val (l, r) = (qualNode, argNode)
+      Some(f => String.valueOf(l(f)) + String.valueOf(r(f)))
+    } else if (method.owner == BooleanClass) {
+      val q = qualNode
+      Some(argTrees match {
+        case Nil => name match {
+          case "unary_!" => f => !asBoolean(q(f))
+          case _ => unsupported(tree)
+        }
+        case _ =>
+          val a = argNode
+          name match {
+            case "&&" => f => asBoolean(q(f)) && asBoolean(a(f))
+            case "||" => f => asBoolean(q(f)) || asBoolean(a(f))
+            case "&" => f => asBoolean(q(f)) & asBoolean(a(f))
+            case "|" => f => asBoolean(q(f)) | asBoolean(a(f))
+            case "^" => f => asBoolean(q(f)) ^ asBoolean(a(f))
+            case "==" => f => asBoolean(q(f)) == asBoolean(a(f))
+            case "!=" => f => asBoolean(q(f)) != asBoolean(a(f))
+            case _ => unsupported(tree)
+          }
+      })
+    } else if (isNumericValueClass(method.owner)) {
+      val q = qualNode
+      val qualRank = numericRank(qual.tpe)
+      Some(argTrees match {
+        case Nil => unaryNumericOperation(tree, name, qualRank, q)
+        case List(arg) if arg.tpe.widen.typeSymbol == StringClass && name == "+" =>
+          val a = argNode
+          f => String.valueOf(q(f)) + String.valueOf(a(f))
+        case List(arg) =>
+          val a = argNode
+          val op = name match {
+            case "<<" | ">>" | ">>>" => shiftOperation(tree, name, qualRank)
+            case _ => binaryNumericOperation(tree, name, qualRank max numericRank(arg.tpe))
+          }
+          f => op(q(f), a(f))
+        case _ => unsupported(tree)
+      })
+    } else None
+  }
+
+  private def numericRank(tpe: Type): Int = tpe.widen.typeSymbol match {
+    case ByteClass | ShortClass | CharClass | IntClass => IntRank
+    case LongClass => LongRank
+    case FloatClass => FloatRank
+    case DoubleClass => DoubleRank
+    case _ => throw Unsupported(EmptyTree)
+  }
+
+  private def unaryNumericOperation(tree: Tree, name: String, rank: Int, q: Node): Node = (name, rank) match {
+    case ("toByte", _) => f => asLong(q(f)).toByte
+    case ("toShort", _) => f => asLong(q(f)).toShort
+    case ("toChar", _) => f => asLong(q(f)).toChar
+    case ("toInt", FloatRank | DoubleRank) => f => asDouble(q(f)).toInt
+    case ("toInt", _) => f => asLong(q(f)).toInt
+    case ("toLong", FloatRank | DoubleRank) => f => asDouble(q(f)).toLong
+    case ("toLong", _) => f => asLong(q(f))
+    case ("toFloat", _) => f => asDouble(q(f)).toFloat
+    case ("toDouble", _) => f => asDouble(q(f))
+    case ("unary_-", IntRank) => f => -asInt(q(f))
+    case ("unary_-", LongRank) => f => -asLong(q(f))
+    case ("unary_-", FloatRank) => f => -asFloat(q(f))
+    case ("unary_-", DoubleRank) => f => -asDouble(q(f))
+    case ("unary_+", IntRank) => f => asInt(q(f))
+    case ("unary_+", _) => q
+    case ("unary_~", IntRank) => f => ~asInt(q(f))
+    case ("unary_~", LongRank) => f => ~asLong(q(f))
+    case _ => unsupported(tree)
+  }
+
+  private def shiftOperation(tree: Tree, name: String, rank: Int): (Any, Any) => Any = (name, rank) match {
+    case ("<<", IntRank) => (a, b) => asInt(a) << asInt(b)
+    case (">>", IntRank) => (a, b) => asInt(a) >> asInt(b)
+    case (">>>", IntRank) => (a, b) => asInt(a) >>> asInt(b)
+    case ("<<", LongRank) => (a, b) => asLong(a) << asLong(b)
+    case (">>", LongRank) => (a, b) => asLong(a) >> asLong(b)
+    case (">>>", LongRank) => (a, b) => asLong(a) >>> asLong(b)
+    case _ => unsupported(tree)
+  }
+
+  private def binaryNumericOperation(tree: Tree, name: String, rank: Int): (Any, Any) => Any = rank match {
+    case IntRank => name match {
+      case "+" => (a, b) => asInt(a) + asInt(b)
+      case "-" => (a, b) => asInt(a) - asInt(b)
+      case "*" => (a, b) => asInt(a) * asInt(b)
+      case "/" => (a, b) => asInt(a) / asInt(b)
+      case "%" => (a, b) => asInt(a) % asInt(b)
+      case "&" => (a, b) => asInt(a) & asInt(b)
+      case "|" => (a, b) => asInt(a) | asInt(b)
+      case "^" => (a, b) => asInt(a) ^ asInt(b)
+      case "<" => (a, b) => asInt(a) < asInt(b)
+      case "<=" => (a, b) => asInt(a) <= asInt(b)
+      case ">" => (a, b) => asInt(a) > asInt(b)
+      case ">=" => (a, b) => asInt(a) >= asInt(b)
+      case "==" => (a, b) => asInt(a) == asInt(b)
+      case "!=" => (a, b) => asInt(a) != asInt(b)
+      case _ => unsupported(tree)
+    }
+    case LongRank => name match {
+      case "+" => (a, b) => asLong(a) + asLong(b)
+      case "-" => (a, b) => asLong(a) - asLong(b)
+      case "*" => (a, b) => asLong(a) * asLong(b)
+      case "/" => (a, b) => asLong(a) / asLong(b)
+      case "%" => (a, b) => asLong(a) % asLong(b)
+      case "&" => (a, b) => asLong(a) & asLong(b)
+      case "|" => (a, b) => asLong(a) | asLong(b)
+      case "^" => (a, b) => asLong(a) ^ asLong(b)
+      case "<" => (a, b) => asLong(a) < asLong(b)
+      case "<=" => (a, b) => asLong(a) <= asLong(b)
+      case ">" => (a, b) => asLong(a) > asLong(b)
+      case ">=" => (a, b) => asLong(a) >= asLong(b)
+      case "==" => (a, b) => asLong(a) == asLong(b)
+      case "!=" => (a, b) => asLong(a) != asLong(b)
+      case _ => unsupported(tree)
+    }
+    case FloatRank => name match {
+      case "+" => (a, b) => asFloat(a) + asFloat(b)
+      case "-" => (a, b) => asFloat(a) - asFloat(b)
+      case "*" => (a, b) => asFloat(a) * asFloat(b)
+      case "/" => (a, b) => asFloat(a) / asFloat(b)
+      case "%" => (a, b) => asFloat(a) % asFloat(b)
+      case "<" => (a, b) => asFloat(a) < asFloat(b)
+      case "<=" => (a, b) => asFloat(a) <= asFloat(b)
+      case ">" => (a, b) => asFloat(a) > asFloat(b)
+      case ">=" => (a, b) => asFloat(a) >= asFloat(b)
+      case "==" => (a, b) => asFloat(a) == asFloat(b)
+      case "!=" => (a, b) => asFloat(a) != asFloat(b)
+      case _ => unsupported(tree)
+    }
+    case DoubleRank => name match {
+      case "+" => (a, b) => asDouble(a) + asDouble(b)
+      case "-" => (a, b) => asDouble(a) - asDouble(b)
+      case "*" => (a, b) => asDouble(a) * asDouble(b)
+      case "/" => (a, b) => asDouble(a) / asDouble(b)
+      case "%" => (a, b) => asDouble(a) % asDouble(b)
+      case "<" => (a, b) => asDouble(a) < asDouble(b)
+      case "<=" => (a, b) => asDouble(a) <= asDouble(b)
+      case ">" => (a, b) => asDouble(a) > asDouble(b)
+      case ">=" => (a, b) => asDouble(a) >= asDouble(b)
+      case "==" => (a, b) => asDouble(a) == asDouble(b)
+      case "!=" => (a, b) => asDouble(a) != asDouble(b)
+      case _ => unsupported(tree)
+    }
+  }
+}
+
+object ExpressionInterpreter {
+  /**
+   * Thrown when interpreter was unable to evaluate the expression for reasons other than an exception thrown
+   * by invoked code. Evaluation may be repeated (e.g. by compiled code) only when it's `repeatable`, i.e. when
+   * the failure happened before anything with possible side effects was invoked.
+   */
+  final class InterpreterFailure(cause: Throwable, val repeatable: Boolean) extends Exception(cause) with NoStackTrace
+
+  private final val IntRank = 0
+  private final val LongRank = 1
+  private final val FloatRank = 2
+  private final val DoubleRank = 3
+
+  private def asBoolean(value: Any): Boolean =
+    value.asInstanceOf[java.lang.Boolean].booleanValue
+
+  private def asInt(value: Any): Int = value match {
+    case c: Character => c.charValue
+    case n: Number => n.intValue
+    case _ => throw new ClassCastException(s"$value is not a number")
+  }
+
+  private def asLong(value: Any): Long = value match {
+    case c: Character => c.charValue.toLong
+    case n: Number => n.longValue
+    case _ => throw new ClassCastException(s"$value is not a number")
+  }
+
+  private def asFloat(value: Any): Float = value match {
+    case c: Character => c.charValue.toFloat
+    case n: Number => n.floatValue
+    case _ => throw new ClassCastException(s"$value is not a number")
+  }
+
+  private def asDouble(value: Any): Double = value match {
+    case c: Character => c.charValue.toDouble
+    case n: Number => n.doubleValue
+    case _ => throw new ClassCastException(s"$value is not a number")
+  }
+
+  private def boxedJavaClass(clazz: Class[_]): Class[_] =
+    if (clazz == Void.TYPE) classOf[BoxedUnit]
+    else if (clazz.isPrimitive) JArray.get(JArray.newInstance(clazz, 1), 0).getClass
+    else clazz
+
+  private def makeAccessible(member: Member): Unit = member match {
+    case accessible: AccessibleObject =>
+      try accessible.setAccessible(true) catch {
+        case _: RuntimeException =>
+      }
+    case _ =>
+  }
+}
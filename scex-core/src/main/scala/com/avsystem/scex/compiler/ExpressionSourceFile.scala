@@ -11,10 +11,35 @@ class ExpressionSourceFile(
   val exprDef: ExpressionDef,
   sourceName: String,
   val code: String,
-  startOffset: Int) extends ScexSourceFile(sourceName, code, shared = false) {
+  startOffset: Int,
+  endOffset: Int) extends ScexSourceFile(sourceName, code, shared = false) {
+
+  def this(exprDef: ExpressionDef, sourceName: String, code: String, startOffset: Int) =
+    this(exprDef, sourceName, code, startOffset, startOffset + exprDef.expression.length)
 
   require(exprDef != null, "Expression definition cannot be null")
 
-  val expressionPos = Position.range(this, startOffset, startOffset, startOffset + exprDef.expression.length)
+  val expressionPos = Position.range(this, startOffset, startOffset, endOffset)
   lazy val bareSource = new ScexSourceFile(sourceName, exprDef.originalExpression, shared = false)
 }
+
+/**
+ * Source of a class which evaluates all arguments of a string template at once
+ * (see [[CodeGeneration.generateFusedTemplateClass]]). Compilation errors are reported against the argument
+ * in which they occurred.
+ */
+class FusedTemplateSourceFile(
+  exprDef: ExpressionDef,
+  sourceName: String,
+  code: String,
+  argDefs: List[ExpressionDef],
+  argOffsets: List[Int]) extends ExpressionSourceFile(exprDef, sourceName, code,
+  argOffsets.headOption.getOrElse(0), (argDefs zip argOffsets).lastOption.fold(0) { case (d, o) => o + d.expression.length }) {
+
+  final class Argument(val exprDef: ExpressionDef, offset: Int) {
+    val expressionPos = Position.range(FusedTemplateSourceFile.this, offset, offset, offset + exprDef.expression.length)
+    lazy val bareSource = new ScexSourceFile(sourceName, exprDef.originalExpression, shared = false)
+  }
+
+  val arguments: List[Argument] = (argDefs zip argOffsets).map { case (argDef, offset) => new Argument(argDef, offset) }
+}
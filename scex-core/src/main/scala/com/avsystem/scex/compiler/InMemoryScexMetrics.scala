@@ -0,0 +1,91 @@
+package com.avsystem.scex
+package compiler
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAdder
+
+import com.avsystem.commons.jiop.JavaInterop._
+import com.avsystem.scex.compiler.InMemoryScexMetrics._
+
+/**
+ * Reference implementation of [[ScexMetrics]] which aggregates all events in memory. Its counters and histograms
+ * may be periodically read and exported to some monitoring system.
+ */
+final class InMemoryScexMetrics extends ScexMetrics {
+
+  private val compilationHistograms = SourceKind.values.map(_ => new Histogram)
+  private val reusedCounters = SourceKind.values.map(_ => new LongAdder)
+  private val recompiledCounters = SourceKind.values.map(_ => new LongAdder)
+  private val cacheCounters = new ConcurrentHashMap[String, CacheCounters]
+  private val resetCounter = new LongAdder
+
+  val batchCompilationTime = new Histogram
+  val globalLockWaitTime = new Histogram
+  val compilerInstanceWaitTime = new Histogram
+  val presentationInstanceWaitTime = new Histogram
+
+  private def counters(cacheName: String): CacheCounters =
+    cacheCounters.computeIfAbsent(cacheName, _ => new CacheCounters)
+
+  override def compiled(kind: SourceKind, nanos: Long): Unit = compilationHistograms(kind.ordinal).record(nanos)
+  override def batchCompiled(sourceCount: Int, nanos: Long): Unit = batchCompilationTime.record(nanos)
+  override def globalLockAcquired(waitNanos: Long): Unit = globalLockWaitTime.record(waitNanos)
+  override def compilerInstanceAcquired(waitNanos: Long): Unit = compilerInstanceWaitTime.record(waitNanos)
+  override def presentationInstanceAcquired(waitNanos: Long): Unit = presentationInstanceWaitTime.record(waitNanos)
+  override def cacheHit(cacheName: String): Unit = counters(cacheName).hits.increment()
+  override def cacheMiss(cacheName: String): Unit = counters(cacheName).misses.increment()
+  override def cacheEviction(cacheName: String): Unit = counters(cacheName).evictions.increment()
+  override def classfilesReused(kind: SourceKind): Unit = reusedCounters(kind.ordinal).increment()
+  override def classfilesRecompiled(kind: SourceKind): Unit = recompiledCounters(kind.ordinal).increment()
+  override def compilerReset(): Unit = resetCounter.increment()
+
+  def compilationTime(kind: SourceKind): Histogram = compilationHistograms(kind.ordinal)
+  def classfilesReusedCount(kind: SourceKind): Long = reusedCounters(kind.ordinal).sum
+  def classfilesRecompiledCount(kind: SourceKind): Long = recompiledCounters(kind.ordinal).sum
+  def resetCount: Long = resetCounter.sum
+
+  def cacheNames: Set[String] = cacheCounters.keySet.asScala.toSet
+  def cacheHitCount(cacheName: String): Long = counters(cacheName).hits.sum
+  def cacheMissCount(cacheName: String): Long = counters(cacheName).misses.sum
+  def cacheEvictionCount(cacheName: String): Long = counters(cacheName).evictions.sum
+}
+
+object InMemoryScexMetrics {
+  private final class CacheCounters {
+    val hits = new LongAdder
+    val misses = new LongAdder
+    val evictions = new LongAdder
+  }
+
+  final val BucketCount = 64
+
+  /**
+   * Histogram of durations (in nanoseconds) with exponential buckets - bucket `i` counts values `v` such that
+   * `2^(i-1) <= v < 2^i` (bucket 0 counts zeros).
+   */
+  final class Histogram {
+    private val buckets = Array.fill(BucketCount)(new LongAdder)
+    private val total = new LongAdder
+
+    def record(nanos: Long): Unit = {
+      buckets(BucketCount - java.lang.Long.numberOfLeadingZeros(nanos max 0L)).increment()
+      total.add(nanos)
+    }
+
+    def count: Long = buckets.iterator.map(_.sum).sum
+    def totalNanos: Long = total.sum
+    def bucketCounts: IndexedSeq[Long] = buckets.toIndexedSeq.map(_.sum)
+
+    /**
+     * Returns upper bound of the bucket containing given percentile (between 0 and 1) of recorded values.
+     */
+    def percentileUpperBound(percentile: Double): Long = {
+      val counts = bucketCounts
+      val threshold = math.ceil(counts.sum * percentile).toLong max 1L
+      val bucket = counts.iterator.scanLeft(0L)(_ + _).drop(1).indexWhere(_ >= threshold)
+      if (bucket < 0) 0L
+      else if (bucket >= BucketCount - 1) Long.MaxValue
+      else 1L << bucket
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package com.avsystem.scex
+package compiler
+
+import java.lang.management.{ManagementFactory, MemoryType}
+import java.time.Duration
+
+import com.avsystem.commons.jiop.JavaInterop._
+
+/**
+ * Inputs of [[ResetPolicy]], also useful as metrics. This is a live view - every value is computed when accessed.
+ */
+trait CompilerStats {
+  /**
+   * Number of compiled source files since last reset.
+   */
+  def compilationCount: Int
+
+  def nanosSinceReset: Long
+
+  /**
+   * Number of symbols created by the Scala compiler since last reset (largest one among pooled compilers).
+   * Symbols of expressions are forgotten after compilation, but their number still reflects the growth of compiler's
+   * internal state.
+   */
+  def symbolCount: Int
+
+  /**
+   * Number of classloaders retained since last reset - the shared one, expression generations and classloaders
+   * of individual expressions (when generations are disabled) or of other non-shared sources. Temporary classloaders
+   * into which expressions are compiled before being packed into generations are not counted. Classloaders
+   * of expressions which are still cached (or referenced by the application) are retained even after reset.
+   */
+  def classLoaderCount: Int
+
+  /**
+   * Total heap usage right after the last garbage collection, as reported by heap memory pools.
+   */
+  def heapUsedAfterGc: Long
+
+  def heapMax: Long
+}
+
+object CompilerStats {
+  def currentHeapUsedAfterGc: Long =
+    ManagementFactory.getMemoryPoolMXBeans.asScala.iterator
+      .filter(_.getType == MemoryType.HEAP)
+      .flatMap(pool => Option(pool.getCollectionUsage))
+      .map(_.getUsed).sum
+}
+
+/**
+ * Decides when the compiler should be reset in order to get rid of its accumulated internal state. It is consulted
+ * after every compilation, so it should be cheap. Registered with [[ScexCompiler.setResetPolicy]], by default the
+ * compiler is reset after the number of compilations configured with `-SCEXreset-after-count`.
+ */
+trait ResetPolicy {
+  def shouldReset(stats: CompilerStats): Boolean
+}
+
+object ResetPolicy {
+  final case class AfterCount(count: Int) extends ResetPolicy {
+    def shouldReset(stats: CompilerStats): Boolean = stats.compilationCount > count
+  }
+
+  /**
+   * Resets the compiler periodically, as long as it compiled anything since the last reset.
+   */
+  final case class AfterTime(duration: Duration) extends ResetPolicy {
+    def shouldReset(stats: CompilerStats): Boolean =
+      stats.compilationCount > 0 && stats.nanosSinceReset > duration.toNanos
+  }
+
+  final case class AfterSymbolCount(count: Int) extends ResetPolicy {
+    def shouldReset(stats: CompilerStats): Boolean = stats.symbolCount > count
+  }
+
+  final case class AfterClassLoaderCount(count: Int) extends ResetPolicy {
+    def shouldReset(stats: CompilerStats): Boolean = stats.classLoaderCount > count
+  }
+
+  /**
+   * Resets the compiler when heap usage after GC exceeds given fraction of maximum heap size. At least
+   * `minCompilations` compilations since the last reset are required, so that the compiler isn't reset over and over
+   * when the heap is occupied by something else.
+   */
+  final case class HeapUsageAfterGc(maxFraction: Double, minCompilations: Int = 100) extends ResetPolicy {
+    def shouldReset(stats: CompilerStats): Boolean =
+      stats.compilationCount >= minCompilations && stats.heapUsedAfterGc > maxFraction * stats.heapMax
+  }
+
+  final case class AnyOf(policies: ResetPolicy*) extends ResetPolicy {
+    def shouldReset(stats: CompilerStats): Boolean = policies.exists(_.shouldReset(stats))
+  }
+}
@@ -1,17 +1,21 @@
 package com.avsystem.scex
 package compiler
 
-import java.util.concurrent.locks.ReentrantLock
+import java.util.concurrent.{ArrayBlockingQueue, CompletableFuture, ConcurrentHashMap, Executor, LinkedBlockingQueue, RejectedExecutionException, ThreadPoolExecutor, TimeUnit}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger}
+import java.util.concurrent.locks.ReentrantReadWriteLock
 import com.avsystem.commons.misc.TypeString
 import com.avsystem.scex.compiler.CodeGeneration._
 import com.avsystem.scex.compiler.ScexCompiler._
 import com.avsystem.scex.parsing.{EmptyPositionMapping, PositionMapping}
 import com.avsystem.scex.util.CommonUtils._
-import com.avsystem.scex.util.LoggingUtils
+import com.avsystem.scex.util.{LoggingUtils, NamingThreadFactory}
 import com.avsystem.scex.validation.{SymbolValidator, SyntaxValidator}
+import com.google.common.cache.RemovalListener
 import org.apache.commons.codec.digest.DigestUtils
 
-import scala.annotation.nowarn
+import scala.annotation.{nowarn, tailrec}
+import scala.collection.mutable
 import scala.collection.mutable.ListBuffer
 import scala.reflect.NameTransformer
 import scala.reflect.internal.util._
@@ -19,20 +23,36 @@ import scala.reflect.io.{AbstractFile, VirtualDirectory}
 import scala.tools.nsc.plugins.Plugin
 import scala.tools.nsc.reporters.FilteringReporter
 import scala.tools.nsc.{Global, Settings}
+import scala.util.control.NonFatal
 import scala.util.{Failure, Success, Try}
 
 trait ScexCompiler extends LoggingUtils {
 
   private val logger = createLogger[ScexCompiler]
 
-  private val lock = new ReentrantLock
+  // write lock is the "global" compiler lock, read lock is held while compiling on a pooled compiler instance
+  private val lock = new ReentrantReadWriteLock
 
+  /**
+   * Collects compilation errors. With `keepErrors`, errors survive [[reset]] and are discarded only by
+   * [[clearErrors]] - presentation compiler resets its reporter at the beginning of every background typechecking
+   * pass, which may start in the middle of a request (e.g. because another thread loaded a shared source).
+   */
   @nowarn("msg=deprecated")
-  class Reporter(val settings: Settings) extends FilteringReporter {
-    private val errorsBuilder = new ListBuffer[CompileError]
+  class Reporter(val settings: Settings, keepErrors: Boolean = false) extends FilteringReporter {
+    private val errorsBuilder = new ListBuffer[(SourceFile, CompileError)]
 
     def compileErrors(): List[CompileError] =
-      errorsBuilder.result()
+      errorsBuilder.iterator.map(_._2).toList
+
+    /**
+     * Errors reported for given source file, used when multiple sources are compiled in a single run.
+     * Errors without any source file are reported for all sources.
+     */
+    def compileErrors(source: SourceFile): List[CompileError] =
+      errorsBuilder.iterator.collect {
+        case (errorSource, error) if errorSource == source || errorSource == NoSourceFile => error
+      }.toList
 
     def includes(pos1: Position, pos2: Position): Boolean =
       pos1.start <= pos2.start && pos1.end > pos2.end
@@ -57,76 +77,361 @@ trait ScexCompiler extends LoggingUtils {
         pos.withPoint(mapping(pos.point))
       else pos
 
+    def originalPosition(pos: Position, exprPos: Position, exprDef: ExpressionDef, bareSource: SourceFile): Position =
+      mapPosition(pos.withShift(-exprPos.start), exprDef.positionMapping.reverse).withSource(bareSource)
+
     override def doReport(pos: Position, msg: String, severity: Severity): Unit =
       if (severity == ERROR) {
         val actualPos = pos.source match {
+          case source: FusedTemplateSourceFile =>
+            source.arguments.find(arg => includes(arg.expressionPos, pos))
+              .fold(pos)(arg => originalPosition(pos, arg.expressionPos, arg.exprDef, arg.bareSource))
           case source: ExpressionSourceFile if includes(source.expressionPos, pos) =>
-            val positionMapping = source.exprDef.positionMapping.reverse
-            mapPosition(pos.withShift(-source.expressionPos.start), positionMapping).withSource(source.bareSource)
+            originalPosition(pos, source.expressionPos, source.exprDef, source.bareSource)
           case _ => pos
         }
-        errorsBuilder += CompileError(lineContent(actualPos), if (actualPos.isDefined) actualPos.column else 1, msg)
+        errorsBuilder += ((pos.source, CompileError(lineContent(actualPos), if (actualPos.isDefined) actualPos.column else 1, msg)))
       }
 
     def displayPrompt(): Unit = {}
 
+    def clearErrors(): Unit =
+      errorsBuilder.clear()
+
     override def reset(): Unit = {
       super.reset()
-      errorsBuilder.clear()
+      if (!keepErrors) {
+        clearErrors()
+      }
     }
   }
 
   protected class ScexClassLoader(val classfileDirectory: AbstractFile, parent: ClassLoader)
     extends AbstractFileClassLoader(classfileDirectory, parent)
 
+  /**
+   * Classloader shared by up to `-SCEXexpression-generation-size` expression sources. Every expression is still
+   * compiled into its own classfile directory, which is then copied into the generation. Once the generation is full
+   * and most of its sources have been released (i.e. no cached expression uses them anymore), it is dropped -
+   * remaining expressions should be moved out of it with [[migrateExpression]], so that the whole generation can be
+   * unloaded.
+   */
+  protected class ExpressionGeneration(parent: ScexClassLoader, val capacity: Int)
+    extends ScexClassLoader(new VirtualDirectory("(scex_generation)", None), parent) {
+
+    // number of unreleased expressions using every source added to this generation, guarded by this
+    private val references = new mutable.HashMap[String, Int]
+    // guarded by this
+    private var releasedSources = 0
+    private var dropped = false
+
+    /**
+     * Copies classfiles and signature file of given source from another classfile directory, unless the source has
+     * already been added (it may have been compiled again after being evicted). Returns false when the source is new
+     * and the generation is already full.
+     */
+    def add(sourceName: String, from: AbstractFile): Boolean = synchronized {
+      def copy(file: AbstractFile, to: AbstractFile): Unit =
+        if (file.isDirectory) {
+          val dir = to.subdirectoryNamed(file.name)
+          file.iterator.foreach(copy(_, dir))
+        } else {
+          val os = to.fileNamed(file.name).output
+          try os.write(file.toByteArray) finally os.close()
+        }
+
+      references.get(sourceName) match {
+        case Some(count) =>
+          if (count == 0) {
+            releasedSources -= 1
+          }
+          references(sourceName) = count + 1
+          true
+        case None if references.size < capacity =>
+          Option(from.lookupName(sourceName, directory = true)).foreach(copy(_, classfileDirectory))
+          Option(from.lookupName(sourceName + ".sig", directory = false)).foreach(copy(_, classfileDirectory))
+          references(sourceName) = 1
+          true
+        case None =>
+          false
+      }
+    }
+
+    /**
+     * Marks one of the expressions using given source as no longer used. Returns true when this caused
+     * the generation to be dropped, which happens only once.
+     */
+    def release(sourceName: String): Boolean = synchronized {
+      references.get(sourceName) match {
+        case Some(count) if count > 0 =>
+          references(sourceName) = count - 1
+          if (count == 1) {
+            releasedSources += 1
+          }
+        case _ =>
+      }
+      !dropped && references.size >= capacity && releasedSources * 2 > capacity && {
+        dropped = true
+        true
+      }
+    }
+  }
+
+  /**
+   * Output directory used when multiple expressions are compiled in a single compiler run. Every expression still has
+   * its own classloader and classfile directory - files are routed into them by source file name, which is also
+   * the name of the top-level package of every expression.
+   */
+  protected class BatchOutputDirectory(outputDirectories: Map[String, AbstractFile])
+    extends VirtualDirectory("(scex_batch)", None) {
+
+    private def route(name: String): Option[AbstractFile] =
+      outputDirectories.get(name.takeWhile(_ != '.'))
+
+    override def lookupName(name: String, directory: Boolean): AbstractFile =
+      route(name).map(_.lookupName(name, directory)).getOrElse(super.lookupName(name, directory))
+
+    override def fileNamed(name: String): AbstractFile =
+      route(name).map(_.fileNamed(name)).getOrElse(super.fileNamed(name))
+
+    override def subdirectoryNamed(name: String): AbstractFile =
+      route(name).map(_.subdirectoryNamed(name)).getOrElse(super.subdirectoryNamed(name))
+  }
+
   protected type RawExpression = Expression[ExpressionContext[_, _], Any]
 
+  @volatile private var _metrics: ScexMetrics = ScexMetrics.NoOp
+
+  def metrics: ScexMetrics = _metrics
+
+  /**
+   * Registers listener of compilation, locking, caching and reset events.
+   */
+  def setMetrics(metrics: ScexMetrics): Unit =
+    _metrics = metrics
+
+  @volatile private var _resetPolicy: ResetPolicy = _
+
+  def resetPolicy: ResetPolicy =
+    Option(_resetPolicy).getOrElse(ResetPolicy.AfterCount(settings.resetAfterCount.value))
+
+  /**
+   * Replaces the default reset policy, which resets the compiler after number of compilations configured with
+   * `-SCEXreset-after-count`.
+   */
+  def setResetPolicy(resetPolicy: ResetPolicy): Unit =
+    _resetPolicy = resetPolicy
+
+  /**
+   * Cache removal listener which reports evictions of entries from cache with given name.
+   */
+  protected final def evictionListener[K, V](cacheName: String): RemovalListener[K, V] =
+    notification => if (notification.wasEvicted) metrics.cacheEviction(cacheName)
+
   protected def underLock[T](code: => T): T = {
     ensureSetup()
+    val reentrant = lock.isWriteLockedByCurrentThread
+    val startTime = System.nanoTime
     try {
-      lock.lock()
+      lock.writeLock.lock()
+      if (!reentrant) {
+        metrics.globalLockAcquired(System.nanoTime - startTime)
+      }
       code
     } finally {
-      lock.unlock()
+      lock.writeLock.unlock()
     }
   }
 
+  /**
+   * Runs given code with a free compiler instance taken from the pool. Only the read lock is held, so with
+   * compiler pool size greater than one, multiple threads may compile their sources in parallel.
+   */
+  private def withPooledInstance[T](code: CompilerInstance => T): T = {
+    ensureSetup()
+    val startTime = System.nanoTime
+    try {
+      lock.readLock.lock()
+      val instance = freeInstances.take()
+      metrics.compilerInstanceAcquired(System.nanoTime - startTime)
+      try code(instance) finally {
+        freeInstances.put(instance)
+      }
+    } finally {
+      lock.readLock.unlock()
+    }
+  }
+
+  /**
+   * Runs given code with the Scala compiler of a free instance taken from the pool.
+   */
+  protected final def withPooledGlobal[T](code: ScexGlobal => T): T =
+    withPooledInstance(instance => code(instance.global))
+
   val settings: ScexSettings
   protected def compilerSettings: Settings = settings
 
+  /**
+   * Independent Scala compiler with its own reporter. Shared sources (profiles, utils, adapters, etc.) are compiled
+   * by every instance so that all of them know about shared symbols, but only the first one writes classfiles
+   * into the shared class loader.
+   */
+  private class CompilerInstance(settings: Settings, sharedClassLoader: ScexClassLoader) {
+    val reporter = new Reporter(settings)
+    val global: ScexGlobal = new Global(settings, reporter) with ScexGlobal {
+      override def loadAdditionalPlugins(): List[Plugin] = loadCompilerPlugins(this)
+
+      def classLoader: ScexClassLoader = sharedClassLoader
+    }
+  }
+
   @volatile private var initialized = false
-  private var global: ScexGlobal = _
-  private var reporter: Reporter = _
+  private var instances: Vector[CompilerInstance] = _
+  private var freeInstances: ArrayBlockingQueue[CompilerInstance] = _
 
   /**
    * Classloader for stuff that will be never reclaimed after compilation -
    * profiles, validators, custom util classes, etc.
    */
   private var sharedClassLoader: ScexClassLoader = _
-  private var compilationCount: Int = _
+  private val compilationCount = new AtomicInteger
+  private val classLoaderCount = new AtomicInteger
+  @volatile private var lastResetNanos = System.nanoTime
+
+  private object currentStats extends CompilerStats {
+    def compilationCount: Int = ScexCompiler.this.compilationCount.get
+    def nanosSinceReset: Long = System.nanoTime - lastResetNanos
+    def symbolCount: Int = Option(instances).fold(0)(_.iterator.map(_.global.getCurrentSymbolIdCount).max)
+    def classLoaderCount: Int = ScexCompiler.this.classLoaderCount.get
+    def heapUsedAfterGc: Long = CompilerStats.currentHeapUsedAfterGc
+    def heapMax: Long = Runtime.getRuntime.maxMemory
+  }
+
+  /**
+   * Live view of inputs of [[ResetPolicy]], which may be also exported as metrics.
+   */
+  def compilerStats: CompilerStats = currentStats
+
+  private def resetCounters(): Unit = {
+    compilationCount.set(0)
+    // shared classloader
+    classLoaderCount.set(1)
+    lastResetNanos = System.nanoTime
+  }
+
+  // successfully compiled shared sources, in order of compilation - replayed by compilers prepared in background
+  private val sharedSources = new ListBuffer[ScexSourceFile]
+  // incremented by every full reset, so that compilers prepared in background before it are never swapped in
+  @volatile private var generation = 0
+  private val backgroundResetInProgress = new AtomicBoolean
+
+  private def newSharedClassLoader(): ScexClassLoader =
+    new ScexClassLoader(new VirtualDirectory("(scex_shared)", None), getClass.getClassLoader)
+
+  // every instance needs its own settings because output directory is set on them before each compilation
+  private def newInstance(settings: Settings, sharedClassLoader: ScexClassLoader): CompilerInstance = {
+    val instanceSettings = new ScexSettings
+    settings.copyInto(instanceSettings)
+    new CompilerInstance(instanceSettings, sharedClassLoader)
+  }
 
   protected def setup(): Unit = {
-    logger.info("Initializing Scala compiler")
-    compilationCount = 0
-    reporter = new Reporter(compilerSettings)
-    global = new Global(compilerSettings, reporter) with ScexGlobal {
-      override def loadAdditionalPlugins(): List[Plugin] = loadCompilerPlugins(this)
+    val poolSize = settings.compilerPoolSize.value
+    logger.info(if (poolSize > 1) s"Initializing pool of $poolSize Scala compilers" else "Initializing Scala compiler")
+    resetCounters()
+    sharedSources.clear()
+    generation += 1
+    sharedClassLoader = newSharedClassLoader()
+    instances = Vector.tabulate(poolSize) { i =>
+      if (i == 0) new CompilerInstance(compilerSettings, sharedClassLoader)
+      else newInstance(compilerSettings, sharedClassLoader)
+    }
+    freeInstances = new ArrayBlockingQueue(poolSize)
+    instances.foreach(freeInstances.put)
+  }
+
+  /**
+   * Set of compilers prepared in background (without holding compiler lock) to replace the current ones.
+   * Stackable traits that hold their own compilers or compiler state wrap it in [[createReplacement]].
+   */
+  protected trait CompilerReplacement {
+    def sharedClassLoader: ScexClassLoader
+    /**
+     * Compiles shared source which has already been successfully compiled by the current compilers.
+     */
+    def compileShared(sourceFile: ScexSourceFile): Unit
+    /**
+     * Swaps in the replacement, called under compiler lock.
+     */
+    def install(): Unit
+    /**
+     * Releases the replacement when it can't be used, e.g. because the compiler has been reset in the meantime.
+     */
+    def discard(): Unit
+  }
 
-      def classLoader: ScexClassLoader = getSharedClassLoader
+  private class PooledCompilersReplacement extends CompilerReplacement {
+    val sharedClassLoader: ScexClassLoader = newSharedClassLoader()
+    private val newInstances = Vector.fill(settings.compilerPoolSize.value)(newInstance(compilerSettings, sharedClassLoader))
+
+    def compileShared(sourceFile: ScexSourceFile): Unit = {
+      val errors = compileWith(newInstances.head, sourceFile, sharedClassLoader.classfileDirectory)
+      if (errors.nonEmpty) {
+        throw CompilationFailedException(new String(sourceFile.content), errors)
+      }
+      newInstances.tail.foreach(compileWith(_, sourceFile, new VirtualDirectory("(scex_discarded)", None)))
+    }
+
+    def install(): Unit = {
+      resetCounters()
+      ScexCompiler.this.sharedClassLoader = sharedClassLoader
+      instances = newInstances
+      freeInstances = new ArrayBlockingQueue(newInstances.size)
+      newInstances.foreach(freeInstances.put)
+    }
+
+    def discard(): Unit = ()
+  }
+
+  protected def createReplacement(): CompilerReplacement =
+    new PooledCompilersReplacement
+
+  /**
+   * Prepares new compilers which know all the shared sources known to the current ones and swaps them in, without
+   * invalidating any caches. Shared sources compiled while the replacement was being prepared are compiled by it
+   * under compiler lock, right before the swap.
+   */
+  private def replaceCompilers(): Unit = {
+    val startTime = System.nanoTime
+    val (replacedGeneration, sourcesToReplay) = underLock((generation, sharedSources.toList))
+    val replacement = createReplacement()
+    try {
+      sourcesToReplay.foreach(replacement.compileShared)
+      underLock {
+        if (generation == replacedGeneration) {
+          sharedSources.iterator.drop(sourcesToReplay.size).foreach(replacement.compileShared)
+          replacement.install()
+          logger.info(s"Compilers replaced in background in ${(System.nanoTime - startTime) / 1000000}ms")
+          metrics.compilerReset()
+        } else replacement.discard()
+      }
+    } catch {
+      case NonFatal(cause) =>
+        replacement.discard()
+        throw cause
     }
-    sharedClassLoader = new ScexClassLoader(new VirtualDirectory("(scex_shared)", None), getClass.getClassLoader)
   }
 
   protected final def ensureSetup(): Unit = {
     if (!initialized) {
       try {
-        lock.lock()
+        lock.writeLock.lock()
         if (!initialized) {
           setup()
           initialized = true
         }
       } finally {
-        lock.unlock()
+        lock.writeLock.unlock()
       }
     }
   }
@@ -160,7 +465,7 @@ trait ScexCompiler extends LoggingUtils {
 
   protected def compileProfileObject(profile: ExpressionProfile): Try[Option[String]] = underLock {
     val classes = profile.symbolValidator.referencedJavaClasses.toVector.sortBy(_.getName)
-    val adapterNames = compileJavaGetterAdapters(profile, "Adapters_", classes, full = false).get
+    val adapterNames = compileJavaGetterAdapters(profile, AdaptersSourceNamePrefix, classes, full = false).get
     val adapters = (classes zip adapterNames).collect {
       case (clazz, Some(adapterName)) => (clazz, adapterName)
     }
@@ -199,7 +504,11 @@ trait ScexCompiler extends LoggingUtils {
       Try(Some(result))
     }
 
-  protected final def expressionCode(exprDef: ExpressionDef, noMacroProcessing: Boolean = false): (String, String, Int) = {
+  /**
+   * Compiles everything that code of given expression depends on: full getter adapter of root object class,
+   * profile object and expression utils. Returns names of full adapter class and packages of profile and utils objects.
+   */
+  private def expressionDependencies(exprDef: ExpressionDef): (Option[String], Option[String], Option[String]) = {
     val profile = exprDef.profile
     val rootObjectClass = exprDef.rootObjectClass
 
@@ -212,6 +521,11 @@ trait ScexCompiler extends LoggingUtils {
 
     val profileObjectPkg = compileProfileObject(profile).get
     val utilsObjectPkg = compileExpressionUtils(profile.expressionUtils).get
+    (fullAdapterClassNameOpt, profileObjectPkg, utilsObjectPkg)
+  }
+
+  protected final def expressionCode(exprDef: ExpressionDef, noMacroProcessing: Boolean = false): (String, String, Int) = {
+    val (fullAdapterClassNameOpt, profileObjectPkg, utilsObjectPkg) = expressionDependencies(exprDef)
     val (expressionCode, offset) =
       generateExpressionClass(exprDef, fullAdapterClassNameOpt, profileObjectPkg, utilsObjectPkg, noMacroProcessing)
     val pkgName = ExpressionPkgPrefix + DigestUtils.md5Hex(expressionCode)
@@ -220,10 +534,10 @@ trait ScexCompiler extends LoggingUtils {
   }
 
   protected final def withGlobal[T](code: ScexGlobal => T): T = underLock {
-    reporter.reset()
-    val global = this.global
-    val result = try code(global) finally {
-      reporter.reset()
+    val instance = instances.head
+    instance.reporter.reset()
+    val result = try code(instance.global) finally {
+      instance.reporter.reset()
     }
     result
   }
@@ -234,87 +548,430 @@ trait ScexCompiler extends LoggingUtils {
   protected def createNonSharedClassLoader(sourceFile: ScexSourceFile): ScexClassLoader =
     new ScexClassLoader(new VirtualDirectory(sourceFile.file.name, None), getSharedClassLoader)
 
+  private val generationLock = new AnyRef
+  // guarded by generationLock
+  private var currentGeneration: ExpressionGeneration = _
+
+  /**
+   * Adds classes of given source to the current generation, starting a new one when the current one is full or was
+   * created for a different shared classloader (i.e. before the compiler was reset).
+   */
+  private def addToGeneration(sourceName: String, from: ScexClassLoader, parent: ScexClassLoader): ExpressionGeneration =
+    generationLock.synchronized {
+      def add(generation: ExpressionGeneration) =
+        from.synchronized(generation.add(sourceName, from.classfileDirectory))
+
+      val current = currentGeneration
+      if (current != null && (current.getParent eq parent) && add(current)) current
+      else {
+        val generation = new ExpressionGeneration(parent, settings.expressionGenerationSize.value)
+        classLoaderCount.incrementAndGet()
+        add(generation)
+        currentGeneration = generation
+        generation
+      }
+    }
+
+  /**
+   * Classloader from which successfully compiled non-shared source should be loaded. Classloaders into which
+   * expressions were compiled before being packed into a generation are discarded, so they're not counted
+   * in [[CompilerStats.classLoaderCount]].
+   */
+  private def loadingClassLoader(sourceFile: ScexSourceFile, compiledInto: ScexClassLoader): ScexClassLoader =
+    (sourceFile, compiledInto.getParent) match {
+      case (_: StandaloneExpressionSourceFile, _) =>
+        classLoaderCount.incrementAndGet()
+        compiledInto
+      // the compiler may have been reset right after compilation, so the generation must have the same parent
+      // as the classloader the source was compiled against, not necessarily the current shared classloader
+      case (_: ExpressionSourceFile, sharedClassLoader: ScexClassLoader) if settings.expressionGenerationSize.value > 0 =>
+        addToGeneration(sourceFile.file.name, compiledInto, sharedClassLoader)
+      case _ =>
+        classLoaderCount.incrementAndGet()
+        compiledInto
+    }
+
+  /**
+   * Moves expression out of a dropped [[ExpressionGeneration]] into the current one, without recompiling it.
+   * Returns `None` when the expression doesn't belong to any generation or when it can't be migrated because
+   * the compiler has been reset since it was compiled - such expression should be compiled again.
+   */
+  protected final def migrateExpression(expr: RawExpression): Option[RawExpression] = expr match {
+    case expr: AbstractExpression[_, _] => expr.getClass.getClassLoader match {
+      case generation: ExpressionGeneration if generation.getParent eq getSharedClassLoader =>
+        val pkgName = expr.sourceInfo.sourceName
+        val target = addToGeneration(pkgName, generation, getSharedClassLoader)
+        Some(instantiateExpression(target, pkgName, expr.debugInfo, expr.sourceInfo))
+      case _ => None
+    }
+    case _ => None
+  }
+
+  private def compileWith(instance: CompilerInstance, sourceFile: ScexSourceFile, outputDirectory: AbstractFile): List[CompileError] = {
+    instance.reporter.reset()
+    val global = instance.global
+    global.settings.outputDirs.setSingleOutput(outputDirectory)
+    runCompiler(global, sourceFile)
+    instance.reporter.compileErrors()
+  }
+
   protected def compile(sourceFile: ScexSourceFile): Either[ScexClassLoader, List[CompileError]] = {
-    compilationCount += 1
+    compilationCount.incrementAndGet()
 
     val classLoader = if (sourceFile.shared) getSharedClassLoader else createNonSharedClassLoader(sourceFile)
     val classfileDirectory = classLoader.classfileDirectory
 
-    reporter.reset()
-
     logger.debug(s"Compiling source file ${sourceFile.path} to $classfileDirectory:\n${new String(sourceFile.content)}")
 
     val startTime = System.nanoTime
 
     // ScexClassLoader loads classes while being locked on itself.
     // Compiler writes classes to this directory, so synchronization over it is needed during compilation.
-    // So, compilation is effectively under two locks: ScexCompiler's internal lock and ScexClassLoader, in that order.
+    // So, compilation is effectively under two locks: ScexCompiler's internal lock (or pooled compiler instance)
+    // and ScexClassLoader, in that order.
     // There should not be deadlocks, because nobody locks first over ScexClassLoader and then over ScexCompiler.
-    classLoader.synchronized {
-      val global = this.global
-      global.settings.outputDirs.setSingleOutput(classfileDirectory)
-      runCompiler(global, sourceFile)
-    }
+    val errors =
+      if (sourceFile.shared) underLock {
+        val errors = classLoader.synchronized(compileWith(instances.head, sourceFile, classfileDirectory))
+        if (errors.isEmpty) {
+          instances.tail.foreach(compileWith(_, sourceFile, new VirtualDirectory("(scex_discarded)", None)))
+          sharedSources += sourceFile
+        }
+        errors
+      } else withPooledInstance { instance =>
+        classLoader.synchronized(compileWith(instance, sourceFile, classfileDirectory))
+      }
 
     val duration = System.nanoTime - startTime
     logger.debug(s"Compilation took ${duration / 1000000}ms")
+    metrics.compiled(SourceKind.of(sourceFile), duration)
+
+    // shared sources are compiled in the middle of code generation of something that depends on them,
+    // resetting the compiler right after them would make it forget about them before they're used
+    if (!sourceFile.shared) {
+      resetIfNeeded()
+    }
+
+    if (errors.isEmpty) Left(if (sourceFile.shared) classLoader else loadingClassLoader(sourceFile, classLoader))
+    else Right(errors)
+  }
+
+  private def resetIfNeeded(): Unit =
+    if (resetPolicy.shouldReset(currentStats)) {
+      if (settings.backgroundReset.value) {
+        if (backgroundResetInProgress.compareAndSet(false, true)) {
+          CompletableFuture.runAsync(() => replaceCompilers(), compilationExecutor).whenComplete { (_, cause) =>
+            backgroundResetInProgress.set(false)
+            if (cause != null) {
+              logger.error("Failed to replace compilers in background", cause)
+            }
+          }
+        }
+      } else underLock {
+        // some other thread may have already reset the compiler while we were waiting for the lock
+        if (resetPolicy.shouldReset(currentStats)) {
+          reset()
+        }
+      }
+    }
+
+  /**
+   * Compiles multiple non-shared sources in a single compiler run, which avoids paying for compiler warm-up
+   * separately for every source. Every source is still compiled into its own classloader. When some of the sources
+   * fail to compile, the remaining ones are compiled again, because the compiler does not generate any bytecode
+   * for a run that reported errors.
+   */
+  protected def compileBatch(sourceFiles: Seq[ScexSourceFile]): Seq[Either[ScexClassLoader, List[CompileError]]] = {
+    require(sourceFiles.forall(!_.shared), "Only non-shared sources can be compiled in a batch")
+    compilationCount.addAndGet(sourceFiles.size)
+
+    val classLoaders = sourceFiles.iterator.map(sf => (sf.file.name, createNonSharedClassLoader(sf))).toMap
+    val outputDirectory = new BatchOutputDirectory(classLoaders.map { case (name, cl) => (name, cl.classfileDirectory) })
+
+    logger.debug(s"Compiling ${sourceFiles.size} source files in a single batch")
+
+    val startTime = System.nanoTime
 
-    val errors = reporter.compileErrors()
+    // see compile(sourceFile) for explanation of classloader locking, classloaders are always locked in the same order
+    def synchronizedOn[T](classLoaders: List[ScexClassLoader])(code: => T): T = classLoaders match {
+      case head :: tail => head.synchronized(synchronizedOn(tail)(code))
+      case Nil => code
+    }
 
-    if (compilationCount > settings.resetAfterCount.value) {
-      reset()
+    @tailrec def compileRemaining(
+      remaining: List[ScexSourceFile], errorsAcc: Map[String, List[CompileError]]
+    ): Map[String, List[CompileError]] = {
+      val errors = withPooledInstance { instance =>
+        synchronizedOn(remaining.map(_.file.name).distinct.sorted.map(classLoaders)) {
+          instance.reporter.reset()
+          val global = instance.global
+          global.settings.outputDirs.setSingleOutput(outputDirectory)
+          runCompiler(global, remaining)
+          remaining.iterator.map(sf => (sf.file.name, instance.reporter.compileErrors(sf)))
+            .filter(_._2.nonEmpty).toMap
+        }
+      }
+      val succeeded = remaining.filterNot(sf => errors.contains(sf.file.name))
+      if (errors.isEmpty || succeeded.isEmpty) errorsAcc ++ errors
+      else compileRemaining(succeeded, errorsAcc ++ errors)
     }
 
-    if (errors.isEmpty) Left(classLoader) else Right(errors)
+    val errors = compileRemaining(sourceFiles.distinctBy(_.file.name).toList, Map.empty)
+
+    val duration = System.nanoTime - startTime
+    logger.debug(s"Batch compilation took ${duration / 1000000}ms")
+    metrics.batchCompiled(sourceFiles.size, duration)
+
+    resetIfNeeded()
+
+    sourceFiles.map { sf =>
+      errors.get(sf.file.name) match {
+        case Some(sourceErrors) => Right(sourceErrors)
+        case None => Left(loadingClassLoader(sf, classLoaders(sf.file.name)))
+      }
+    }
   }
 
-  protected def runCompiler(global: ScexGlobal, sourceFile: ScexSourceFile): Unit = {
+  protected def runCompiler(global: ScexGlobal, sourceFile: ScexSourceFile): Unit =
+    runCompiler(global, List(sourceFile))
+
+  protected def runCompiler(global: ScexGlobal, sourceFiles: List[ScexSourceFile]): Unit = {
     val run = new global.Run
-    run.compileSources(List(sourceFile))
-    if (!sourceFile.shared) {
-      global.forgetSymbolsFromSource(sourceFile.file)
+    run.compileSources(sourceFiles)
+    sourceFiles.foreach { sourceFile =>
+      if (!sourceFile.shared) {
+        global.forgetSymbolsFromSource(sourceFile.file)
+      }
     }
   }
 
   protected def preprocess(expression: String, template: Boolean): (String, PositionMapping) =
     (expression, EmptyPositionMapping)
 
-  protected def compileExpression(exprDef: ExpressionDef): Try[RawExpression] = underLock {
+  // compiled into its own classloader, which is never packed into an ExpressionGeneration
+  private class StandaloneExpressionSourceFile(exprDef: ExpressionDef, sourceName: String, code: String, startOffset: Int)
+    extends ExpressionSourceFile(exprDef, sourceName, code, startOffset)
+
+  private def expressionSourceFile(exprDef: ExpressionDef, standalone: Boolean = false): ExpressionSourceFile = {
+    // code generation itself doesn't need the global lock - compilation of profile, utils and adapters takes it
+    // when necessary, the expression itself is compiled by a pooled compiler instance
     val (pkgName, codeToCompile, offset) = expressionCode(exprDef)
-    // every single expression has its own classloader and virtual directory
-    val sourceFile = new ExpressionSourceFile(exprDef, pkgName, codeToCompile, offset)
-    val sourceInfo = new SourceInfo(pkgName, codeToCompile, offset, offset + exprDef.expression.length,
-      sourceFile.offsetToLine(offset) + 1, sourceFile.offsetToLine(offset + exprDef.expression.length - 1) + 2)
-    val debugInfo = new ExpressionDebugInfo(exprDef)
+    if (standalone) new StandaloneExpressionSourceFile(exprDef, pkgName, codeToCompile, offset)
+    else new ExpressionSourceFile(exprDef, pkgName, codeToCompile, offset)
+  }
+
+  private def fusedTemplateSourceFile(
+    exprDef: ExpressionDef, parts: List[String], argDefs: List[ExpressionDef]
+  ): FusedTemplateSourceFile = {
+    val (fullAdapterClassNameOpt, profileObjectPkg, utilsObjectPkg) = expressionDependencies(exprDef)
+    val (code, argOffsets) =
+      generateFusedTemplateClass(exprDef, parts, argDefs, fullAdapterClassNameOpt, profileObjectPkg, utilsObjectPkg)
+    val pkgName = ExpressionPkgPrefix + DigestUtils.md5Hex(code)
+    val (_, codeToCompile, offset) = wrapInSource(code, 0, pkgName)
+    new FusedTemplateSourceFile(exprDef, pkgName, codeToCompile, argDefs, argOffsets.map(_ + offset))
+  }
 
+  private def instantiateExpression(
+    classLoader: ClassLoader, pkgName: String, debugInfo: ExpressionDebugInfo, sourceInfo: SourceInfo
+  ): RawExpression = {
+    val clazz = Class.forName(s"$pkgName.$ExpressionClassName", true, classLoader)
+    clazz.getDeclaredClasses
+    // force loading of inner classes
+    clazz.getConstructor(classOf[ExpressionDebugInfo], classOf[SourceInfo])
+      .newInstance(debugInfo, sourceInfo)
+      .asInstanceOf[RawExpression]
+  }
+
+  private def loadExpression(
+    sourceFile: ExpressionSourceFile, result: Either[ScexClassLoader, List[CompileError]]
+  ): Try[RawExpression] = result match {
+    case Left(classLoader) =>
+      val exprDef = sourceFile.exprDef
+      val pkgName = sourceFile.file.name
+      val startOffset = sourceFile.expressionPos.start
+      val endOffset = sourceFile.expressionPos.end
+      val sourceInfo = new SourceInfo(pkgName, sourceFile.code, startOffset, endOffset,
+        sourceFile.offsetToLine(startOffset) + 1, sourceFile.offsetToLine(endOffset - 1) + 2)
+      val debugInfo = new ExpressionDebugInfo(exprDef)
+      Success(instantiateExpression(classLoader, pkgName, debugInfo, sourceInfo))
+
+    case Right(errors) =>
+      Failure(CompilationFailedException(sourceFile.code, errors))
+  }
+
+  /**
+   * Number of full resets so far. Results of compilations which started before a reset may refer to shared sources
+   * (profile objects, utils, adapters) which the current compiler doesn't know, so they must not be cached.
+   */
+  protected final def resetGeneration: Int = {
+    ensureSetup()
+    generation
+  }
+
+  /**
+   * Generates source file and compiles it. Code generation compiles shared sources which are forgotten when
+   * the compiler is fully reset, so when compilation fails after a reset which happened in the meantime, the code
+   * is generated and compiled again instead of reporting errors which were caused by the reset.
+   */
+  @tailrec private def generateAndCompile[S <: ExpressionSourceFile](generate: => S): Try[RawExpression] = {
+    val startGeneration = resetGeneration
+    val sourceFile = generate
     compile(sourceFile) match {
-      case Left(classLoader) =>
-        val clazz = Class.forName(s"$pkgName.$ExpressionClassName", true, classLoader)
-        clazz.getDeclaredClasses
-        // force loading of inner classes
-        val expr = clazz.getConstructor(classOf[ExpressionDebugInfo], classOf[SourceInfo])
-          .newInstance(debugInfo, sourceInfo)
-          .asInstanceOf[RawExpression]
-        Success(expr)
+      case Right(_) if generation != startGeneration => generateAndCompile(generate)
+      case result => loadExpression(sourceFile, result)
+    }
+  }
 
-      case Right(errors) =>
-        Failure(CompilationFailedException(codeToCompile, errors))
+  protected def compileExpression(exprDef: ExpressionDef): Try[RawExpression] =
+    // every single expression has its own classloader and virtual directory
+    generateAndCompile(expressionSourceFile(exprDef))
+
+  /**
+   * Compiles expression just like [[compileExpression]], but never packs it into an [[ExpressionGeneration]].
+   * Meant for compilations whose results are not held in expression cache, because slots of generations are only
+   * released when expressions are removed from it.
+   */
+  protected final def compileStandaloneExpression(exprDef: ExpressionDef): Try[RawExpression] =
+    generateAndCompile(expressionSourceFile(exprDef, standalone = true))
+
+  /**
+   * Compiles multiple expressions at once. Expressions are compiled in batches of size configured by
+   * `-SCEXbatch-compilation-size`, each batch in a single compiler run. Failure of one expression does not affect
+   * the others - results are returned in the same order as passed expression definitions.
+   */
+  protected def compileExpressions(exprDefs: Seq[ExpressionDef]): Seq[Try[RawExpression]] =
+    compileSourceFiles(exprDefs)(expressionSourceFile(_))
+
+  /**
+   * Compiles arguments of a string template into a single expression class which concatenates them with template
+   * parts, instead of compiling every argument as a separate expression.
+   */
+  protected final def compileFusedTemplate(
+    exprDef: ExpressionDef, parts: List[String], argDefs: List[ExpressionDef]
+  ): Try[RawExpression] =
+    generateAndCompile(fusedTemplateSourceFile(exprDef, parts, argDefs))
+
+  /**
+   * Batch version of [[compileFusedTemplate]], compiled just like [[compileExpressions]].
+   */
+  protected final def compileFusedTemplates(
+    templates: Seq[(ExpressionDef, List[String], List[ExpressionDef])]
+  ): Seq[Try[RawExpression]] =
+    compileSourceFiles(templates) { case (exprDef, parts, argDefs) => fusedTemplateSourceFile(exprDef, parts, argDefs) }
+
+  /**
+   * Batch version of [[generateAndCompile]] - sources which failed to compile after a reset which happened since
+   * their code was generated are generated and compiled again.
+   */
+  private def compileSourceFiles[D](defs: Seq[D])(generate: D => ExpressionSourceFile): Seq[Try[RawExpression]] = {
+    val startGeneration = resetGeneration
+    val sourceFiles = defs.map(d => Try(generate(d)))
+    val compiledSourceFiles = sourceFiles.collect({ case Success(sf) => sf })
+      .grouped(settings.batchCompilationSize.value)
+      .flatMap(batch => batch zip compileBatch(batch))
+      .toMap
+
+    val staleIndices =
+      if (generation == startGeneration) Vector.empty
+      else sourceFiles.indices.filter(i => sourceFiles(i).toOption.exists(sf => compiledSourceFiles(sf).isRight))
+    val recompiled =
+      if (staleIndices.isEmpty) Map.empty[Int, Try[RawExpression]]
+      else (staleIndices zip compileSourceFiles(staleIndices.map(defs))(generate)).toMap
+
+    sourceFiles.indices.map { i =>
+      recompiled.getOrElse(i, sourceFiles(i).flatMap(sf => loadExpression(sf, compiledSourceFiles(sf))))
     }
   }
 
   protected final def getCompiledExpression[C <: ExpressionContext[_, _], T](exprDef: ExpressionDef): Expression[C, T] =
     compileExpression(exprDef).get.asInstanceOf[Expression[C, T]]
 
-  def getCompiledExpression[C <: ExpressionContext[_, _], T](
+  // idle threads time out so that the executor never prevents the JVM from exiting
+  private lazy val asyncCompilationExecutor = {
+    val threads = settings.asyncCompilationThreads.value
+    val executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+      new LinkedBlockingQueue[Runnable], new NamingThreadFactory("scex-compilation"))
+    executor.allowCoreThreadTimeOut(true)
+    executor
+  }
+
+  protected final def compilationExecutor: Executor = asyncCompilationExecutor
+
+  private val inFlightCompilations = new ConcurrentHashMap[ExpressionDef, CompletableFuture[RawExpression]]
+
+  /**
+   * Returns result of expression compilation if it is available immediately, without compiling anything.
+   */
+  protected def compiledExpressionIfPresent(exprDef: ExpressionDef): Option[Try[RawExpression]] =
+    None
+
+  /**
+   * Replaces previously returned result of compilation of given expression, so that it's not returned anymore,
+   * e.g. when an expression which has only been interpreted so far turns out not to compile.
+   */
+  protected def replaceCompiledExpression(exprDef: ExpressionDef, previous: RawExpression, result: Try[RawExpression]): Unit =
+    ()
+
+  /**
+   * Compiles expression on a dedicated compilation executor. Concurrent requests for the same expression definition
+   * share a single compilation. Results which are available immediately (e.g. cached) are returned as already
+   * completed futures, without waiting in executor queue behind other compilations.
+   */
+  protected def compileExpressionAsync(exprDef: ExpressionDef): CompletableFuture[RawExpression] =
+    compiledExpressionIfPresent(exprDef) match {
+      case Some(Success(expr)) => CompletableFuture.completedFuture(expr)
+      case Some(Failure(cause)) => CompletableFuture.failedFuture(cause)
+      case None => compileExpressionInFlight(exprDef)
+    }
+
+  private def compileExpressionInFlight(exprDef: ExpressionDef): CompletableFuture[RawExpression] =
+    inFlightCompilations.get(exprDef) match {
+      case null =>
+        val promise = new CompletableFuture[RawExpression]
+        inFlightCompilations.putIfAbsent(exprDef, promise) match {
+          case null =>
+            def complete(result: Try[RawExpression]): Unit = {
+              inFlightCompilations.remove(exprDef, promise)
+              result match {
+                case Success(expr) => promise.complete(expr)
+                case Failure(cause) => promise.completeExceptionally(cause)
+              }
+            }
+            try asyncCompilationExecutor.execute(() => complete(try compileExpression(exprDef) catch {
+              case NonFatal(cause) => Failure(cause)
+            })) catch {
+              case e: RejectedExecutionException => complete(Failure(e))
+            }
+            promise
+          case inFlight => inFlight
+        }
+      case inFlight => inFlight
+    }
+
+  protected final def getCompiledExpressionAsync[C <: ExpressionContext[_, _], T](exprDef: ExpressionDef): CompletableFuture[Expression[C, T]] =
+    compileExpressionAsync(exprDef).thenApply(_.asInstanceOf[Expression[C, T]])
+
+  /**
+   * Compiles multiple expressions at once, which is considerably faster than compiling them one by one.
+   * Expression definitions may be created using [[expressionDef]].
+   */
+  def getCompiledExpressions[C <: ExpressionContext[_, _], T](exprDefs: Seq[ExpressionDef]): Seq[Try[Expression[C, T]]] =
+    compileExpressions(exprDefs).map(_.map(_.asInstanceOf[Expression[C, T]]))
+
+  /**
+   * Creates definition of an expression, which may be then compiled using [[getCompiledExpressions]].
+   */
+  def expressionDef[C <: ExpressionContext[_, _], T](
     profile: ExpressionProfile,
     expression: String,
     variableTypes: Map[String, TypeString[_]] = Map.empty,
     template: Boolean = true,
-    header: String = ""
+    header: String = "",
+    setter: Boolean = false
   )(implicit
     cti: ContextTypeInfo[C],
     tts: TypeString[T]
-  ): Expression[C, T] = {
+  ): ExpressionDef = {
 
     require(profile != null, "Profile cannot be null")
     require(expression != null, "Expression cannot be null")
@@ -322,10 +979,22 @@ trait ScexCompiler extends LoggingUtils {
 
     val strVariableTypes = variableTypes.iterator.map({ case (k, v) => (k, v.value) }).toMap
     val (actualExpression, positionMapping) = preprocess(expression, template)
-    getCompiledExpression(ExpressionDef(profile, template, setter = false, actualExpression,
-      header, cti.fullTypeString, tts.value, strVariableTypes)(expression, positionMapping, cti.rootObjectClass))
+    ExpressionDef(profile, template, setter, actualExpression,
+      header, cti.fullTypeString, tts.value, strVariableTypes)(expression, positionMapping, cti.rootObjectClass)
   }
 
+  def getCompiledExpression[C <: ExpressionContext[_, _], T](
+    profile: ExpressionProfile,
+    expression: String,
+    variableTypes: Map[String, TypeString[_]] = Map.empty,
+    template: Boolean = true,
+    header: String = ""
+  )(implicit
+    cti: ContextTypeInfo[C],
+    tts: TypeString[T]
+  ): Expression[C, T] =
+    getCompiledExpression(expressionDef[C, T](profile, expression, variableTypes, template, header))
+
   def getCompiledSetterExpression[C <: ExpressionContext[_, _], T](
     profile: ExpressionProfile,
     expression: String,
@@ -335,18 +1004,86 @@ trait ScexCompiler extends LoggingUtils {
   )(implicit
     cti: ContextTypeInfo[C],
     tts: TypeString[T]
-  ): Expression[C, Setter[T]] = {
+  ): Expression[C, Setter[T]] =
+    getCompiledExpression(expressionDef[C, T](profile, expression, variableTypes, template, header, setter = true))
 
-    require(profile != null, "Profile cannot be null")
-    require(expression != null, "Expression cannot be null")
-    require(header != null, "Header cannot be null")
+  /**
+   * Variants of [[getCompiledExpression]] for primitive result types, which evaluate without boxing the result.
+   */
+  def getCompiledBooleanExpression[C <: ExpressionContext[_, _]](
+    profile: ExpressionProfile,
+    expression: String,
+    variableTypes: Map[String, TypeString[_]] = Map.empty,
+    template: Boolean = true,
+    header: String = ""
+  )(implicit
+    cti: ContextTypeInfo[C]
+  ): BooleanExpression[C] =
+    BooleanExpression.of(getCompiledExpression[C, Boolean](profile, expression, variableTypes, template, header))
 
-    val strVariableTypes = variableTypes.iterator.map({ case (k, v) => (k, v.value) }).toMap
+  def getCompiledIntExpression[C <: ExpressionContext[_, _]](
+    profile: ExpressionProfile,
+    expression: String,
+    variableTypes: Map[String, TypeString[_]] = Map.empty,
+    template: Boolean = true,
+    header: String = ""
+  )(implicit
+    cti: ContextTypeInfo[C]
+  ): IntExpression[C] =
+    IntExpression.of(getCompiledExpression[C, Int](profile, expression, variableTypes, template, header))
 
-    val (actualExpression, positionMapping) = preprocess(expression, template)
-    getCompiledExpression(ExpressionDef(profile, template, setter = true, actualExpression,
-      header, cti.fullTypeString, tts.value, strVariableTypes)(expression, positionMapping, cti.rootObjectClass))
-  }
+  def getCompiledLongExpression[C <: ExpressionContext[_, _]](
+    profile: ExpressionProfile,
+    expression: String,
+    variableTypes: Map[String, TypeString[_]] = Map.empty,
+    template: Boolean = true,
+    header: String = ""
+  )(implicit
+    cti: ContextTypeInfo[C]
+  ): LongExpression[C] =
+    LongExpression.of(getCompiledExpression[C, Long](profile, expression, variableTypes, template, header))
+
+  def getCompiledDoubleExpression[C <: ExpressionContext[_, _]](
+    profile: ExpressionProfile,
+    expression: String,
+    variableTypes: Map[String, TypeString[_]] = Map.empty,
+    template: Boolean = true,
+    header: String = ""
+  )(implicit
+    cti: ContextTypeInfo[C]
+  ): DoubleExpression[C] =
+    DoubleExpression.of(getCompiledExpression[C, Double](profile, expression, variableTypes, template, header))
+
+  /**
+   * Non-blocking variant of [[getCompiledExpression]]. Compilation errors complete the returned future
+   * exceptionally with [[CompilationFailedException]].
+   */
+  def getCompiledExpressionAsync[C <: ExpressionContext[_, _], T](
+    profile: ExpressionProfile,
+    expression: String,
+    variableTypes: Map[String, TypeString[_]] = Map.empty,
+    template: Boolean = true,
+    header: String = ""
+  )(implicit
+    cti: ContextTypeInfo[C],
+    tts: TypeString[T]
+  ): CompletableFuture[Expression[C, T]] =
+    getCompiledExpressionAsync(expressionDef[C, T](profile, expression, variableTypes, template, header))
+
+  /**
+   * Non-blocking variant of [[getCompiledSetterExpression]].
+   */
+  def getCompiledSetterExpressionAsync[C <: ExpressionContext[_, _], T](
+    profile: ExpressionProfile,
+    expression: String,
+    template: Boolean = true,
+    variableTypes: Map[String, TypeString[_]] = Map.empty,
+    header: String = ""
+  )(implicit
+    cti: ContextTypeInfo[C],
+    tts: TypeString[T]
+  ): CompletableFuture[Expression[C, Setter[T]]] =
+    getCompiledExpressionAsync(expressionDef[C, T](profile, expression, variableTypes, template, header, setter = true))
 
   @throws[CompilationFailedException]
   def compileSyntaxValidator(source: NamedSource): SyntaxValidator = underLock {
@@ -396,8 +1133,10 @@ trait ScexCompiler extends LoggingUtils {
    * Resets internal compiler state by creating completely new instance of Scala compiler and invalidating all
    * internal caches.
    */
-  def reset(): Unit =
-    underLock(setup())
+  def reset(): Unit = underLock {
+    setup()
+    metrics.compilerReset()
+  }
 }
 
 object ScexCompiler {
@@ -1,6 +1,7 @@
 package com.avsystem.scex
 package compiler
 
+import com.avsystem.scex.symboldsl.SymbolInfoIndexes
 import com.avsystem.scex.util.MacroUtils
 
 import scala.collection.mutable
@@ -13,7 +14,7 @@ import scala.tools.nsc.plugins.Plugin
   * Created: 01-04-2014
   * Author: ghik
   */
-trait ScexGlobal extends Global with MacroUtils with SymbolErasures {
+trait ScexGlobal extends Global with MacroUtils with SymbolErasures with SymbolInfoIndexes {
   lazy val universe: this.type = this
 
   def loadAdditionalPlugins(): List[Plugin] = Nil
@@ -0,0 +1,78 @@
+package com.avsystem.scex
+package compiler
+
+import com.avsystem.commons.misc.{AbstractValueEnum, AbstractValueEnumCompanion, EnumCtx}
+import com.avsystem.scex.compiler.CodeGeneration._
+
+/**
+ * Listener of internal compiler events, which may be used to collect operational metrics. It is registered
+ * with [[ScexCompiler.setMetrics]]. All methods do nothing by default, so implementations may only override the ones
+ * they're interested in. Methods are invoked synchronously by compiling threads (also on cache hits), so
+ * implementations must be thread safe and cheap.
+ */
+trait ScexMetrics {
+  /**
+   * Single source file of given kind was compiled, which took `nanos` (including waiting for a compiler).
+   */
+  def compiled(kind: SourceKind, nanos: Long): Unit = ()
+
+  /**
+   * Batch of `sourceCount` expressions was compiled, which took `nanos` (including waiting for a compiler).
+   */
+  def batchCompiled(sourceCount: Int, nanos: Long): Unit = ()
+
+  /**
+   * Global compiler lock was acquired after waiting `waitNanos`. Reentrant acquisitions are not reported.
+   */
+  def globalLockAcquired(waitNanos: Long): Unit = ()
+
+  /**
+   * Instance from compiler pool was acquired after waiting `waitNanos`.
+   */
+  def compilerInstanceAcquired(waitNanos: Long): Unit = ()
+
+  /**
+   * Presentation compiler instance was acquired after waiting `waitNanos`.
+   */
+  def presentationInstanceAcquired(waitNanos: Long): Unit = ()
+
+  def cacheHit(cacheName: String): Unit = ()
+
+  def cacheMiss(cacheName: String): Unit = ()
+
+  /**
+   * Entry was removed from cache because of its size limit or expiration (explicit invalidation is not reported).
+   */
+  def cacheEviction(cacheName: String): Unit = ()
+
+  /**
+   * Source file of given kind was not compiled because compatible bytecode was found in classfile cache.
+   */
+  def classfilesReused(kind: SourceKind): Unit = ()
+
+  /**
+   * Source file of given kind had to be compiled because classfile cache did not contain compatible bytecode.
+   */
+  def classfilesRecompiled(kind: SourceKind): Unit = ()
+
+  def compilerReset(): Unit = ()
+}
+
+object ScexMetrics {
+  object NoOp extends ScexMetrics
+}
+
+final class SourceKind(implicit enumCtx: EnumCtx) extends AbstractValueEnum
+object SourceKind extends AbstractValueEnumCompanion[SourceKind] {
+  final val Expression, Profile, Adapters, Utils, ConversionSupplier, Other: Value = new SourceKind
+
+  def of(sourceFile: ScexSourceFile): SourceKind = {
+    val name = sourceFile.file.name
+    if (name.startsWith(ExpressionPkgPrefix)) Expression
+    else if (name.startsWith(ProfilePkgPrefix)) Profile
+    else if (name.startsWith(AdaptersSourceNamePrefix) || name.startsWith(FullAdapterSourceNamePrefix)) Adapters
+    else if (name.startsWith(UtilsPkgPrefix)) Utils
+    else if (name.startsWith(ConversionSupplierPkgPrefix)) ConversionSupplier
+    else Other
+  }
+}
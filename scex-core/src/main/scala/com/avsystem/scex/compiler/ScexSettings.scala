@@ -27,6 +27,14 @@ class ScexSettings extends Settings {
   final val expressionCacheSize = IntSetting("-SCEXexpression-cache-size",
     "Maximum size of expression cache", 5000, Positive, _ => None)
 
+  final val expressionCacheWeight = IntSetting("-SCEXexpression-cache-weight",
+    "Maximum estimated memory (in bytes) taken by expressions in expression cache - bytecode, generated source code " +
+      "and classloader overhead. When set, replaces the limit of -SCEXexpression-cache-size", 0, Some((0, Int.MaxValue)), _ => None)
+
+  final val expressionGenerationSize = IntSetting("-SCEXexpression-generation-size",
+    "When set, classes of expressions are packed into shared classloaders (generations) holding up to this many " +
+      "expressions each, instead of a separate classloader for every expression", 0, Some((0, Int.MaxValue)), _ => None)
+
   final val completionExpirationTime = IntSetting("-SCEXerrors-expiration-time",
     "Expiration time for completion caches, in seconds", 600, Positive, _ => None)
 
@@ -39,15 +47,43 @@ class ScexSettings extends Settings {
   final val typeMembersCacheSize = IntSetting("-SCEXtype-members-cache-size",
     "Maximum size of type members cache", 10000, Positive, _ => None)
 
+  final val completionPreludeCacheSize = IntSetting("-SCEXcompletion-prelude-cache-size",
+    "Maximum number of typed expression preludes (code generated around expression body) kept by every presentation " +
+      "compiler, so that type completion typechecks only the expression body; 0 disables reuse of preludes",
+    100, Some((0, Int.MaxValue)), _ => None)
+
   final val resetAfterCount = IntSetting("-SCEXreset-after-count",
     "Number of compilations after which the compiler will be reset", 2000, Positive, _ => None)
 
+  final val backgroundReset = BooleanSetting("-SCEXbackground-reset",
+    "When -SCEXreset-after-count is exceeded, prepares fresh compilers in background and swaps them in once they " +
+      "are ready, keeping compiled profiles, utils and adapters as well as all caches, instead of a full inline reset")
+
+  final val compilerPoolSize = IntSetting("-SCEXcompiler-pool-size",
+    "Number of Scala compiler instances used to compile expressions in parallel", 1, Positive, _ => None)
+
+  final val presentationCompilerPoolSize = IntSetting("-SCEXpresentation-compiler-pool-size",
+    "Number of presentation compiler instances serving error checking and completion concurrently", 1, Positive, _ => None)
+
+  final val batchCompilationSize = IntSetting("-SCEXbatch-compilation-size",
+    "Maximum number of expressions compiled together in a single compiler run by batch compilation", 200, Positive, _ => None)
+
+  final val asyncCompilationThreads = IntSetting("-SCEXasync-compilation-threads",
+    "Number of threads used for asynchronous compilation of expressions", 2, Positive, _ => None)
+
   final val classfileDirectory = StringSetting("-SCEXclassfile-directory", "directory",
     "Directory for classfile cache", "")
 
   final val noPresentation = BooleanSetting("-SCEXno-presentation",
     "Turns of the 'presentation' part of the compiler")
 
+  final val tieredCompilation = BooleanSetting("-SCEXtiered-compilation",
+    "Evaluates new expressions with an interpreter until their bytecode is compiled in background")
+
+  final val fuseTemplateArguments = BooleanSetting("-SCEXfuse-template-arguments",
+    "Compiles all arguments of a string template into a single class instead of compiling each of them as a separate, " +
+      "individually cached expression. Fused templates are always compiled eagerly, even with tiered compilation")
+
   final val noGetterAdapters = BooleanSetting("-SCEXno-getter-adapters",
     "Disables generation of Java getter adapter methods")
 
@@ -1,6 +1,8 @@
 package com.avsystem.scex
 package compiler
 
+import java.{lang => jl}
+
 import com.avsystem.scex.compiler.annotation.NotValidated
 
 import scala.annotation.compileTimeOnly
@@ -64,6 +66,30 @@ object TemplateInterpolations {
     def toString(t: T): String
   }
 
+  // building blocks for concatenation code generated by `t` macro, see `Macros.templateInterpolation_impl`
+
+  @NotValidated
+  def newBuilder(capacity: Int): jl.StringBuilder =
+    new jl.StringBuilder(capacity)
+
+  @NotValidated
+  def append(sb: jl.StringBuilder, str: String): jl.StringBuilder =
+    sb.append(str)
+
+  // validated as `toString` invocation on the argument, just like `safeToString`
+  def appendToString(sb: jl.StringBuilder, value: Boolean): jl.StringBuilder = sb.append(value)
+  def appendToString(sb: jl.StringBuilder, value: Char): jl.StringBuilder = sb.append(value)
+  def appendToString(sb: jl.StringBuilder, value: Byte): jl.StringBuilder = sb.append(value.toInt)
+  def appendToString(sb: jl.StringBuilder, value: Short): jl.StringBuilder = sb.append(value.toInt)
+  def appendToString(sb: jl.StringBuilder, value: Int): jl.StringBuilder = sb.append(value)
+  def appendToString(sb: jl.StringBuilder, value: Long): jl.StringBuilder = sb.append(value)
+  def appendToString(sb: jl.StringBuilder, value: Float): jl.StringBuilder = sb.append(value)
+  def appendToString(sb: jl.StringBuilder, value: Double): jl.StringBuilder = sb.append(value)
+
+  @NotValidated
+  def result(sb: jl.StringBuilder): String =
+    sb.toString
+
   @NotValidated
   def concat(parts: String*)(args: Any*): String = {
     require(parts.size == args.size + 1)
@@ -2,9 +2,10 @@ package com.avsystem.scex
 package compiler
 
 import java.time.Duration
+import java.{lang => jl}
 
 import com.avsystem.scex.compiler.ScexCompiler.{CompilationFailedException, CompileError}
-import com.avsystem.scex.compiler.TemplateOptimizingScexCompiler.ConversionSupplier
+import com.avsystem.scex.compiler.TemplateOptimizingScexCompiler.{BuiltinLiteralConversions, ConversionSupplier}
 import com.avsystem.scex.compiler.presentation.ScexPresentationCompiler
 import com.avsystem.scex.parsing._
 import com.avsystem.scex.util.Literal
@@ -22,7 +23,8 @@ import scala.util.{Failure, Success, Try}
  * <li>Avoids actual compilation of most simple template literal expressions by trying to parse them
  * immediately into resulting values. This also means that conversion of literal values to expected result type
  * is performed immediately during compilation and conversion errors will be reported as compilation errors.</li>
- * <li>Manually parses template expressions and compiles each template argument as a separate expression.</li>
+ * <li>Manually parses template expressions and compiles each template argument as a separate expression or, with
+ * `-SCEXfuse-template-arguments`, all arguments of a template into a single expression class.</li>
  * </ul>
  *
  * Created: 01-04-2014
@@ -36,18 +38,70 @@ trait TemplateOptimizingScexCompiler extends ScexPresentationCompiler {
     .expireAfterAccess(Duration.ofSeconds(settings.expressionExpirationTime.value))
     .build[(ExpressionProfile, String, String), Try[ConversionSupplier[Any]]]((compileLiteralConversion _).tupled)
 
-  private def getLiteralConversion(exprDef: ExpressionDef) =
-    literalConversionsCache.get((exprDef.profile, exprDef.resultType, exprDef.header))
+  // validation expressions are compiled directly, bypassing tiered compilation which would only start a wasted
+  // background compilation for them
+  private val literalValidationsCache = CacheBuilder.newBuilder
+    .expireAfterAccess(Duration.ofSeconds(settings.expressionExpirationTime.value))
+    .build[ExpressionDef, Try[Unit]]((exprDef: ExpressionDef) => Try(compileStandaloneExpression(exprDef)).flatten.map(_ => ()))
+
+  /**
+   * Standard conversions from [[Literal]] to primitive types and their boxed counterparts don't need compilation of
+   * a [[ConversionSupplier]] as long as there is no user code (profile header, expression header or expression utils)
+   * which could bring other conversions into its scope.
+   */
+  private def getLiteralConversion(exprDef: ExpressionDef) = {
+    val profile = exprDef.profile
+    val builtin =
+      if (profile.expressionHeader.trim.isEmpty && exprDef.header.trim.isEmpty && profile.expressionUtils.code.isEmpty)
+        BuiltinLiteralConversions.get(exprDef.resultType)
+      else None
+    builtin.fold(literalConversionsCache.get((profile, exprDef.resultType, exprDef.header)))(Success(_))
+  }
 
   private case class LiteralExpression(value: Any)(val debugInfo: ExpressionDebugInfo) extends RawExpression {
     def apply(ctx: ExpressionContext[_, _]): Any = value
+
+    override def applyAll(contexts: IndexedSeq[ExpressionContext[_, _]], from: Int, until: Int, sink: EvaluationSink[Any]): Unit = {
+      var i = from
+      while (i < until) {
+        sink.result(i, value)
+        i += 1
+      }
+    }
   }
 
+  /**
+   * Concatenates template parts with values of separately compiled template arguments. Parts and arguments are kept
+   * in arrays and the builder is presized with the length of the previous result, so that evaluation doesn't
+   * allocate anything apart from the builder and the resulting string. Templates with a single argument and one
+   * empty surrounding part don't need the builder at all.
+   */
   private class OptimizedTemplateExpression(parts: List[String], args: List[RawExpression], val debugInfo: ExpressionDebugInfo)
     extends RawExpression {
 
+    private[this] val partsArray = parts.toArray
+    private[this] val argsArray = args.toArray
+    private[this] val partsLength = parts.foldLeft(0)(_ + _.length)
+
+    // racy on purpose - it's only a sizing hint
+    private[this] var lastLength = 0
+
     def apply(c: ExpressionContext[_, _]): String =
-      TemplateInterpolations.concatIterator(parts: _*)(args.iterator.map(_.apply(c)))
+      if (argsArray.length == 1 && partsArray(0).isEmpty)
+        String.valueOf(argsArray(0).apply(c)).concat(partsArray(1))
+      else if (argsArray.length == 1 && partsArray(1).isEmpty)
+        partsArray(0).concat(String.valueOf(argsArray(0).apply(c)))
+      else {
+        val sb = new jl.StringBuilder(math.max(lastLength, partsLength))
+        sb.append(partsArray(0))
+        var i = 0
+        while (i < argsArray.length) {
+          sb.append(argsArray(i).apply(c)).append(partsArray(i + 1))
+          i += 1
+        }
+        lastLength = sb.length
+        sb.toString
+      }
   }
 
   import com.avsystem.scex.parsing.TemplateParser.{parseTemplate, Success => ParsingSuccess}
@@ -57,15 +111,24 @@ trait TemplateOptimizingScexCompiler extends ScexPresentationCompiler {
    * that is not a macro and does not reference context or root object (and thus is independent of expression input).
    * If there is no such conversion, <code>LiteralsOptimizingScexCompiler</code> will not attempt to optimize the
    * compilation and simply pass it to <code>super.compileExpression</code>.
+   * The result depends only on profile, context type, result type and header of the expression, so it is memoized
+   * and the dummy expression is compiled once for all literals of given type.
    */
-  private def validateLiteralConversion(exprDef: ExpressionDef) = {
+  private def validateLiteralConversion(exprDef: ExpressionDef): Try[Unit] = {
     import com.avsystem.scex.compiler.CodeGeneration._
     val actualHeader = implicitLiteralViewHeader(exprDef.header)
     val validationExpression = implicitLiteralViewExpression(exprDef.resultType)
     val validationExprDef = ExpressionDef(exprDef.profile, template = false, setter = false, validationExpression,
       actualHeader, exprDef.contextType, exprDef.resultType, Map.empty)(
       validationExpression, EmptyPositionMapping, exprDef.rootObjectClass)
-    super.compileExpression(validationExprDef)
+    val result = literalValidationsCache.get(validationExprDef)
+    // unexpected exceptions are not cached, just like in CachingScexCompiler
+    result match {
+      case Failure(_: CompilationFailedException) | Success(_) =>
+      case Failure(_) if settings.cacheUnexpectedCompilationExceptions.value =>
+      case Failure(_) => literalValidationsCache.invalidate(validationExprDef)
+    }
+    result
   }
 
   private def compileLiteralConversion(profile: ExpressionProfile, resultType: String, header: String) = underLock {
@@ -96,68 +159,115 @@ trait TemplateOptimizingScexCompiler extends ScexPresentationCompiler {
   private def isStringSupertype(tpe: String) =
     JavaTypeParsing.StringSupertypes.contains(tpe)
 
-  override protected def compileExpression(exprDef: ExpressionDef): Try[RawExpression] =
-    if (exprDef.template && !exprDef.setter) {
-      lazy val debugInfo = new ExpressionDebugInfo(exprDef)
+  private sealed trait CompilationPlan
+  private case object Delegated extends CompilationPlan
+  private case class LiteralTemplate(singlePart: String) extends CompilationPlan
+  private case class SplitTemplate(parts: List[String], argDefs: List[ExpressionDef]) extends CompilationPlan
 
+  private def compilationPlan(exprDef: ExpressionDef): CompilationPlan =
+    if (exprDef.template && !exprDef.setter) {
       parseTemplate(exprDef.expression) match {
         case ParsingSuccess((List(singlePart), Nil), _) =>
-
-          if (isStringSupertype(exprDef.resultType))
-            Success(LiteralExpression(if (singlePart.nonEmpty) singlePart else null)(debugInfo))
-          else if (validateLiteralConversion(exprDef).isSuccess)
-            getLiteralConversion(exprDef).map { conversion =>
-              try {
-                val convertedValue =
-                  if (conversion.isNullable && singlePart.isEmpty) null
-                  else conversion.get.apply(Literal(singlePart))
-                LiteralExpression(convertedValue)(debugInfo)
-              } catch {
-                case NonFatal(throwable) =>
-                  throw CompilationFailedException(singlePart, List(toCompileError(singlePart, exprDef.resultType, throwable)))
-              }
-            }
-          else super.compileExpression(exprDef)
+          if (isStringSupertype(exprDef.resultType) || validateLiteralConversion(exprDef).isSuccess)
+            LiteralTemplate(singlePart)
+          else Delegated
 
         case ParsingSuccess((List("", ""), List(_)), _) =>
-          super.compileExpression(exprDef)
+          Delegated
 
         case ParsingSuccess((parts, args), _) if isStringSupertype(exprDef.resultType) =>
-          val argExprTries = args.map { arg =>
+          val argDefs = args.map { arg =>
             val shift = SingleShiftPositionMapping(arg.beg)
             val reverseMapping = exprDef.positionMapping.reverse
             val originalArg = exprDef.originalExpression.substring(reverseMapping(arg.beg), reverseMapping(arg.end - 1) + 1)
             val shiftedMapping = shift andThen exprDef.positionMapping andThen shift.reverse
 
-            compileExpression(
-              ExpressionDef(exprDef.profile, template = true, setter = false, arg.result, exprDef.header,
-                exprDef.contextType, "String", exprDef.variableTypes)(originalArg, shiftedMapping, exprDef.rootObjectClass))
+            ExpressionDef(exprDef.profile, template = true, setter = false, arg.result, exprDef.header,
+              exprDef.contextType, "String", exprDef.variableTypes)(originalArg, shiftedMapping, exprDef.rootObjectClass)
           }
-
-          @tailrec
-          def merge(
-            exprs: List[Try[RawExpression]], successAcc: List[RawExpression], errorsAcc: List[CompileError]
-          ): Try[List[RawExpression]] =
-            exprs match {
-              case Success(expr) :: rest =>
-                merge(rest, expr :: successAcc, errorsAcc)
-              case Failure(CompilationFailedException(_, errors)) :: rest =>
-                merge(rest, successAcc, errors ::: errorsAcc)
-              case Failure(throwable) :: _ =>
-                Failure(throwable)
-              case Nil =>
-                if (errorsAcc.nonEmpty)
-                  Failure(CompilationFailedException(exprDef.expression, errorsAcc))
-                else
-                  Success(successAcc)
-            }
-
-          merge(argExprTries.reverse, Nil, Nil).map(new OptimizedTemplateExpression(parts, _, debugInfo))
+          SplitTemplate(parts, argDefs)
 
         case _ =>
-          super.compileExpression(exprDef)
+          Delegated
+      }
+    } else Delegated
+
+  private def literalExpression(exprDef: ExpressionDef, singlePart: String): Try[RawExpression] = {
+    val debugInfo = new ExpressionDebugInfo(exprDef)
+    if (isStringSupertype(exprDef.resultType))
+      Success(LiteralExpression(if (singlePart.nonEmpty) singlePart else null)(debugInfo))
+    else
+      getLiteralConversion(exprDef).map { conversion =>
+        try {
+          val convertedValue =
+            if (conversion.isNullable && singlePart.isEmpty) null
+            else conversion.get.apply(Literal(singlePart))
+          LiteralExpression(convertedValue)(debugInfo)
+        } catch {
+          case NonFatal(throwable) =>
+            throw CompilationFailedException(singlePart, List(toCompileError(singlePart, exprDef.resultType, throwable)))
+        }
+      }
+  }
+
+  private def templateExpression(
+    exprDef: ExpressionDef, parts: List[String], argExprTries: List[Try[RawExpression]]
+  ): Try[RawExpression] = {
+    @tailrec
+    def merge(
+      exprs: List[Try[RawExpression]], successAcc: List[RawExpression], errorsAcc: List[CompileError]
+    ): Try[List[RawExpression]] =
+      exprs match {
+        case Success(expr) :: rest =>
+          merge(rest, expr :: successAcc, errorsAcc)
+        case Failure(CompilationFailedException(_, errors)) :: rest =>
+          merge(rest, successAcc, errors ::: errorsAcc)
+        case Failure(throwable) :: _ =>
+          Failure(throwable)
+        case Nil =>
+          if (errorsAcc.nonEmpty)
+            Failure(CompilationFailedException(exprDef.expression, errorsAcc))
+          else
+            Success(successAcc)
       }
-    } else super.compileExpression(exprDef)
+
+    merge(argExprTries.reverse, Nil, Nil).map(new OptimizedTemplateExpression(parts, _, new ExpressionDebugInfo(exprDef)))
+  }
+
+  override protected def compileExpression(exprDef: ExpressionDef): Try[RawExpression] =
+    compilationPlan(exprDef) match {
+      case Delegated => super.compileExpression(exprDef)
+      case LiteralTemplate(singlePart) => literalExpression(exprDef, singlePart)
+      case SplitTemplate(parts, argDefs) if settings.fuseTemplateArguments.value => compileFusedTemplate(exprDef, parts, argDefs)
+      case SplitTemplate(parts, argDefs) => templateExpression(exprDef, parts, argDefs.map(compileExpression))
+    }
+
+  /**
+   * Template arguments of all expressions are compiled together in a single batch, as well as all the expressions
+   * which could not be optimized. Fused templates are compiled in a separate batch.
+   */
+  override protected def compileExpressions(exprDefs: Seq[ExpressionDef]): Seq[Try[RawExpression]] = {
+    val plans = exprDefs.map(compilationPlan)
+    val fuse = settings.fuseTemplateArguments.value
+
+    val delegatedDefs = (exprDefs zip plans).collect({ case (exprDef, Delegated) => exprDef })
+    val delegatedResults = (delegatedDefs zip super.compileExpressions(delegatedDefs)).toMap
+
+    val argDefs = if (fuse) Nil else plans.collect({ case SplitTemplate(_, args) => args }).flatten
+    val argResults = (argDefs zip compileExpressions(argDefs)).toMap
+
+    val fusedTemplates = if (!fuse) Nil else (exprDefs zip plans).collect {
+      case (exprDef, SplitTemplate(parts, args)) => (exprDef, parts, args)
+    }
+    val fusedResults = (fusedTemplates.map(_._1) zip compileFusedTemplates(fusedTemplates)).toMap
+
+    (exprDefs zip plans).map {
+      case (exprDef, Delegated) => delegatedResults(exprDef)
+      case (exprDef, LiteralTemplate(singlePart)) => literalExpression(exprDef, singlePart)
+      case (exprDef, SplitTemplate(_, _)) if fuse => fusedResults(exprDef)
+      case (exprDef, SplitTemplate(parts, args)) => templateExpression(exprDef, parts, args.map(argResults))
+    }
+  }
 
   override protected def getErrors(exprDef: ExpressionDef): List[CompileError] = super.getErrors(exprDef) match {
     case Nil if exprDef.template && !exprDef.setter && !isStringSupertype(exprDef.resultType) =>
@@ -185,6 +295,7 @@ trait TemplateOptimizingScexCompiler extends ScexPresentationCompiler {
   override def reset(): Unit = underLock {
     super.reset()
     literalConversionsCache.invalidateAll()
+    literalValidationsCache.invalidateAll()
   }
 }
 
@@ -196,6 +307,42 @@ object TemplateOptimizingScexCompiler {
     def isNullable: Boolean
   }
 
+  private final class BuiltinConversion(val get: Literal => Any, val isNullable: Boolean) extends ConversionSupplier[Any]
+
+  /**
+   * Conversions defined in [[Literal]] companion, keyed by all names under which their result types may be referred
+   * to in code of a [[ConversionSupplier]] (where `scala._` and `java.lang._` are imported).
+   */
+  private[compiler] val BuiltinLiteralConversions: Map[String, ConversionSupplier[Any]] = {
+    def primitive(name: String, conversion: Literal => Any) =
+      List(name, s"scala.$name", s"_root_.scala.$name").map(_ -> new BuiltinConversion(conversion, isNullable = false))
+
+    def boxed(boxedClass: Class[_], conversion: Literal => Any, simpleName: Boolean = false) = {
+      val names = List(boxedClass.getName, s"_root_.${boxedClass.getName}")
+      (if (simpleName) boxedClass.getSimpleName :: names else names).map(_ -> new BuiltinConversion(conversion, isNullable = true))
+    }
+
+    import Literal._
+    List(
+      primitive("Boolean", literalToBoolean),
+      primitive("Char", literalToChar),
+      primitive("Byte", literalToByte),
+      primitive("Short", literalToShort),
+      primitive("Int", literalToInt),
+      primitive("Long", literalToLong),
+      primitive("Float", literalToFloat),
+      primitive("Double", literalToDouble),
+      boxed(classOf[jl.Boolean], literalToJBoolean),
+      boxed(classOf[jl.Character], literalToJCharacter, simpleName = true),
+      boxed(classOf[jl.Byte], literalToJByte),
+      boxed(classOf[jl.Short], literalToJShort),
+      boxed(classOf[jl.Integer], literalToJInteger, simpleName = true),
+      boxed(classOf[jl.Long], literalToJLong),
+      boxed(classOf[jl.Float], literalToJFloat),
+      boxed(classOf[jl.Double], literalToJDouble)
+    ).flatten.toMap
+  }
+
   import scala.language.experimental.macros
 
   def reifyImplicitView[T](arg: Any): T = macro Macros.reifyImplicitView_impl[T]
@@ -0,0 +1,111 @@
+package com.avsystem.scex
+package compiler
+
+import java.lang.reflect.InvocationTargetException
+import java.util.concurrent.{CompletableFuture, CompletionException}
+
+import com.avsystem.scex.compiler.ExpressionInterpreter.InterpreterFailure
+import com.avsystem.scex.compiler.presentation.ScexPresentationCompiler
+
+import scala.util.control.NonFatal
+import scala.util.{Failure, Success, Try}
+
+/**
+ * An extension of ScexCompiler which (when `-SCEXtiered-compilation` is enabled) avoids waiting for bytecode
+ * generation before an expression can be evaluated. Expression is only typechecked by the presentation compiler
+ * and its typed tree is translated by [[ExpressionInterpreter]] into an interpreter, which is used until the
+ * expression is compiled in background. Expressions which can't be interpreted (or contain errors) are compiled
+ * as usual.
+ */
+trait TieredScexCompiler extends ScexPresentationCompiler {
+
+  private val logger = createLogger[TieredScexCompiler]
+
+  private class TieredExpression(
+    exprDef: ExpressionDef,
+    interpreted: ExpressionContext[_, _] => Any,
+    compiled: CompletableFuture[RawExpression],
+    val debugInfo: ExpressionDebugInfo
+  ) extends RawExpression {
+
+    @volatile private var compiledExpression: RawExpression = _
+    @volatile private var compilationFailure: Throwable = _
+    @volatile private var failureHandledOnUse = false
+
+    compiled.whenComplete { (expr, cause) =>
+      if (cause == null) compiledExpression = expr
+      else {
+        compilationFailure = cause match {
+          case e: CompletionException if e.getCause != null => e.getCause
+          case _ => cause
+        }
+        logger.warn(s"Background compilation of $exprDef failed, expression will be compiled again when needed", cause)
+        discard()
+      }
+    }
+
+    // the compiler is asked to forget this expression, so that the next lookup reports the error or compiles it again
+    private def discard(): Unit =
+      replaceCompiledExpression(exprDef, this, Failure(compilationFailure))
+
+    def apply(context: ExpressionContext[_, _]): Any = compiledExpression match {
+      case null =>
+        // compilation may have failed before this expression was cached, so it's discarded again on first use
+        if (compilationFailure != null && !failureHandledOnUse) {
+          failureHandledOnUse = true
+          discard()
+        }
+        interpret(context)
+      case expr => expr.apply(context)
+    }
+
+    override def applyAll(contexts: IndexedSeq[ExpressionContext[_, _]], from: Int, until: Int, sink: EvaluationSink[Any]): Unit =
+      compiledExpression match {
+        case null => super.applyAll(contexts, from, until, sink)
+        case expr => expr.applyAll(contexts, from, until, sink)
+      }
+
+    private def interpret(context: ExpressionContext[_, _]): Any =
+      try interpreted(context) catch {
+        case e: InvocationTargetException =>
+          throw EvaluationException(e.getCause)
+        // interpreter is unable to evaluate the expression or it failed in a way that compiled code must reproduce,
+        // which is possible only when nothing has been invoked yet - otherwise side effects would be repeated
+        case failure: InterpreterFailure if failure.repeatable =>
+          val expr = try compiled.join() catch {
+            case _: CompletionException => throw EvaluationException(failure.getCause)
+          }
+          expr.apply(context)
+        case failure: InterpreterFailure =>
+          throw EvaluationException(failure.getCause)
+      }
+  }
+
+  // compiled expression is held by TieredExpression, not by expression cache, so it can't share a generation
+  private def actuallyCompileExpression(exprDef: ExpressionDef) =
+    compileStandaloneExpression(exprDef)
+
+  private def interpreterFor(exprDef: ExpressionDef): Option[ExpressionContext[_, _] => Any] =
+    try withTypedExpression(exprDef) { (global, tree, errors) =>
+      if (errors.nonEmpty) None
+      else {
+        val interpreter = new ExpressionInterpreter(global)
+        interpreter.interpreter(tree.asInstanceOf[interpreter.global.Tree])
+      }
+    } catch {
+      case NonFatal(cause) =>
+        logger.debug(s"Could not create interpreter for $exprDef", cause)
+        None
+    }
+
+  override protected def compileExpression(exprDef: ExpressionDef): Try[RawExpression] =
+    if (settings.tieredCompilation.value && isEnabled && !exprDef.setter)
+      interpreterFor(exprDef) match {
+        case Some(interpreted) =>
+          val compiled = CompletableFuture.supplyAsync(() => actuallyCompileExpression(exprDef).get, compilationExecutor)
+          Success(new TieredExpression(exprDef, interpreted, compiled, new ExpressionDebugInfo(exprDef)))
+        case None =>
+          super.compileExpression(exprDef)
+      }
+    else super.compileExpression(exprDef)
+}
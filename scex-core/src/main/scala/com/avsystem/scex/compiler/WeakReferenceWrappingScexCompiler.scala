@@ -15,30 +15,78 @@ import scala.util.Try
  */
 trait WeakReferenceWrappingScexCompiler extends ScexCompiler {
 
+  private type Ctx = ExpressionContext[_, _]
+
   /**
    * Wrapper that avoids holding strong reference to actual compiled expression.
    */
-  private class WeakExpressionWrapper(exprDef: ExpressionDef, initiallyWrapped: RawExpression) extends RawExpression {
+  private class WeakExpressionWrapper[T](exprDef: ExpressionDef, initiallyWrapped: Expression[Ctx, T])
+    extends Expression[Ctx, T] {
+
     var expressionRef = new WeakReference(initiallyWrapped)
 
-    private def wrappedExpression: RawExpression =
+    protected def wrappedExpression: Expression[Ctx, T] =
       expressionRef.get match {
         case Some(expr) => expr
         case None =>
-          expressionRef = new WeakReference(actuallyCompileExpression(exprDef).get)
+          expressionRef = new WeakReference(actuallyCompileExpression(exprDef).get.asInstanceOf[Expression[Ctx, T]])
           wrappedExpression
       }
 
-    def apply(context: ExpressionContext[_, _]) =
+    def apply(context: Ctx) =
       wrappedExpression.apply(context)
 
+    override def applyAll(contexts: IndexedSeq[Ctx], from: Int, until: Int, sink: EvaluationSink[T]): Unit =
+      wrappedExpression.applyAll(contexts, from, until, sink)
+
     def debugInfo =
       wrappedExpression.debugInfo
   }
 
+  // wrappers of expressions with primitive result type, recompiled expression is always of the same kind
+  private class WeakBooleanExpressionWrapper(exprDef: ExpressionDef, initiallyWrapped: BooleanExpression[Ctx])
+    extends WeakExpressionWrapper[Boolean](exprDef, initiallyWrapped) with BooleanExpression[Ctx] {
+    def applyBoolean(context: Ctx): Boolean =
+      wrappedExpression.asInstanceOf[BooleanExpression[Ctx]].applyBoolean(context)
+  }
+
+  private class WeakIntExpressionWrapper(exprDef: ExpressionDef, initiallyWrapped: IntExpression[Ctx])
+    extends WeakExpressionWrapper[Int](exprDef, initiallyWrapped) with IntExpression[Ctx] {
+    def applyInt(context: Ctx): Int =
+      wrappedExpression.asInstanceOf[IntExpression[Ctx]].applyInt(context)
+  }
+
+  private class WeakLongExpressionWrapper(exprDef: ExpressionDef, initiallyWrapped: LongExpression[Ctx])
+    extends WeakExpressionWrapper[Long](exprDef, initiallyWrapped) with LongExpression[Ctx] {
+    def applyLong(context: Ctx): Long =
+      wrappedExpression.asInstanceOf[LongExpression[Ctx]].applyLong(context)
+  }
+
+  private class WeakDoubleExpressionWrapper(exprDef: ExpressionDef, initiallyWrapped: DoubleExpression[Ctx])
+    extends WeakExpressionWrapper[Double](exprDef, initiallyWrapped) with DoubleExpression[Ctx] {
+    def applyDouble(context: Ctx): Double =
+      wrappedExpression.asInstanceOf[DoubleExpression[Ctx]].applyDouble(context)
+  }
+
+  private def wrap(exprDef: ExpressionDef, expr: RawExpression): RawExpression = expr match {
+    case expr: BooleanExpression[Ctx@unchecked] => new WeakBooleanExpressionWrapper(exprDef, expr)
+    case expr: IntExpression[Ctx@unchecked] => new WeakIntExpressionWrapper(exprDef, expr)
+    case expr: LongExpression[Ctx@unchecked] => new WeakLongExpressionWrapper(exprDef, expr)
+    case expr: DoubleExpression[Ctx@unchecked] => new WeakDoubleExpressionWrapper(exprDef, expr)
+    case _ => new WeakExpressionWrapper(exprDef, expr)
+  }
+
   private def actuallyCompileExpression(exprDef: ExpressionDef) =
     super.compileExpression(exprDef)
 
   override protected def compileExpression(exprDef: ExpressionDef): Try[RawExpression] =
-    actuallyCompileExpression(exprDef).map(new WeakExpressionWrapper(exprDef, _))
+    actuallyCompileExpression(exprDef).map(wrap(exprDef, _))
+
+  override protected def compiledExpressionIfPresent(exprDef: ExpressionDef): Option[Try[RawExpression]] =
+    super.compiledExpressionIfPresent(exprDef).map(_.map(wrap(exprDef, _)))
+
+  override protected def compileExpressions(exprDefs: Seq[ExpressionDef]): Seq[Try[RawExpression]] =
+    (exprDefs zip super.compileExpressions(exprDefs)).map {
+      case (exprDef, result) => result.map(wrap(exprDef, _))
+    }
 }
@@ -2,7 +2,6 @@ package com.avsystem.scex
 package compiler.presentation
 
 import java.time.Duration
-import java.util.concurrent.ExecutionException
 import java.{lang => jl, util => ju}
 
 import com.avsystem.scex.compiler.ExpressionDef
@@ -11,7 +10,6 @@ import com.avsystem.scex.compiler.presentation.ScexPresentationCompiler.{Member,
 import com.avsystem.scex.presentation.SymbolAttributes
 import com.avsystem.scex.util.TypeWrapper
 import com.google.common.cache.CacheBuilder
-import com.google.common.util.concurrent.ExecutionError
 
 /**
  * Created: 12-12-2013
@@ -19,16 +17,19 @@ import com.google.common.util.concurrent.ExecutionError
  */
 trait CachingScexPresentationCompiler extends ScexPresentationCompiler {
 
+  import com.avsystem.scex.compiler.presentation.CachingScexPresentationCompiler._
   import com.avsystem.scex.util.CommonUtils._
 
   private val errorsCache = CacheBuilder.newBuilder
     .expireAfterAccess(Duration.ofSeconds(settings.completionExpirationTime.value))
     .maximumSize(settings.errorsCacheSize.value)
+    .removalListener(evictionListener[ExpressionDef, List[CompileError]](ErrorsCacheName))
     .build[ExpressionDef, List[CompileError]]
 
   private val scopeCompletionCache = CacheBuilder.newBuilder
     .expireAfterAccess(Duration.ofSeconds(settings.completionExpirationTime.value))
     .maximumSize(settings.scopeCompletionCacheSize.value)
+    .removalListener(evictionListener[ExpressionDef, Completion](ScopeCompletionCacheName))
     .build[ExpressionDef, Completion]
 
   case class TypeMembersCacheKey(profile: ExpressionProfile, contextType: String, ownerType: TypeWrapper)
@@ -36,26 +37,28 @@ trait CachingScexPresentationCompiler extends ScexPresentationCompiler {
   private val typeMembersCache = CacheBuilder.newBuilder
     .expireAfterAccess(Duration.ofSeconds(settings.completionExpirationTime.value))
     .maximumSize(settings.typeMembersCacheSize.value)
+    .removalListener(evictionListener[TypeMembersCacheKey, Vector[Member]](TypeMembersCacheName))
     .build[TypeMembersCacheKey, Vector[Member]]
 
   private val symbolAttributesCache = CacheBuilder.newBuilder
     .build[String, SymbolAttributes]
 
   override protected def getErrors(exprDef: ExpressionDef) =
-    unwrapExecutionException(errorsCache.get(exprDef, callable(super.getErrors(exprDef))))
+    cached(metrics, ErrorsCacheName, errorsCache, exprDef)(super.getErrors(exprDef))
 
   override protected def getScopeCompletion(exprDef: ExpressionDef) =
-    unwrapExecutionException(scopeCompletionCache.get(exprDef, callable(super.getScopeCompletion(exprDef))))
+    cached(metrics, ScopeCompletionCacheName, scopeCompletionCache, exprDef)(super.getScopeCompletion(exprDef))
 
   override protected def getTypeMembers(global: IGlobal)(exprDef: ExpressionDef, ownerTpe: global.Type)
     (computeMembers: => Vector[Member]): Vector[Member] = {
 
+    // key and type wrapper are allocated even on cache hits
     val key = TypeMembersCacheKey(exprDef.profile, exprDef.contextType, TypeWrapper(global)(ownerTpe.map(_.widen)))
-    unwrapExecutionException(typeMembersCache.get(key, callable(computeMembers)))
+    cached(metrics, TypeMembersCacheName, typeMembersCache, key)(computeMembers)
   }
 
   override def compileSymbolAttributes(source: NamedSource) =
-    unwrapExecutionException(symbolAttributesCache.get(source.name, callable(super.compileSymbolAttributes(source))))
+    cached(metrics, SymbolAttributesCacheName, symbolAttributesCache, source.name)(super.compileSymbolAttributes(source))
 
   override def reset() = synchronized {
     super.reset()
@@ -64,10 +67,12 @@ trait CachingScexPresentationCompiler extends ScexPresentationCompiler {
     typeMembersCache.invalidateAll()
     symbolAttributesCache.invalidateAll()
   }
+}
 
-  private def unwrapExecutionException[T](code: => T) =
-    try code catch {
-      case e: ExecutionException => throw e.getCause
-      case e: ExecutionError => throw e.getCause
-    }
+object CachingScexPresentationCompiler {
+  // names of caches reported to ScexMetrics
+  final val ErrorsCacheName = "errors"
+  final val ScopeCompletionCacheName = "scopeCompletion"
+  final val TypeMembersCacheName = "typeMembers"
+  final val SymbolAttributesCacheName = "symbolAttributes"
 }
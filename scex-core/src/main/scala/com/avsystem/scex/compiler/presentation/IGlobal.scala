@@ -5,7 +5,9 @@ import com.avsystem.scex.compiler.ScexGlobal
 
 import scala.annotation.nowarn
 import scala.collection.mutable
-import scala.tools.nsc.Settings
+import scala.reflect.internal.FatalError
+import scala.reflect.internal.util.SourceFile
+import scala.tools.nsc.{Phase, Settings}
 import scala.tools.nsc.interactive.Global
 import scala.tools.nsc.reporters.Reporter
 import scala.tools.nsc.symtab.Flags.{ACCESSOR, PARAMACCESSOR}
@@ -19,6 +21,48 @@ class IGlobal(settings: Settings, reporter: Reporter, val classLoader: ClassLoad
 
   import definitions._
 
+  // toplevel symbols of sources typechecked without loading them, which are unlinked right after typechecking
+  private var unloadedTopLevelSyms: mutable.ListBuffer[Symbol] = _
+
+  override def registerTopLevelSym(sym: Symbol): Unit =
+    if (unloadedTopLevelSyms != null) unloadedTopLevelSyms += sym
+    else super.registerTopLevelSym(sym)
+
+  /**
+    * Typechecks a source in the current run, without loading it into the presentation compiler. Loading a source
+    * starts a new run, which means that all loaded sources (shared sources of profiles, utils, adapters etc.) are
+    * entered and typechecked again by the next background pass. Contexts created by the typer are registered in
+    * returned unit. Toplevel symbols of the source are unlinked afterwards, so it must not be referred to by other
+    * sources. Must be invoked in the presentation compiler thread.
+    */
+  def typeCheckUnloaded(source: SourceFile): RichCompilationUnit = {
+    def applyPhase(phase: Phase, unit: CompilationUnit): Unit =
+      enteringPhase(phase)(phase.asInstanceOf[GlobalPhase].applyPhase(unit))
+
+    val unit = new RichCompilationUnit(source)
+    unit.body = newUnitParser(unit).parse()
+    unloadedTopLevelSyms = new mutable.ListBuffer
+    try {
+      applyPhase(currentRun.namerPhase, unit)
+      applyPhase(currentRun.typerPhase, unit)
+    } finally {
+      unloadedTopLevelSyms.foreach { sym =>
+        sym.owner.info.decls unlink sym
+        currentRun.symSource -= sym
+      }
+      unloadedTopLevelSyms = null
+    }
+    unit
+  }
+
+  def doLocateContext(unit: RichCompilationUnit, pos: Position): Context =
+    locateContext(unit.contexts, pos).getOrElse(throw new FatalError("no context found for " + pos))
+
+  /**
+    * Sources loaded into the presentation compiler, i.e. typechecked again in every new run.
+    */
+  def loadedSources: List[SourceFile] = allSources
+
   abstract class ScexMember extends Member {
     def prefix: Type
     def ownerTpe: Type = prefix
@@ -108,9 +152,8 @@ class IGlobal(settings: Settings, reporter: Reporter, val classLoader: ClassLoad
   }
 
   // impl copied from interactive.Global and adjusted
-  /** Return all members visible without prefix in context enclosing `pos`. */
-  def scopeMembers(pos: Position): Vector[ScexScopeMember] = {
-    val context = doLocateContext(pos)
+  /** Return all members visible without prefix in given context. */
+  def scopeMembers(context: Context): Vector[ScexScopeMember] = {
     val locals = new Members[ScexScopeMember]
     val enclosing = new Members[ScexScopeMember]
 
@@ -162,8 +205,7 @@ class IGlobal(settings: Settings, reporter: Reporter, val classLoader: ClassLoad
     }
   }
 
-  def typeCompletionContext(typedTree: Tree, pos: Position, isAllowed: Tree => Boolean): TypeCompletionContext = {
-    val context = doLocateContext(pos)
+  def typeCompletionContext(typedTree: Tree, context: Context, pos: Position, isAllowed: Tree => Boolean): TypeCompletionContext = {
     var tree = typedTree
 
     // apparently, in some cases with dynamics, the tree comes completely untyped
@@ -1,6 +1,7 @@
 package com.avsystem.scex
 package compiler.presentation
 
+import java.util.concurrent.locks.{ReentrantLock, ReentrantReadWriteLock}
 import java.{lang => jl, util => ju}
 import com.avsystem.commons.jiop.JavaInterop._
 import com.avsystem.commons.misc.TypeString
@@ -14,9 +15,11 @@ import com.avsystem.scex.presentation.{Attributes, SymbolAttributes}
 import com.avsystem.scex.util.CommonUtils._
 import com.avsystem.scex.validation.ValidationContext
 import com.avsystem.scex.{Type => SType}
+import com.google.common.cache.{Cache, CacheBuilder}
 
 import scala.annotation.nowarn
 import scala.reflect.NameTransformer
+import scala.reflect.internal.util.SourceFile
 import scala.tools.nsc.Settings
 
 @nowarn("msg=deprecated")
@@ -27,15 +30,43 @@ trait ScexPresentationCompiler extends ScexCompiler { compiler =>
   protected def isEnabled: Boolean = !settings.noPresentation.value
   protected def presentationCompilerSettings: Settings = settings
 
-  private var reporter: Reporter = _
-  private var global: IGlobal = _
+  /**
+   * Presentation compiler with its own reporter. It may be used by only one thread at a time, because the reporter
+   * collects errors of a single request.
+   */
+  private class PresentationInstance(sharedClassLoader: ScexClassLoader) {
+    val lock = new ReentrantLock
+    val reporter = new Reporter(presentationCompilerSettings, keepErrors = true)
+    val global = new IGlobal(presentationCompilerSettings, reporter, sharedClassLoader)
+
+    /**
+     * Code generated around expression body (imports, header, variable accessors, etc.), typechecked for
+     * [[ExpressionDef]] with empty expression. Typer contexts refer to symbols of this presentation compiler, which
+     * are entered again in every new run, so every instance keeps its own preludes and they are valid only in the run
+     * in which they were typechecked.
+     */
+    final class Prelude(val context: global.Context, val contextTpe: global.Type, val runId: Int)
+
+    val preludes: Cache[ExpressionDef, Prelude] = CacheBuilder.newBuilder
+      .maximumSize(settings.completionPreludeCacheSize.value)
+      .build[ExpressionDef, Prelude]
+  }
+
+  // Read lock is held while using presentation compilers, write lock while replacing them. Presentation compilers
+  // don't need the compiler lock, so completion is not blocked by compilation of expressions.
+  private val presentationLock = new ReentrantReadWriteLock
+  @volatile private var presentationInstances: Vector[PresentationInstance] = Vector.empty
+
+  private def newPresentationInstances(sharedClassLoader: ScexClassLoader): Vector[PresentationInstance] =
+    Vector.fill(settings.presentationCompilerPoolSize.value)(new PresentationInstance(sharedClassLoader))
 
   override protected def setup(): Unit = {
     super.setup()
     if (isEnabled) {
-      logger.info("Initializing Scala presentation compiler")
-      reporter = new Reporter(presentationCompilerSettings)
-      global = new IGlobal(presentationCompilerSettings, reporter, getSharedClassLoader)
+      val poolSize = settings.presentationCompilerPoolSize.value
+      logger.info(if (poolSize > 1) s"Initializing pool of $poolSize Scala presentation compilers"
+      else "Initializing Scala presentation compiler")
+      presentationInstances = newPresentationInstances(getSharedClassLoader)
     }
   }
 
@@ -44,19 +75,54 @@ trait ScexPresentationCompiler extends ScexCompiler { compiler =>
     case Right(t) => throw t
   }
 
-  private def inCompilerThread[T](code: => T) = {
+  private def inCompilerThread[T](global: IGlobal)(code: => T) = {
     getOrThrow(global.askForResponse(() => code))
   }
 
-  protected final def withIGlobal[T](code: IGlobal => T) = underLock {
-    reporter.reset()
-    val global = compiler.global
-    val result = try code(global) finally {
-      reporter.reset()
+  /**
+   * Takes a free presentation compiler, preferring the one assigned to given profile, so that every instance
+   * keeps symbols of a subset of profiles warm. When all of them are busy, waits for the preferred one.
+   */
+  private def acquireInstance(profile: ExpressionProfile): PresentationInstance = {
+    val instances = presentationInstances
+    val preferred = Math.floorMod(profile.name.hashCode, instances.size)
+    Iterator.range(0, instances.size).map(i => instances((preferred + i) % instances.size))
+      .find(_.lock.tryLock()).getOrElse {
+        val instance = instances(preferred)
+        instance.lock.lock()
+        instance
+      }
+  }
+
+  private def withPresentationInstance[T](profile: ExpressionProfile)(code: PresentationInstance => T): T = {
+    ensureSetup()
+    val startTime = System.nanoTime
+    presentationLock.readLock.lock()
+    try {
+      val instance = acquireInstance(profile)
+      metrics.presentationInstanceAcquired(System.nanoTime - startTime)
+      try {
+        instance.reporter.reset()
+        instance.reporter.clearErrors()
+        try code(instance) finally {
+          instance.reporter.reset()
+          instance.reporter.clearErrors()
+        }
+      } finally {
+        instance.lock.unlock()
+      }
+    } finally {
+      presentationLock.readLock.unlock()
     }
-    result
   }
 
+  /**
+   * Runs given code with a presentation compiler taken from the pool. It must not compile anything (e.g. generate
+   * code of expressions), because compilation of shared sources needs to load them into all presentation compilers.
+   */
+  protected final def withIGlobal[T](profile: ExpressionProfile)(code: IGlobal => T): T =
+    withPresentationInstance(profile)(instance => code(instance.global))
+
   class Completer(
     profile: ExpressionProfile,
     template: Boolean,
@@ -140,7 +206,7 @@ trait ScexPresentationCompiler extends ScexCompiler { compiler =>
   private def getContextTpe(global: IGlobal)(tree: global.Tree): global.Type = {
     import global._
 
-    inCompilerThread {
+    inCompilerThread(global) {
       val PackageDef(_, List(_: Import, ClassDef(_, _, _, Template(List(expressionParent, _), _, _)), _*)) = tree
       val TypeRef(_, _, List(contextTpe, _)) = expressionParent.tpe
       contextTpe
@@ -249,71 +315,110 @@ trait ScexPresentationCompiler extends ScexCompiler { compiler =>
       attributes.documentation)
   }
 
-  protected def getErrors(exprDef: ExpressionDef) = withIGlobal { global =>
-    val (pkgName, code, offset) = expressionCode(exprDef)
-    val sourceFile = new ExpressionSourceFile(exprDef, pkgName, code, offset)
+  protected def getErrors(exprDef: ExpressionDef) =
+    withTypedExpression(exprDef)((_, _, errors) => errors)
 
-    val response = new global.Response[global.Tree]
-    try {
-      global.askLoadedTyped(sourceFile, keepLoaded = true, response)
-      getOrThrow(response)
-      reporter.compileErrors()
-    } finally {
-      val resp = new global.Response[Unit]
-      global.askFilesDeleted(List(sourceFile), resp)
-      getOrThrow(resp)
+  /**
+   * Typechecks expression source with the presentation compiler and passes the typed tree along with compilation
+   * errors to given function, which is invoked in the presentation compiler thread.
+   */
+  protected final def withTypedExpression[T](exprDef: ExpressionDef)
+    (code: (IGlobal, IGlobal#Tree, List[CompileError]) => T): T = {
+
+    val (pkgName, source, offset) = expressionCode(exprDef)
+    val sourceFile = new ExpressionSourceFile(exprDef, pkgName, source, offset)
+
+    withPresentationInstance(exprDef.profile) { instance =>
+      val global = instance.global
+      inCompilerThread(global) {
+        val tree = global.typeCheckUnloaded(sourceFile).body
+        code(global, tree, instance.reporter.compileErrors(sourceFile))
+      }
     }
   }
 
-  protected def getScopeCompletion(exprDef: ExpressionDef): Completion = withIGlobal { global =>
-    val symbolValidator = exprDef.profile.symbolValidator
-    val symbolAttributes = exprDef.profile.symbolAttributes
-
+  protected def getScopeCompletion(exprDef: ExpressionDef): Completion = {
     val (pkgName, code, offset) = expressionCode(exprDef, noMacroProcessing = true)
     val sourceFile = new ExpressionSourceFile(exprDef, pkgName, code, offset)
+    withIGlobal(exprDef.profile)(scopeCompletion(_, exprDef, sourceFile, offset))
+  }
+
+  private def scopeCompletion(global: IGlobal, exprDef: ExpressionDef, sourceFile: ExpressionSourceFile, offset: Int): Completion = {
+    val symbolValidator = exprDef.profile.symbolValidator
+    val symbolAttributes = exprDef.profile.symbolAttributes
 
     import global.{position => _, sourceFile => _, _}
-    try {
-      val pos = sourceFile.position(offset)
-      logger.debug(s"Computing scope completion for $exprDef")
+    val pos = sourceFile.position(offset)
+    logger.debug(s"Computing scope completion for $exprDef")
+
+    val unit = inCompilerThread(global)(typeCheckUnloaded(sourceFile))
 
-      val treeResponse = new Response[Tree]
-      askLoadedTyped(sourceFile, keepLoaded = true, treeResponse)
-      val sourceTree = getOrThrow(treeResponse)
+    val vc = ValidationContext(global)(getContextTpe(global)(unit.body))
 
-      val vc = ValidationContext(global)(getContextTpe(global)(sourceTree))
+    inCompilerThread(global) {
       import vc._
 
       def accessFromScopeMember(m: ScexScopeMember): MemberAccess =
         extractAccess(Select(m.viaImport, m.sym))
 
-      inCompilerThread {
-        val scope: Vector[ScexScopeMember] = scopeMembers(pos)
-        val membersIterator = scope.iterator.filter { m =>
-          m.viaImport != EmptyTree && m.sym.isTerm && !m.sym.hasPackageFlag && !isFromProfileObject(m.sym) &&
-            symbolValidator.validateMemberAccess(vc)(accessFromScopeMember(m)).deniedAccesses.isEmpty
-        } map translateMember(global, symbolAttributes)
+      val scope: Vector[ScexScopeMember] = scopeMembers(doLocateContext(unit, pos))
+      val membersIterator = scope.iterator.filter { m =>
+        m.viaImport != EmptyTree && m.sym.isTerm && !m.sym.hasPackageFlag && !isFromProfileObject(m.sym) &&
+          symbolValidator.validateMemberAccess(vc)(accessFromScopeMember(m)).deniedAccesses.isEmpty
+      } map translateMember(global, symbolAttributes)
 
-        Completion(ast.EmptyTree, membersIterator.toVector)
-      }
-
-    } finally {
-      val resp = new global.Response[Unit]
-      global.askFilesDeleted(List(sourceFile), resp)
-      getOrThrow(resp)
+      Completion(ast.EmptyTree, membersIterator.toVector)
     }
   }
 
-  protected def getTypeCompletion(exprDef: ExpressionDef, position: Int): Completion = withIGlobal { global =>
+  protected def getTypeCompletion(exprDef: ExpressionDef, position: Int): Completion = {
     logger.debug(s"Computing type completion for $exprDef at position $position")
     val startTime = System.nanoTime()
 
-    val symbolValidator = exprDef.profile.symbolValidator
-    val symbolAttributes = exprDef.profile.symbolAttributes
-
     val (pkgName, code, offset) = expressionCode(exprDef, noMacroProcessing = true)
     val sourceFile = new ExpressionSourceFile(exprDef, pkgName, code, offset)
+    // generated before taking presentation compiler, because code generation may need to compile shared sources
+    val preludeSource = preludeSourceFile(exprDef)
+    val result = withPresentationInstance(exprDef.profile)(typeCompletion(_, exprDef, position, sourceFile, offset, preludeSource))
+
+    val duration = System.nanoTime() - startTime
+    logger.debug(s"Completion took ${duration / 1000000}ms")
+
+    result
+  }
+
+  private def preludeSourceFile(exprDef: ExpressionDef): ExpressionSourceFile = {
+    val preludeDef = exprDef.copy(expression = "")("", EmptyPositionMapping, exprDef.rootObjectClass)
+    val (pkgName, code, offset) = expressionCode(preludeDef, noMacroProcessing = true)
+    new ExpressionSourceFile(preludeDef, pkgName, code, offset)
+  }
+
+  private def getPrelude(instance: PresentationInstance, preludeSource: ExpressionSourceFile): instance.Prelude = {
+    val global: instance.global.type = instance.global
+    inCompilerThread(global) {
+      instance.preludes.getIfPresent(preludeSource.exprDef) match {
+        case prelude if prelude != null && prelude.runId == global.currentRunId =>
+          prelude
+        case _ =>
+          logger.debug(s"Typechecking prelude of ${preludeSource.exprDef}")
+          val unit = global.typeCheckUnloaded(preludeSource)
+          // context in which the typer typechecks expression body
+          val context = global.doLocateContext(unit, preludeSource.expressionPos)
+          val prelude = new instance.Prelude(context, getContextTpe(global)(unit.body), global.currentRunId)
+          instance.preludes.put(preludeSource.exprDef, prelude)
+          prelude
+      }
+    }
+  }
 
+  private def typeCompletion(
+    instance: PresentationInstance, exprDef: ExpressionDef, position: Int, sourceFile: ExpressionSourceFile, offset: Int,
+    preludeSource: ExpressionSourceFile
+  ): Completion = {
+    val symbolValidator = exprDef.profile.symbolValidator
+    val symbolAttributes = exprDef.profile.symbolAttributes
+
+    val global: instance.global.type = instance.global
     import global.{position => _, sourceFile => _, _}
 
     val positionFixer: Traverser = new Traverser {
@@ -346,76 +451,69 @@ trait ScexPresentationCompiler extends ScexCompiler { compiler =>
       }
     }
 
-    val result = {
-      try {
-        val sourcePosition = sourceFile.position(offset + exprDef.positionMapping(position))
-
-        val treeResponse = new Response[Tree]
-        askLoadedTyped(sourceFile, keepLoaded = true, treeResponse)
-        val fullTree = getOrThrow(treeResponse)
+    val sourcePosition = sourceFile.position(offset + exprDef.positionMapping(position))
 
-        val vc = ValidationContext(global)(getContextTpe(global)(fullTree))
-        import vc._
+    val prelude = getPrelude(instance, preludeSource)
+    val vc = ValidationContext(global)(prelude.contextTpe)
 
-        inCompilerThread {
-          positionFixer.traverse(fullTree)
-
-          val tree = new ScexLocator(sourcePosition).locateIn(fullTree).toOpt
-            .filter(t => t.pos != NoPosition && t.pos.start >= offset).getOrElse(EmptyTree)
+    inCompilerThread(global) {
+      import vc._
 
-          def isAllowed(tree: Tree) =
-            symbolValidator.validateMemberAccess(vc)(extractAccess(tree)).deniedAccesses.isEmpty
+      // Only the expression body (right hand side of result val) is typechecked, in the context of the prelude.
+      // It is parsed from the full source in order to have the same positions as in the full source.
+      val resultRhs = parseTree(sourceFile).collect {
+        case ValDef(_, TermName(ResultSymbol), _, rhs) => rhs
+      }.head
+      val unit = new RichCompilationUnit(sourceFile)
+      val typedTree = analyzer.newTyper(prelude.context.make(resultRhs, unit = unit)).typed(resultRhs)
+      val context = locateContext(unit.contexts, sourcePosition).getOrElse(prelude.context)
 
-          val completionCtx = global.typeCompletionContext(tree, sourcePosition, isAllowed)
-          logger.debug("Prefix tree for type completion:\n" + show(completionCtx.prefixTree, printTypes = true, printPositions = true))
+      positionFixer.traverse(typedTree)
 
-          val members = getTypeMembers(global)(exprDef, completionCtx.ownerTpe) {
-            val typeMembers = global.typeMembers(completionCtx)
+      val tree = new ScexLocator(sourcePosition).locateIn(typedTree).toOpt
+        .filter(t => t.pos != NoPosition && t.pos.start >= offset).getOrElse(EmptyTree)
 
-            def fakeIdent(tpe: Type, symbol: Symbol) =
-              Ident(nme.EMPTY).setSymbol(Option(symbol).getOrElse(NoSymbol)).setType(tpe)
+      def isAllowed(tree: Tree) =
+        symbolValidator.validateMemberAccess(vc)(extractAccess(tree)).deniedAccesses.isEmpty
 
-            val fakeDirectPrefix = fakeIdent(completionCtx.ownerTpe, tree.symbol)
+      val completionCtx = global.typeCompletionContext(tree, context, sourcePosition, isAllowed)
+      logger.debug("Prefix tree for type completion:\n" + show(completionCtx.prefixTree, printTypes = true, printPositions = true))
 
-            def fakeSelect(member: ScexTypeMember) = {
-              val fakePrefix =
-                if (!member.implicitlyAdded) fakeDirectPrefix
-                else Apply(member.implicitTree, List(fakeDirectPrefix))
-                  .setSymbol(member.implicitTree.symbol).setType(member.implicitType)
-              Select(fakePrefix, member.sym)
-            }
+      val members = getTypeMembers(global)(exprDef, completionCtx.ownerTpe) {
+        val typeMembers = global.typeMembers(completionCtx)
 
-            typeMembers.collect {
-              case m if m.sym.isTerm && m.sym.isPublic && !m.sym.isConstructor
-                && !isAdapterWrappedMember(m.sym) && isAllowed(fakeSelect(m)) => translateMember(global, symbolAttributes)(m)
-            }
-          }
+        def fakeIdent(tpe: Type, symbol: Symbol) =
+          Ident(nme.EMPTY).setSymbol(Option(symbol).getOrElse(NoSymbol)).setType(tpe)
 
-          val translator = new ast.Translator(global, offset, exprDef)
-          val translatedTree = translator.translateTree(completionCtx.prefixTree.asInstanceOf[translator.u.Tree])
+        val fakeDirectPrefix = fakeIdent(completionCtx.ownerTpe, tree.symbol)
 
-          Completion(translatedTree, members)
+        def fakeSelect(member: ScexTypeMember) = {
+          val fakePrefix =
+            if (!member.implicitlyAdded) fakeDirectPrefix
+            else Apply(member.implicitTree, List(fakeDirectPrefix))
+              .setSymbol(member.implicitTree.symbol).setType(member.implicitType)
+          Select(fakePrefix, member.sym)
         }
 
-      } finally {
-        val resp = new global.Response[Unit]
-        global.askFilesDeleted(List(sourceFile), resp)
-        getOrThrow(resp)
+        typeMembers.collect {
+          case m if m.sym.isTerm && m.sym.isPublic && !m.sym.isConstructor
+            && !isAdapterWrappedMember(m.sym) && isAllowed(fakeSelect(m)) => translateMember(global, symbolAttributes)(m)
+        }
       }
-    }
 
-    val duration = System.nanoTime() - startTime
-    logger.debug(s"Completion took ${duration / 1000000}ms")
+      val translator = new ast.Translator(global, offset, exprDef)
+      val translatedTree = translator.translateTree(completionCtx.prefixTree.asInstanceOf[translator.u.Tree])
 
-    result
+      Completion(translatedTree, members)
+    }
   }
 
   // method extracted in order to make it possible to cache results by some other trait
   protected def getTypeMembers(global: IGlobal)(exprDef: ExpressionDef, ownerTpe: global.Type)
     (computeMembers: => Vector[SMember]): Vector[SMember] = computeMembers
 
-  protected def parse(exprDef: ExpressionDef) = withIGlobal { global =>
-    inCompilerThread {
+  protected def parse(exprDef: ExpressionDef) = withIGlobal(exprDef.profile) { global =>
+    inCompilerThread(global) {
       val parsedTree = global.parseExpression(exprDef.expression, exprDef.template)
       val translator = new ast.Translator(global, 0, exprDef)
       translator.translateTree(parsedTree.asInstanceOf[translator.u.Tree])
@@ -436,16 +534,41 @@ trait ScexPresentationCompiler extends ScexCompiler { compiler =>
     }
   }
 
+  /**
+   * Loads shared source into all given presentation compilers in parallel. Loading starts a new run, in which all
+   * previously loaded sources are entered again, so they are typechecked right away instead of leaving it to
+   * a background pass, which could replace their symbols in the middle of a request. Requests themselves never
+   * start a new run, so that typechecked preludes may be reused until the next shared source is loaded.
+   * Presentation compiler must not start a new run in the middle of a request, so this waits until all of them are
+   * free. This is always called under compiler lock, while presentation compilers are used without it, so it may
+   * take all their locks.
+   */
+  private def loadShared(instances: Seq[PresentationInstance], sourceFile: ScexSourceFile): Unit = {
+    def askLoadedTyped(global: IGlobal, source: SourceFile): IGlobal#Response[_] = {
+      val response = new global.Response[global.Tree]
+      global.askLoadedTyped(source, keepLoaded = true, response)
+      response
+    }
+
+    instances.foreach(_.lock.lock())
+    try {
+      instances.map(instance => askLoadedTyped(instance.global, sourceFile)).foreach(getOrThrow(_))
+      instances.flatMap { instance =>
+        val global = instance.global
+        inCompilerThread(global)(global.loadedSources).map(askLoadedTyped(global, _))
+      }.foreach(getOrThrow(_))
+    } finally {
+      instances.foreach(_.lock.unlock())
+    }
+  }
+
   override protected def compile(sourceFile: ScexSourceFile) = {
     val result = super.compile(sourceFile)
 
     if (isEnabled) {
       result match {
-        case Left(_) if sourceFile.shared =>
-          val global = this.global
-          val response = new global.Response[global.Tree]
-          global.askLoadedTyped(sourceFile, keepLoaded = true, response)
-          getOrThrow(response)
+        // under lock, so that the source is never loaded by presentation compiler which is being replaced
+        case Left(_) if sourceFile.shared => underLock(loadShared(presentationInstances, sourceFile))
         case _ =>
       }
     }
@@ -453,11 +576,48 @@ trait ScexPresentationCompiler extends ScexCompiler { compiler =>
     result
   }
 
+  private class PresentationCompilerReplacement(underlying: CompilerReplacement) extends CompilerReplacement {
+    def sharedClassLoader: ScexClassLoader = underlying.sharedClassLoader
+
+    private val newInstances = newPresentationInstances(sharedClassLoader)
+
+    def compileShared(sourceFile: ScexSourceFile): Unit = {
+      underlying.compileShared(sourceFile)
+      loadShared(newInstances, sourceFile)
+    }
+
+    def install(): Unit = {
+      underlying.install()
+      withPresentationWriteLock {
+        val oldInstances = presentationInstances
+        presentationInstances = newInstances
+        oldInstances.foreach(_.global.askShutdown())
+      }
+    }
+
+    def discard(): Unit = {
+      underlying.discard()
+      newInstances.foreach(_.global.askShutdown())
+    }
+  }
+
+  override protected def createReplacement(): CompilerReplacement =
+    if (isEnabled) new PresentationCompilerReplacement(super.createReplacement())
+    else super.createReplacement()
+
+  // waits until presentation compilers that are currently in use are released
+  private def withPresentationWriteLock[T](code: => T): T = {
+    presentationLock.writeLock.lock()
+    try code finally presentationLock.writeLock.unlock()
+  }
+
   override def reset(): Unit =
     if (isEnabled) {
       underLock {
-        global.askShutdown()
-        super.reset()
+        withPresentationWriteLock {
+          presentationInstances.foreach(_.global.askShutdown())
+          super.reset()
+        }
       }
     } else super.reset()
 }
@@ -1,18 +1,24 @@
 package com.avsystem.scex
 package compiler.xmlfriendly
 
+import java.{lang => jl}
+
 import com.avsystem.scex.compiler.CodeGeneration
-import com.avsystem.scex.parsing.{Binding, PString, PositionTrackingParsers}
+import com.avsystem.scex.parsing.{Binding, Modification, PString}
 import com.avsystem.scex.util.CommonUtils._
 
+import scala.collection.mutable.ArrayBuffer
+
 /**
-  * Parser that translates XML-friendly expressions into correct scala code.
-  * Implemented using Scala parser combinators (recursive descent parser).
+  * Translates XML-friendly expressions into correct scala code.
+  * Implemented as a hand-written scanner which makes a single pass over the expression. Tokens are translated
+  * as they are scanned, so a block that turns out to be malformed is rolled back and translation stops before it,
+  * leaving the rest of the expression untranslated.
   *
   * Created: 17-09-2013
   * Author: ghik
   */
-object XmlFriendlyTranslator extends PositionTrackingParsers {
+object XmlFriendlyTranslator {
   final val AllowedKeywords = Set(
     "case", "else", "false", "if", "match", "new", "null", "true"
   )
@@ -26,77 +32,184 @@ object XmlFriendlyTranslator extends PositionTrackingParsers {
     "or" -> "||"
   ).withDefault(identity)
 
-  def escapeIdent(pstr: PString): PString =
-    if (!AllowedKeywords.contains(pstr.result) && ScalaKeywords.contains(pstr.result))
-      "`".bind(Binding.Right) + pstr + "`".bind(Binding.Left)
-    else
-      pstr.withResult(XmlFriendlyOperators(pstr.result))
+  private final val VariablePrefix = CodeGeneration.VariablesSymbol + "."
 
   def translate(expr: String, template: Boolean = false): PString =
-    parse(if (template) templateParser else expressionParser, expr).getOrElse(PString(expr, 0, expr.length, Vector.empty))
-
-  val expressionParser: Parser[PString] = standardExpression ~ arbitraryEnding ^^ concat
-  val templateParser: Parser[PString] = stringExpression ~ arbitraryEnding ^^ concat
+    new Translation(expr).translate(template)
 
-  def literalPart: Parser[PString] =
-    rep1("[^$]+".rp) ^^ join
+  private def isIdentStart(c: Char): Boolean =
+    c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c == '_'
 
-  def literalDollar: Parser[PString] =
-    "\\$(?!\\{)".rp ^^ (_ + "$".bind(Binding.Left))
+  private def isIdentPart(c: Char): Boolean =
+    isIdentStart(c) || isDigit(c)
 
-  def stringExpression: Parser[PString] =
-    rep(literalPart | literalDollar | interpolatedParam) ^^ join
+  private def isDigit(c: Char): Boolean =
+    c >= '0' && c <= '9'
 
-  def interpolatedParam: Parser[PString] =
-    "$".p ~ block ^^ concat
+  private def isHexDigit(c: Char): Boolean =
+    isDigit(c) || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F'
 
-  def standardExpression: Parser[PString] =
-    rep(ident | btident | variable | stringlit | number | block | delim | operator | bracket | whitespace) ^^ join
+  // same as \s in Java regexes
+  private def isWhitespace(c: Char): Boolean =
+    c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r'
 
-  def ident: Parser[PString] =
-    "[A-Za-z_][A-Za-z_0-9]*".rp ^^ escapeIdent
+  // same as \p{Cntrl} in Java regexes
+  private def isControl(c: Char): Boolean =
+    c < ' ' || c == '\u007F'
 
-  def btident: Parser[PString] =
-    "`[^`]*`?".rp
-
-  def stringlit: Parser[PString] =
-    (("\'".p ~ stringlitContents ~ opt("\'".p)) | ("\"".p ~ stringlitContents ~ opt("\"".p))) ^^ {
-      case beg ~ contents ~ endOpt =>
-        beg.withResult("\"") + contents + endOpt.map(_.withResult("\""))
-    }
+  // characters not matched by '.' in Java regexes
+  private def isLineTerminator(c: Char): Boolean =
+    c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029'
 
-  def stringlitContents: Parser[PString] =
-    """([^"'\p{Cntrl}\\]|\\[\\'"bfnrt]|\\u[a-fA-F0-9]{4})*""".rp
+  // operators, delimiters and brackets, copied as they are
+  private def isSymbol(c: Char): Boolean =
+    "^-\\~!@#$%&*=+<>/?|:,;.()[]".indexOf(c) >= 0
 
-  def number: Parser[PString] =
-    "[0-9]+".rp
+  private final class Translation(expr: String) {
+    private[this] val length = expr.length
+    private[this] val result = new jl.StringBuilder(length + 16)
+    private[this] val mods = new ArrayBuffer[Modification]
+    private[this] var pos = 0
 
-  def block: Parser[PString] = "{".p ~ standardExpression ~ "}".p ^^ {
-    case lb ~ contents ~ rb => lb + contents + rb
-  }
+    def translate(template: Boolean): PString = {
+      if (template) stringExpression() else standardExpression()
+      arbitraryEnding()
+    }
 
-  def operator: Parser[PString] =
-    "[\\^\\-\\\\~!@#$%&*=+<>/?|:]".rp
+    private def copy(end: Int): Unit = {
+      result.append(expr, pos, end)
+      pos = end
+    }
 
-  def delim: Parser[PString] = "[,;.]".rp
+    private def skip(end: Int)(pred: Char => Boolean): Int = {
+      var i = end
+      while (i < length && pred(expr.charAt(i))) {
+        i += 1
+      }
+      i
+    }
 
-  def variable: Parser[PString] = "#".p ~ (ident | btident) ^^ { case hash ~ id =>
-    " ".bind(Binding.Left) + hash.replaceWith(CodeGeneration.VariablesSymbol + ".", Binding.Right) + id
-  }
+    /**
+      * Translates tokens until a character that can't start any token (or closing brace of enclosing block) or
+      * a malformed block is encountered.
+      */
+    private def standardExpression(): Unit =
+      while (pos < length) {
+        val c = expr.charAt(pos)
+        if (isIdentStart(c)) ident()
+        else if (c == '`') btident()
+        else if (c == '#' && pos + 1 < length && (isIdentStart(expr.charAt(pos + 1)) || expr.charAt(pos + 1) == '`')) variable()
+        else if (c == '\'' || c == '"') stringlit(c)
+        else if (isDigit(c)) copy(skip(pos + 1)(isDigit))
+        else if (c == '{') {
+          if (!block()) return
+        }
+        else if (isSymbol(c)) copy(pos + 1)
+        else if (isWhitespace(c)) copy(skip(pos + 1)(isWhitespace))
+        else return
+      }
+
+    private def stringExpression(): Unit =
+      while (pos < length) {
+        val dollar = expr.indexOf('$', pos)
+        if (dollar < 0) copy(length)
+        else if (dollar > pos) copy(dollar)
+        else if (pos + 1 < length && expr.charAt(pos + 1) == '{') {
+          val resultMark = result.length
+          result.append('$')
+          pos += 1
+          if (!block()) {
+            result.setLength(resultMark)
+            pos -= 1
+            return
+          }
+        } else {
+          // literal dollar is escaped
+          pos += 1
+          result.append("$$")
+          mods += Modification(pos, 1, Binding.Left)
+        }
+      }
+
+    private def block(): Boolean = {
+      val start = pos
+      val resultMark = result.length
+      val modsMark = mods.length
+      result.append('{')
+      pos += 1
+      standardExpression()
+      if (pos < length && expr.charAt(pos) == '}') {
+        copy(pos + 1)
+        true
+      } else {
+        pos = start
+        result.setLength(resultMark)
+        mods.dropRightInPlace(mods.length - modsMark)
+        false
+      }
+    }
 
-  def bracket: Parser[PString] =
-    "[()\\[\\]]".rp
+    private def ident(): Unit = {
+      val start = pos
+      pos = skip(pos + 1)(isIdentPart)
+      val ident = expr.substring(start, pos)
+      if (!AllowedKeywords.contains(ident) && ScalaKeywords.contains(ident)) {
+        mods += Modification(start, 1, Binding.Right)
+        result.append('`').append(ident).append('`')
+        mods += Modification(pos, 1, Binding.Left)
+      } else
+        result.append(XmlFriendlyOperators(ident))
+    }
 
-  def whitespace: Parser[PString] =
-    "\\s+".rp
+    private def btident(): Unit = {
+      val closing = expr.indexOf('`', pos + 1)
+      copy(if (closing < 0) length else closing + 1)
+    }
 
-  def arbitraryEnding: Parser[PString] =
-    ".*$".rp
+    private def variable(): Unit = {
+      mods += Modification(pos, 1, Binding.Left)
+      mods += Modification(pos, -1, Binding.Right)
+      mods += Modification(pos, VariablePrefix.length, Binding.Right)
+      result.append(' ').append(VariablePrefix)
+      pos += 1
+      if (isIdentStart(expr.charAt(pos))) ident() else btident()
+    }
 
-  override def skipWhitespace = false
+    // single-quoted string literals become double-quoted, unterminated ones are left unterminated
+    private def stringlit(quote: Char): Unit = {
+      result.append('"')
+      pos += 1
+      var end = pos
+      var continue = true
+      while (continue && end < length) {
+        val c = expr.charAt(end)
+        if (c == '"' || c == '\'' || isControl(c)) continue = false
+        else if (c != '\\') end += 1
+        else if (end + 1 < length && "\\'\"bfnrt".indexOf(expr.charAt(end + 1)) >= 0) end += 2
+        else if (end + 5 < length && expr.charAt(end + 1) == 'u' && (end + 2 until end + 6).forall(i => isHexDigit(expr.charAt(i))))
+          end += 6
+        else continue = false
+      }
+      copy(end)
+      if (pos < length && expr.charAt(pos) == quote) {
+        result.append('"')
+        pos += 1
+      }
+    }
 
-  def concat(result: PString ~ PString): PString = result match {
-    case first ~ second => first + second
+    /**
+      * The rest of expression is left untranslated. It may not contain line terminators other than a single one
+      * at the very end, which is dropped, or else the whole expression is left untranslated.
+      */
+    private def arbitraryEnding(): PString = {
+      val terminator = skip(pos)(c => !isLineTerminator(c))
+      val terminatorLength =
+        if (terminator + 1 < length && expr.charAt(terminator) == '\r' && expr.charAt(terminator + 1) == '\n') 2 else 1
+      if (terminator == length || terminator + terminatorLength == length) {
+        copy(terminator)
+        PString(result.toString, 0, pos, mods.toVector)
+      } else
+        PString(expr, 0, length, Vector.empty)
+    }
   }
-
 }
@@ -12,6 +12,7 @@ class DefaultJavaScexCompiler(val settings: ScexSettings)
   extends ScexCompiler
   with ScexPresentationCompiler
   with ClassfileReusingScexCompiler
+  with TieredScexCompiler
   with TemplateOptimizingScexCompiler
   with CachingScexCompiler
   with CachingScexPresentationCompiler
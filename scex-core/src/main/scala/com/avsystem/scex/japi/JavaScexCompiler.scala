@@ -2,6 +2,7 @@ package com.avsystem.scex
 package japi
 
 import java.lang.reflect.Type
+import java.util.concurrent.CompletableFuture
 import java.{util => ju}
 
 import com.avsystem.scex.compiler.JavaTypeParsing._
@@ -44,8 +45,54 @@ trait JavaScexCompiler extends ScexCompiler with ScexPresentationCompiler {
     private var _setter: Boolean = false
     private var _header: String = ""
     private val _variableTypes: ju.Map[String, TypeToken[_]] = new ju.HashMap
+    // built lazily and reused by subsequent compilations until the builder is modified, so that repeated compilation
+    // with the same builder doesn't need to preprocess the expression and hits compilation cache with the same key
+    private var _expressionDef: ExpressionDef = _
 
-    def get: Expression[C, T] = {
+    private def modification(code: Unit): this.type = {
+      _expressionDef = null
+      this
+    }
+
+    def get: Expression[C, T] =
+      getCompiledExpression[C, T](expressionDef)
+
+    /**
+     * Compiles the expression asynchronously, without blocking the calling thread.
+     */
+    def getAsync: CompletableFuture[Expression[C, T]] =
+      getCompiledExpressionAsync[C, T](expressionDef)
+
+    /**
+     * Variants of [[get]] for primitive result types (e.g. `boolean.class`), which evaluate without boxing the result.
+     */
+    def getBoolean: BooleanExpression[C] =
+      BooleanExpression.of(getCompiledExpression[C, Boolean](primitiveExpressionDef("Boolean")))
+
+    def getInt: IntExpression[C] =
+      IntExpression.of(getCompiledExpression[C, Int](primitiveExpressionDef("Int")))
+
+    def getLong: LongExpression[C] =
+      LongExpression.of(getCompiledExpression[C, Long](primitiveExpressionDef("Long")))
+
+    def getDouble: DoubleExpression[C] =
+      DoubleExpression.of(getCompiledExpression[C, Double](primitiveExpressionDef("Double")))
+
+    private def primitiveExpressionDef(resultType: String): ExpressionDef = {
+      val exprDef = expressionDef
+      require(!exprDef.setter && exprDef.resultType == resultType,
+        s"Result type must be primitive $resultType, got ${exprDef.resultType}")
+      exprDef
+    }
+
+    private def expressionDef: ExpressionDef = {
+      if (_expressionDef == null) {
+        _expressionDef = buildExpressionDef
+      }
+      _expressionDef
+    }
+
+    private def buildExpressionDef: ExpressionDef = {
       require(_contextTypeToken != null, "Context type cannot be null")
       require(_resultTypeToken != null, "Result type cannot be null")
       require(_profile != null, "Profile cannot be null")
@@ -60,71 +107,71 @@ trait JavaScexCompiler extends ScexCompiler with ScexPresentationCompiler {
       }.toMap
 
       val (actualExpression, positionMapping) = preprocess(_expression, _template)
-      getCompiledExpression[C, T](ExpressionDef(_profile, _template, _setter, actualExpression, _header,
-        scalaContextType, scalaResultType, variableTypes)(_expression, positionMapping, rootObjectClass))
+      ExpressionDef(_profile, _template, _setter, actualExpression, _header,
+        scalaContextType, scalaResultType, variableTypes)(_expression, positionMapping, rootObjectClass)
     }
 
-    def contextType[NC <: ExpressionContext[_, _]](contextTypeToken: TypeToken[NC]): ExpressionBuilder[NC, T] = fluent {
+    def contextType[NC <: ExpressionContext[_, _]](contextTypeToken: TypeToken[NC]): ExpressionBuilder[NC, T] = modification {
       _contextTypeToken = contextTypeToken
     }.asInstanceOf[ExpressionBuilder[NC, T]]
 
-    def contextType[NC <: ExpressionContext[_, _]](contextClass: Class[NC]): ExpressionBuilder[NC, T] = fluent {
+    def contextType[NC <: ExpressionContext[_, _]](contextClass: Class[NC]): ExpressionBuilder[NC, T] = modification {
       _contextTypeToken = TypeToken.of(contextClass)
     }.asInstanceOf[ExpressionBuilder[NC, T]]
 
-    def resultType[NT](resultTypeToken: TypeToken[NT]): ExpressionBuilder[C, NT] = fluent {
+    def resultType[NT](resultTypeToken: TypeToken[NT]): ExpressionBuilder[C, NT] = modification {
       _resultTypeToken = resultTypeToken
       _setter = false
     }.asInstanceOf[ExpressionBuilder[C, NT]]
 
-    def resultType[NT](resultClass: Class[NT]): ExpressionBuilder[C, NT] = fluent {
+    def resultType[NT](resultClass: Class[NT]): ExpressionBuilder[C, NT] = modification {
       _resultTypeToken = TypeToken.of(resultClass)
       _setter = false
     }.asInstanceOf[ExpressionBuilder[C, NT]]
 
-    def setterFor[NT](resultTypeToken: TypeToken[NT]): ExpressionBuilder[C, Setter[NT]] = fluent {
+    def setterFor[NT](resultTypeToken: TypeToken[NT]): ExpressionBuilder[C, Setter[NT]] = modification {
       _resultTypeToken = resultTypeToken
       _setter = true
     }.asInstanceOf[ExpressionBuilder[C, Setter[NT]]]
 
-    def setterFor[NT](resultClass: Class[NT]): ExpressionBuilder[C, Setter[NT]] = fluent {
+    def setterFor[NT](resultClass: Class[NT]): ExpressionBuilder[C, Setter[NT]] = modification {
       _resultTypeToken = TypeToken.of(resultClass)
       _setter = true
     }.asInstanceOf[ExpressionBuilder[C, Setter[NT]]]
 
-    def profile(profile: ExpressionProfile): this.type = fluent {
+    def profile(profile: ExpressionProfile): this.type = modification {
       _profile = profile
     }
 
-    def expression(expression: String): this.type = fluent {
+    def expression(expression: String): this.type = modification {
       _expression = expression
     }
 
-    def template(template: Boolean): this.type = fluent {
+    def template(template: Boolean): this.type = modification {
       _template = template
     }
 
-    def additionalHeader(header: String): this.type = fluent {
+    def additionalHeader(header: String): this.type = modification {
       _header = header
     }
 
-    def variableTypes(variableTypes: ju.Map[String, TypeToken[_]]): this.type = fluent {
+    def variableTypes(variableTypes: ju.Map[String, TypeToken[_]]): this.type = modification {
       _variableTypes.clear()
       _variableTypes.putAll(variableTypes)
     }
 
-    def variableType(name: String, typeToken: TypeToken[_]): this.type = fluent {
+    def variableType(name: String, typeToken: TypeToken[_]): this.type = modification {
       _variableTypes.put(name, typeToken)
     }
 
-    def variableClasses(variableTypes: ju.Map[String, Class[_]]): this.type = fluent {
+    def variableClasses(variableTypes: ju.Map[String, Class[_]]): this.type = modification {
       _variableTypes.clear()
       variableTypes.entrySet.iterator.asScala.foreach { e =>
         _variableTypes.put(e.getKey, TypeToken.of(e.getValue))
       }
     }
 
-    def variableClass(name: String, clazz: Class[_]): this.type = fluent {
+    def variableClass(name: String, clazz: Class[_]): this.type = modification {
       _variableTypes.put(name, TypeToken.of(clazz))
     }
   }
@@ -13,6 +13,7 @@ class XmlFriendlyJavaScexCompiler(val settings: ScexSettings)
   extends ScexCompiler
     with ScexPresentationCompiler
     with ClassfileReusingScexCompiler
+    with TieredScexCompiler
     with TemplateOptimizingScexCompiler
     with XmlFriendlyScexCompiler
     with CachingScexCompiler
@@ -24,8 +24,8 @@ final case class Bound(str: String, binding: Binding) {
 final case class PString(result: String, beg: Int, end: Int, mods: Vector[Modification]) {
   lazy val positionMapping: PositionMapping = {
     val normalizedMods = if (beg > 0) Modification(0, -beg, Binding.Right) :: mods.toList else mods.toList
-    val (shiftMapping, reverseShiftMapping) = PString.computeMapping(normalizedMods, Nil, Nil)
-    new ShiftInfoPositionMapping(shiftMapping, reverseShiftMapping)
+    val (shiftMapping, reverseShiftMapping) = PString.computeShifts(normalizedMods, Nil, Nil)
+    ShiftInfoPositionMapping.fromAccumulated(shiftMapping, reverseShiftMapping)
   }
 
   def +(other: PString): PString = other match {
@@ -62,11 +62,21 @@ final case class PString(result: String, beg: Int, end: Int, mods: Vector[Modifi
 }
 
 object PString {
-  @tailrec private[scex] def computeMapping(
+  private[scex] def computeMapping(
     mods: List[Modification],
     acc: List[(Int, ShiftInfo)],
     racc: List[(Int, ShiftInfo)]
-  ): (SortedMap[Int, ShiftInfo], SortedMap[Int, ShiftInfo]) =
+  ): (SortedMap[Int, ShiftInfo], SortedMap[Int, ShiftInfo]) = {
+    val (shifts, reverseShifts) = computeShifts(mods, acc, racc)
+    (SortedMap(shifts: _*), SortedMap(reverseShifts: _*))
+  }
+
+  // shift infos are accumulated in reverse order of their offsets
+  @tailrec private[scex] def computeShifts(
+    mods: List[Modification],
+    acc: List[(Int, ShiftInfo)],
+    racc: List[(Int, ShiftInfo)]
+  ): (List[(Int, ShiftInfo)], List[(Int, ShiftInfo)]) =
     (mods, acc, racc) match {
       case (Modification(offset, amount, binding) :: tail, (prevOffset, prevInfo) :: accTail, (rprevOffset, rprevInfo) :: raccTail) =>
         val newAcc = if (offset == prevOffset)
@@ -80,15 +90,15 @@ object PString {
         else
           (roffset, ShiftInfo(rprevInfo.totalShift, -amount, binding)) :: racc
 
-        computeMapping(tail, newAcc, newRacc)
+        computeShifts(tail, newAcc, newRacc)
 
       case (Modification(offset, amount, binding) :: tail, Nil, Nil) =>
-        computeMapping(tail, List((offset, ShiftInfo(0, amount, binding))), List((offset, ShiftInfo(0, -amount, binding))))
+        computeShifts(tail, List((offset, ShiftInfo(0, amount, binding))), List((offset, ShiftInfo(0, -amount, binding))))
 
       case (Nil, _, _) =>
-        (SortedMap(acc: _*), SortedMap(racc: _*))
+        (acc, racc)
 
       case tuple =>
         throw new IllegalArgumentException(tuple.toString())
     }
-}
\ No newline at end of file
+}
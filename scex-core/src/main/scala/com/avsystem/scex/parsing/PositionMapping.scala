@@ -1,6 +1,7 @@
 package com.avsystem.scex.parsing
 
-import scala.annotation.nowarn
+import java.{util => ju}
+
 import scala.collection.immutable.SortedMap
 
 /**
@@ -48,45 +49,100 @@ object ShiftInfo {
     empty(totalPrevShift).update(added, binding).update(-removed, binding)
 }
 
-class ShiftInfoPositionMapping(
-  private val shiftMapping: SortedMap[Int, ShiftInfo],
-  private val reverseShiftMapping: SortedMap[Int, ShiftInfo]
+/**
+  * Position mapping defined by [[ShiftInfo]]s at sorted offsets. Offsets and shift infos (five consecutive ints each)
+  * are kept in primitive arrays, so that mapping a position is a binary search that doesn't allocate anything.
+  */
+class ShiftInfoPositionMapping private(
+  private val offsets: Array[Int],
+  private val shifts: Array[Int],
+  private val reverseOffsets: Array[Int],
+  private val reverseShifts: Array[Int]
 ) extends PositionMapping {
 
-  @nowarn("msg=deprecated")
-  def apply(pos: Int): Int = shiftMapping.to(pos).lastOption match {
-    case Some((offset, si)) =>
+  import ShiftInfoPositionMapping._
+
+  def this(shiftMapping: SortedMap[Int, ShiftInfo], reverseShiftMapping: SortedMap[Int, ShiftInfo]) =
+    this(ShiftInfoPositionMapping.offsetsArray(shiftMapping), ShiftInfoPositionMapping.shiftsArray(shiftMapping),
+      ShiftInfoPositionMapping.offsetsArray(reverseShiftMapping), ShiftInfoPositionMapping.shiftsArray(reverseShiftMapping))
+
+  def apply(pos: Int): Int = {
+    // index of the last offset not greater than pos
+    val idx = ju.Arrays.binarySearch(offsets, pos) match {
+      case found if found >= 0 => found
+      case notFound => -notFound - 2
+    }
+    if (idx < 0) pos
+    else {
       // removedleft|removedright
       //   addedleft|addedright
       //
       // All 'removedleft' positions map to the first position of 'addedleft' or last position before it if empty.
       // All 'removedright' positions map to the first position of 'addedright' or first position after it if empty.
+      val offset = offsets(idx)
+      val base = idx * ShiftInfoSize
+      val totalPrevShift = shifts(base)
+      val addedLeft = shifts(base + 1)
+      val removedLeft = shifts(base + 2)
+      val addedRight = shifts(base + 3)
+      val removedRight = shifts(base + 4)
+
       val relpos = pos - offset
-      val reloffset = offset + si.totalPrevShift
-      if (relpos < si.removedLeft)
-        reloffset - (if (si.addedLeft == 0 && reloffset > 0) 1 else 0)
-      else if (relpos < si.removedLeft + si.removedRight)
-        reloffset + si.addedLeft
+      val reloffset = offset + totalPrevShift
+      if (relpos < removedLeft)
+        reloffset - (if (addedLeft == 0 && reloffset > 0) 1 else 0)
+      else if (relpos < removedLeft + removedRight)
+        reloffset + addedLeft
       else
-        pos + si.totalShift
-
-    case None =>
-      pos
+        pos + totalPrevShift + addedLeft - removedLeft + addedRight - removedRight
+    }
   }
 
   def reverse: PositionMapping =
-    new ShiftInfoPositionMapping(reverseShiftMapping, shiftMapping)
+    new ShiftInfoPositionMapping(reverseOffsets, reverseShifts, offsets, shifts)
 
   override def equals(other: Any): Boolean = other match {
-    case op: ShiftInfoPositionMapping => shiftMapping == op.shiftMapping
+    case op: ShiftInfoPositionMapping => ju.Arrays.equals(offsets, op.offsets) && ju.Arrays.equals(shifts, op.shifts)
     case _ => false
   }
 
   override lazy val hashCode: Int =
-    shiftMapping.hashCode()
+    31 * ju.Arrays.hashCode(offsets) + ju.Arrays.hashCode(shifts)
+
+  override def toString: String = {
+    val infos = offsets.indices.map { idx =>
+      val base = idx * ShiftInfoSize
+      s"${offsets(idx)} -> ${ShiftInfo(shifts(base), shifts(base + 1), shifts(base + 2), shifts(base + 3), shifts(base + 4))}"
+    }
+    infos.mkString("PositionMapping(", ", ", ")")
+  }
+}
 
-  override def toString: String =
-    s"PositionMapping($shiftMapping)"
+object ShiftInfoPositionMapping {
+  private final val ShiftInfoSize = 5
+
+  private def offsetsArray(mapping: Iterable[(Int, ShiftInfo)]): Array[Int] =
+    if (mapping == null) null else mapping.iterator.map(_._1).toArray
+
+  private def shiftsArray(mapping: Iterable[(Int, ShiftInfo)]): Array[Int] =
+    if (mapping == null) null else mapping.iterator.flatMap {
+      case (_, si) => Iterator(si.totalPrevShift, si.addedLeft, si.removedLeft, si.addedRight, si.removedRight)
+    }.toArray
+
+  private def isStrictlyDescending(mapping: List[(Int, ShiftInfo)]): Boolean =
+    mapping.isEmpty || (mapping zip mapping.tail).forall { case ((next, _), (prev, _)) => prev < next }
+
+  /**
+    * Creates position mapping from shift infos accumulated in reverse order of their offsets by
+    * [[PString.computeShifts]], without building sorted maps.
+    */
+  private[scex] def fromAccumulated(shiftMapping: List[(Int, ShiftInfo)], reverseShiftMapping: List[(Int, ShiftInfo)]): ShiftInfoPositionMapping = {
+    require(isStrictlyDescending(shiftMapping) && isStrictlyDescending(reverseShiftMapping),
+      "shift infos must be accumulated in strictly descending order of their offsets")
+    val shifts = shiftMapping.reverse
+    val reverseShifts = reverseShiftMapping.reverse
+    new ShiftInfoPositionMapping(offsetsArray(shifts), shiftsArray(shifts), offsetsArray(reverseShifts), shiftsArray(reverseShifts))
+  }
 }
 
 final case class SingleShiftPositionMapping(amount: Int) extends PositionMapping {
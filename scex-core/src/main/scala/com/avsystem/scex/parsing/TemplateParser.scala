@@ -1,18 +1,295 @@
 package com.avsystem.scex.parsing
 
+import scala.collection.mutable.ListBuffer
+import scala.reflect.internal.Chars
+import scala.util.parsing.combinator.RegexParsers
+import scala.util.parsing.input.CharSequenceReader
+
 /**
+ * Splits templates into literal parts and `$ident` or `${...}` arguments.
+ * Implemented as a hand-written scanner that accepts exactly the same language as the grammar defined
+ * in [[ScalaParsingCommons]], but without the overhead of parser combinators. The original, combinator based
+ * implementation is kept in tests as `CombinatorTemplateParser`.
+ * Extends `RegexParsers` only to expose the same `ParseResult` API.
+ *
  * Created: 03-11-2014
  * Author: ghik
  */
-object TemplateParser extends ScalaParsingCommons with PositionTrackingParsers {
-
-  private val part = multilineInterpolationChars ^^ (_.replace("$$", "$"))
-  private val arg = new ParserWithPos(interpolationArg)
+object TemplateParser extends RegexParsers {
 
-  private val templateParser = rep(part ~ arg) ~ part ^^ {
-    case pairs ~ lastPart => (pairs.map(_._1) :+ lastPart, pairs.map(_._2))
-  }
+  override def skipWhitespace = false
 
   def parseTemplate(expr: String): ParseResult[(List[String], List[PString])] =
-    parseAll(templateParser, expr)
+    new Scanner(expr).template()
+
+  // literally, not as a regex - this is how ScalaParsingCommons.charLiteral is defined
+  private final val CharLiteralBody = "[^\\p{Cntrl}\\\\]"
+
+  // same as \s in Java regexes
+  private def isWhitespace(c: Char): Boolean =
+    c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r'
+
+  // same as \p{Cntrl} in Java regexes
+  private def isControl(c: Char): Boolean =
+    c < ' ' || c == '\u007F'
+
+  private def isDigit(c: Char): Boolean =
+    c >= '0' && c <= '9'
+
+  private def isHexDigit(c: Char): Boolean =
+    isDigit(c) || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F'
+
+  private def isIdPart(c: Char): Boolean =
+    Chars.isIdentifierPart(c) && c != '_'
+
+  /**
+   * Every scanning method takes a position at which a token is expected and returns position right after it
+   * or -1 when there is no such token at given position.
+   */
+  private final class Scanner(expr: String) {
+    private[this] val length = expr.length
+
+    def template(): ParseResult[(List[String], List[PString])] = {
+      val parts = new ListBuffer[String]
+      val args = new ListBuffer[PString]
+      var partStart = 0
+      var partEnd = part(partStart)
+      var argEnd = interpolationArg(partEnd)
+      while (argEnd >= 0) {
+        parts += partString(partStart, partEnd)
+        args += PString(expr.substring(partEnd, argEnd), partEnd, argEnd, Vector.empty)
+        partStart = argEnd
+        partEnd = part(partStart)
+        argEnd = interpolationArg(partEnd)
+      }
+      if (partEnd == length) {
+        parts += partString(partStart, partEnd)
+        Success((parts.result(), args.result()), new CharSequenceReader(expr, length))
+      } else
+        Failure("end of input expected", new CharSequenceReader(expr, partEnd))
+    }
+
+    private def partString(start: Int, end: Int): String =
+      expr.substring(start, end).replace("$$", "$")
+
+    private def is(i: Int, c: Char): Boolean =
+      i < length && expr.charAt(i) == c
+
+    private def skip(i: Int)(pred: Char => Boolean): Int = {
+      var j = i
+      while (j < length && pred(expr.charAt(j))) {
+        j += 1
+      }
+      j
+    }
+
+    // one or two quotes not followed by another one
+    private def shortQuotes(i: Int): Int = {
+      val end = skip(i)(_ == '"')
+      if (end > i && end - i <= 2) end else -1
+    }
+
+    // ScalaParsingCommons.multilineInterpolationChars
+    private def part(i: Int): Int = {
+      var j = i
+      while (j < length) {
+        val c = expr.charAt(j)
+        if (c == '"') {
+          val end = shortQuotes(j)
+          if (end < 0) return j
+          j = end
+        } else if (c == '$') {
+          if (!is(j + 1, '$')) return j
+          j += 2
+        } else if (isWhitespace(c) || !isControl(c)) j += 1
+        else return j
+      }
+      j
+    }
+
+    // ScalaParsingCommons.quotedInterpolationChars
+    private def quotedInterpolationChars(i: Int): Int = {
+      var j = i
+      while (j < length) {
+        val c = expr.charAt(j)
+        if (c == '$') {
+          if (!is(j + 1, '$')) return j
+          j += 2
+        } else if (c != '"' && !isControl(c)) j += 1
+        else return j
+      }
+      j
+    }
+
+    // ScalaParsingCommons.multilineChars
+    private def multilineChars(i: Int): Int = {
+      var j = i
+      while (j < length) {
+        val c = expr.charAt(j)
+        if (c == '"') {
+          val end = shortQuotes(j)
+          if (end < 0) return j
+          j = end
+        } else if (!isControl(c)) j += 1
+        else return j
+      }
+      j
+    }
+
+    private def multilineEnd(i: Int): Int = {
+      val end = skip(i)(_ == '"')
+      if (end - i >= 3) math.min(end, i + 5) else -1
+    }
+
+    private def interpolationArg(i: Int): Int =
+      if (!is(i, '$')) -1
+      else {
+        val end = plainIdent(i + 1)
+        if (end >= 0) end else enclosed(i + 1, '{', '}')
+      }
+
+    private def plainIdent(i: Int): Int =
+      if (i < length && Chars.isIdentifierStart(expr.charAt(i)))
+        skip(i + 1)(c => isIdPart(c) || c == '_')
+      else -1
+
+    private def ident(i: Int): Int =
+      if (i < length && Chars.isIdentifierStart(expr.charAt(i))) {
+        var j = skip(i + 1)(isIdPart)
+        var continue = true
+        while (continue) {
+          val underscoresEnd = skip(j)(_ == '_')
+          val idPartsEnd = skip(underscoresEnd)(isIdPart)
+          if (underscoresEnd > j && idPartsEnd > underscoresEnd) j = idPartsEnd
+          else continue = false
+        }
+        val underscoresEnd = skip(j)(_ == '_')
+        if (underscoresEnd > j) skip(underscoresEnd)(Chars.isOperatorPart) else j
+      } else -1
+
+    private def enclosed(i: Int, open: Char, close: Char): Int =
+      if (!is(i, open)) -1
+      else {
+        val end = scalaExpr(i + 1)
+        if (is(end, close)) end + 1 else -1
+      }
+
+    // ScalaParsingCommons.expr
+    private def scalaExpr(i: Int): Int = {
+      var j = i
+      var end = token(j)
+      while (end >= 0) {
+        j = end
+        end = token(j)
+      }
+      j
+    }
+
+    /**
+     * Alternatives of `ScalaParsingCommons.expr` that may start with given character, tried in the same order.
+     */
+    private def token(i: Int): Int =
+      if (i >= length) -1
+      else expr.charAt(i) match {
+        case c if isWhitespace(c) => skip(i + 1)(isWhitespace)
+        case '{' => enclosed(i, '{', '}')
+        case '[' => enclosed(i, '[', ']')
+        case '(' => enclosed(i, '(', ')')
+        case '.' | ',' | ';' => i + 1
+        case '"' =>
+          val end = multilineString(i)
+          if (end >= 0) end else stringLiteral(i)
+        case '\'' =>
+          val end = charLiteral(i)
+          if (end >= 0) end else symbolLiteral(i)
+        case c if isDigit(c) => number(i)
+        case '`' => btident(i)
+        case c if Chars.isIdentifierStart(c) =>
+          val identEnd = ident(i)
+          val end = multilineInterpolation(identEnd)
+          if (end >= 0) end
+          else {
+            val end = stringInterpolation(identEnd)
+            if (end >= 0) end else identEnd
+          }
+        case c if Chars.isOperatorPart(c) => skip(i + 1)(Chars.isOperatorPart)
+        case _ => -1
+      }
+
+    private def multilineInterpolation(identEnd: Int): Int =
+      if (!expr.startsWith("\"\"\"", identEnd)) -1
+      else {
+        var partEnd = part(identEnd + 3)
+        var argEnd = interpolationArg(partEnd)
+        while (argEnd >= 0) {
+          partEnd = part(argEnd)
+          argEnd = interpolationArg(partEnd)
+        }
+        multilineEnd(partEnd)
+      }
+
+    private def multilineString(i: Int): Int =
+      if (!expr.startsWith("\"\"\"", i)) -1
+      else multilineEnd(multilineChars(i + 3))
+
+    private def stringInterpolation(identEnd: Int): Int =
+      if (!is(identEnd, '"')) -1
+      else {
+        var partEnd = quotedInterpolationChars(identEnd + 1)
+        var argEnd = interpolationArg(partEnd)
+        while (argEnd >= 0) {
+          partEnd = quotedInterpolationChars(argEnd)
+          argEnd = interpolationArg(partEnd)
+        }
+        if (is(partEnd, '"')) partEnd + 1 else -1
+      }
+
+    private def stringLiteral(i: Int): Int =
+      if (!is(i, '"')) -1
+      else {
+        var j = i + 1
+        var continue = true
+        while (continue && j < length) {
+          val c = expr.charAt(j)
+          if (c != '"' && c != '\\' && !isControl(c)) j += 1
+          else {
+            val end = escape(j)
+            if (end >= 0) j = end else continue = false
+          }
+        }
+        if (is(j, '"')) j + 1 else -1
+      }
+
+    private def escape(i: Int): Int =
+      if (!is(i, '\\') || i + 1 >= length) -1
+      else if ("\\'\"bfnrt".indexOf(expr.charAt(i + 1)) >= 0) i + 2
+      else if (expr.charAt(i + 1) == 'u' && i + 5 < length && (i + 2 until i + 6).forall(j => isHexDigit(expr.charAt(j))))
+        i + 6
+      else -1
+
+    private def charLiteral(i: Int): Int =
+      if (!is(i, '\'')) -1
+      else {
+        val bodyEnd =
+          if (expr.startsWith(CharLiteralBody, i + 1)) i + 1 + CharLiteralBody.length
+          else escape(i + 1)
+        if (bodyEnd >= 0 && is(bodyEnd, '\'')) bodyEnd + 1 else -1
+      }
+
+    private def symbolLiteral(i: Int): Int =
+      if (!is(i, '\'')) -1 else ident(i + 1)
+
+    // numbers starting with a dot are never scanned - the dot is always taken as a delimiter first
+    private def number(i: Int): Int = {
+      val intEnd = skip(i)(isDigit)
+      if (is(intEnd, '.')) skip(intEnd + 1)(isDigit) else intEnd
+    }
+
+    private def btident(i: Int): Int =
+      if (!is(i, '`')) -1
+      else {
+        val end = skip(i + 1)(c => c != '`' && !isControl(c))
+        if (end > i + 1 && is(end, '`')) end + 1 else -1
+      }
+  }
 }
@@ -1,8 +1,12 @@
 package com.avsystem.scex.symboldsl
 
+import java.util.concurrent.ConcurrentHashMap
+
+import com.avsystem.scex.util.CacheImplicits._
+import com.avsystem.scex.util.CommonUtils.callable
 import com.avsystem.scex.util.MacroUtils
+import com.google.common.cache.{Cache, CacheBuilder, LoadingCache}
 
-import scala.collection.immutable.{SortedSet, TreeSet}
 import scala.reflect.api.Universe
 
 /**
@@ -23,21 +27,82 @@ trait SymbolInfoList[T] {
       case (signature, infos) => (signature, infos.sortBy(_.index))
     }.withDefaultValue(Nil)
 
-  def matchingInfos(u: Universe)(prefixTpe: u.Type, symbol: u.Symbol, implicitConv: Option[u.Tree]): List[InfoWithIndex] = {
-    val macroUtils = MacroUtils(u)
-    import macroUtils._
+  /**
+   * Symbol infos resolved in some universe (compiler). Types of symbol infos and member signatures of symbols
+   * are costly to compute, so they are memoized. Symbol infos with the same member signature are grouped by class
+   * of their type, so that only the ones on base classes of prefix type need to be checked with `<:<`.
+   * Indexes reference types and symbols of their universe, so they're held by the universe itself
+   * (see [[SymbolInfoIndexes]]) and never outlive it.
+   */
+  private class UniverseIndex(val universe: Universe) {
+
+    import universe._
+
+    private val macroUtils: MacroUtils {val universe: UniverseIndex.this.universe.type} = MacroUtils(universe)
+
+    private final class TypedInfo(val infoWithIndex: InfoWithIndex, val tpe: Type)
+
+    private val types = new ConcurrentHashMap[TypeInfo, Type]
+    private val signatureIndexes = new ConcurrentHashMap[String, SignatureIndex]
+
+    // member signatures of a symbol and all symbols that it overrides
+    private val signatures: LoadingCache[Symbol, List[String]] = CacheBuilder.newBuilder.weakKeys
+      .build[Symbol, List[String]]((s: Symbol) => macroUtils.withOverrides(s).map(macroUtils.memberSignature))
+
+    def matchingInfos(prefixTpe: Type, symbol: Symbol, implicitConv: Option[Tree]): List[InfoWithIndex] = {
+      val implicitConvPath = implicitConv.map(macroUtils.path)
+      signatures.get(symbol).flatMap { signature =>
+        signatureIndexes.computeIfAbsent(signature, new SignatureIndex(_)).matching(prefixTpe, implicitConvPath)
+      }
+    }
+
+    private def indexClass(tpe: Type): Symbol = tpe.widen.dealias match {
+      case TypeRef(_, sym, _) if sym.isClass => sym
+      case ExistentialType(_, TypeRef(_, sym, _)) if sym.isClass => sym
+      case _ => NoSymbol
+    }
 
-    val signatures: List[String] =
-      withOverrides(symbol).map(memberSignature)
+    private final class SignatureIndex(signature: String) {
+      private val typedInfos = bySignaturesMap(signature).map { iwi =>
+        new TypedInfo(iwi, types.computeIfAbsent(iwi.info.typeInfo, _.typeIn(universe)))
+      }
+      private val (byClass, unindexed) = {
+        val (indexed, unindexed) = typedInfos.partition(ti => indexClass(ti.tpe) != NoSymbol)
+        (indexed.groupBy(ti => indexClass(ti.tpe)), unindexed)
+      }
 
-    val implicitConvPath = implicitConv.map(path)
+      def matching(prefixTpe: Type, implicitConvPath: Option[String]): List[InfoWithIndex] = {
+        val baseClasses = prefixTpe.baseClasses
+        val candidates =
+          if (byClass.isEmpty) unindexed
+          // bottom and erroneous types conform to types which are not their base classes
+          else if (baseClasses.isEmpty || prefixTpe <:< definitions.NullTpe) typedInfos
+          else baseClasses.flatMap(byClass.getOrElse(_, Nil)) ::: unindexed
 
-    signatures.flatMap { signature =>
-      bySignaturesMap(signature).filter { case InfoWithIndex(symbolInfo, _) =>
-        signature == symbolInfo.memberSignature &&
-          prefixTpe <:< symbolInfo.typeInfo.typeIn(u) &&
-          implicitConvPath == symbolInfo.implicitConv
+        candidates.filter { ti =>
+          implicitConvPath == ti.infoWithIndex.info.implicitConv && prefixTpe <:< ti.tpe
+        }.map(_.infoWithIndex).sortBy(_.index)
       }
     }
   }
+
+  def matchingInfos(u: Universe)(prefixTpe: u.Type, symbol: u.Symbol, implicitConv: Option[u.Tree]): List[InfoWithIndex] = {
+    val index = u match {
+      case indexes: SymbolInfoIndexes =>
+        indexes.symbolInfoIndexes.get(this, callable(new UniverseIndex(u))).asInstanceOf[UniverseIndex]
+      case _ => new UniverseIndex(u)
+    }
+    index.matchingInfos(prefixTpe.asInstanceOf[index.universe.Type], symbol.asInstanceOf[index.universe.Symbol],
+      implicitConv.asInstanceOf[Option[index.universe.Tree]])
+  }
+}
+
+/**
+ * Universe (compiler) which holds indexes of [[SymbolInfoList]]s resolved in it, so that they are dropped
+ * together with the compiler (e.g. when it's reset) instead of retaining it for as long as symbol info lists live.
+ */
+trait SymbolInfoIndexes { this: Universe =>
+  // identity based, indexes are created on first use and live as long as this universe
+  private[symboldsl] val symbolInfoIndexes: Cache[SymbolInfoList[_], AnyRef] =
+    CacheBuilder.newBuilder.weakKeys.build[SymbolInfoList[_], AnyRef]
 }
@@ -2,8 +2,11 @@ package com.avsystem.scex
 package util
 
 import java.lang.reflect.{Method, Modifier}
-import java.util.concurrent.Callable
+import java.util.concurrent.{Callable, ExecutionException}
+import com.avsystem.scex.compiler.ScexMetrics
 import com.google.common.base.Predicate
+import com.google.common.cache.Cache
+import com.google.common.util.concurrent.ExecutionError
 
 import scala.annotation.nowarn
 import scala.collection.mutable
@@ -112,6 +115,44 @@ object CommonUtils {
       def call() = expr
     }
 
+  /**
+   * Rethrows the actual exception thrown by value loader of a Guava cache.
+   */
+  def unwrapExecutionException[T](code: => T): T =
+    try code catch {
+      case e: ExecutionException => throw e.getCause
+      case e: ExecutionError => throw e.getCause
+    }
+
+  /**
+   * Wraps loading of a value missing in cache, see [[cached]].
+   */
+  trait CacheLoading {
+    def apply[T](load: => T): T
+  }
+
+  object DirectCacheLoading extends CacheLoading {
+    def apply[T](load: => T): T = load
+  }
+
+  /**
+   * Returns value from given cache, computing it when missing. Hits don't take any locks, but still allocate
+   * the closure of `load` (and whatever the caller allocates for the key). Missing value is computed at most once -
+   * other threads asking for the same key wait for it, while other keys are not blocked. Loading may be wrapped with
+   * `loading`, e.g. to take a lock which must be taken before entering the cache - otherwise a thread holding the lock
+   * could wait for a value being loaded by a thread waiting for the lock.
+   */
+  def cached[K, V](metrics: ScexMetrics, cacheName: String, cache: Cache[K, V], key: K,
+    loading: CacheLoading = DirectCacheLoading)(load: => V): V =
+    cache.getIfPresent(key) match {
+      case null =>
+        metrics.cacheMiss(cacheName)
+        loading(unwrapExecutionException(cache.get(key, callable(load))))
+      case value =>
+        metrics.cacheHit(cacheName)
+        value
+    }
+
   type GFunction[F, T] = com.google.common.base.Function[F, T]
 
   def guavaFun[A, B](f: A => B): GFunction[A, B] =
@@ -140,6 +140,11 @@ abstract class ValidationContext protected extends MacroUtils {
     case Apply(fun, List(arg)) if fun.symbol == safeToString =>
       MultipleMemberAccesses(List(toStringAccess(arg), extractAccess(arg, allowedSelectionPrefix = false)))
 
+    case Apply(fun, List(builder, arg)) if appendToString.contains(fun.symbol) =>
+      MultipleMemberAccesses(List(toStringAccess(arg),
+        extractAccess(builder, allowedSelectionPrefix = false),
+        extractAccess(arg, allowedSelectionPrefix = false)))
+
     // special case for configuration convenience: standard string interpolations also force validation of
     // toString on its arguments
     case Apply(qualifier, args) if standardStringInterpolations contains qualifier.symbol =>
@@ -0,0 +1,72 @@
+package com.avsystem.scex
+package compiler
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{CountDownLatch, ExecutionException, TimeUnit}
+
+import com.avsystem.scex.compiler.ScexCompiler.CompilationFailedException
+import com.avsystem.scex.japi.{DefaultJavaScexCompiler, JavaScexCompiler, ScalaTypeTokens}
+import com.avsystem.scex.util.SimpleContext
+import org.scalatest.funsuite.AnyFunSuite
+
+import scala.util.Try
+
+class AsyncCompilationTest extends AnyFunSuite with CompilationTest {
+
+  private val compilationCount = new AtomicInteger
+  private val compilationStarted = new CountDownLatch(1)
+  private val compilationAllowed = new CountDownLatch(1)
+
+  override protected def createCompiler: JavaScexCompiler =
+    new DefaultJavaScexCompiler(new ScexSettings) {
+      override protected def compileExpression(exprDef: ExpressionDef): Try[RawExpression] = {
+        if (exprDef.expression.contains("blocking")) {
+          compilationCount.incrementAndGet()
+          compilationStarted.countDown()
+          compilationAllowed.await(10, TimeUnit.SECONDS)
+        }
+        super.compileExpression(exprDef)
+      }
+    }
+
+  test("asynchronous compilation") {
+    val future = compiler.getCompiledExpressionAsync[SimpleContext[Unit], Int](
+      createProfile(defaultAcl), "1 + 2", template = false)
+    assert(future.get(60, TimeUnit.SECONDS).apply(SimpleContext(())) == 3)
+  }
+
+  test("asynchronous compilation failure") {
+    val future = compiler.getCompiledExpressionAsync[SimpleContext[Unit], Int](
+      createProfile(defaultAcl), "nonexistent", template = false)
+    val exception = intercept[ExecutionException](future.get(60, TimeUnit.SECONDS))
+    assert(exception.getCause.isInstanceOf[CompilationFailedException])
+  }
+
+  test("cached expression returned without compilation") {
+    val profile = createProfile(defaultAcl)
+    compiler.getCompiledExpression[SimpleContext[Unit], Int](profile, "2 + 3", template = false)
+    val future = compiler.getCompiledExpressionAsync[SimpleContext[Unit], Int](profile, "2 + 3", template = false)
+    assert(future.isDone)
+    assert(future.get.apply(SimpleContext(())) == 5)
+  }
+
+  test("concurrent requests share in-flight compilation") {
+    val profile = createProfile(defaultAcl)
+    def request() = compiler.buildExpression
+      .contextType(ScalaTypeTokens.create[SimpleContext[Unit]])
+      .resultType(classOf[String])
+      .expression(""""blocking"""")
+      .template(false)
+      .profile(profile)
+      .getAsync
+
+    val first = request()
+    assert(compilationStarted.await(10, TimeUnit.SECONDS))
+    val second = request()
+    compilationAllowed.countDown()
+
+    assert(first.get(60, TimeUnit.SECONDS).apply(SimpleContext(())) == "blocking")
+    assert(second.get(60, TimeUnit.SECONDS).apply(SimpleContext(())) == "blocking")
+    assert(compilationCount.get == 1)
+  }
+}
@@ -0,0 +1,97 @@
+package com.avsystem.scex
+package compiler
+
+import java.util.concurrent.{CompletableFuture, CountDownLatch, TimeUnit}
+
+import com.avsystem.commons.misc.TypeString
+import com.avsystem.scex.compiler.ScexCompiler.{CompilationFailedException, CompileError}
+import com.avsystem.scex.japi.DefaultJavaScexCompiler
+import com.avsystem.scex.util.SimpleContext
+import org.scalatest.funsuite.AnyFunSuite
+
+import scala.util.{Failure, Success}
+
+class BatchCompilationTest extends AnyFunSuite with CompilationTest {
+
+  private def compileAll[T: TypeString](profile: ExpressionProfile, exprs: Seq[(String, Boolean)]) =
+    compiler.getCompiledExpressions[SimpleContext[Unit], T](exprs.map { case (expr, template) =>
+      compiler.expressionDef[SimpleContext[Unit], T](profile, expr, template = template)
+    })
+
+  test("batch compilation of valid expressions") {
+    val profile = createProfile(defaultAcl, utils = "val utilValue = 42")
+    val results = compileAll[String](profile, Seq(
+      ("utilValue.toString", false),
+      ("\"a\" + \"b\"", false),
+      ("plain literal", true),
+      ("${utilValue} and ${1 + 2}", true)
+    ))
+    assert(results.map(_.get.apply(SimpleContext(()))) == Seq("42", "ab", "plain literal", "42 and 3"))
+  }
+
+  test("erroneous expression does not affect other expressions in the batch") {
+    val profile = createProfile(defaultAcl)
+    val results = compileAll[Int](profile, Seq(
+      ("1 + 2", false),
+      ("nonexistent + 1", false),
+      ("3 * 4", false),
+      ("\"notAnInt\"", false)
+    ))
+
+    assert(results(0).map(_.apply(SimpleContext(()))) == Success(3))
+    assert(results(2).map(_.apply(SimpleContext(()))) == Success(12))
+    results(1) match {
+      case Failure(CompilationFailedException(_, errors)) =>
+        assert(errors.nonEmpty && errors.forall(_.line.contains("nonexistent")))
+      case other => fail(s"expected compilation failure, got $other")
+    }
+    results(3) match {
+      case Failure(CompilationFailedException(_, errors)) =>
+        assert(errors.nonEmpty && errors.forall(_.line.contains("notAnInt")))
+      case other => fail(s"expected compilation failure, got $other")
+    }
+  }
+
+  test("batch results are cached and shared with single expression compilation") {
+    val profile = createProfile(defaultAcl)
+    val exprDef = compiler.expressionDef[SimpleContext[Unit], Int](profile, "5 + 6", template = false)
+    val Seq(first, second) = compiler.getCompiledExpressions[SimpleContext[Unit], Int](Seq(exprDef, exprDef))
+    assert(first.get.apply(SimpleContext(())) == 11)
+    assert(second.get.apply(SimpleContext(())) == 11)
+    val single = compiler.getCompiledExpression[SimpleContext[Unit], Int](profile, "5 + 6", template = false)
+    assert(single.debugInfo eq first.get.debugInfo)
+  }
+
+  test("batch does not overwrite result of concurrent single compilation") {
+    val singleCompiling = new CountDownLatch(1)
+    val batchCompiled = new CountDownLatch(1)
+    val compiler = new DefaultJavaScexCompiler(new ScexSettings) {
+      // single compilation finishes only after the batch has compiled the same expression
+      override protected def compile(sourceFile: ScexSourceFile): Either[ScexClassLoader, List[CompileError]] = {
+        if (Thread.currentThread.getName == "single-compilation" && sourceFile.isInstanceOf[ExpressionSourceFile]) {
+          singleCompiling.countDown()
+          batchCompiled.await(60, TimeUnit.SECONDS)
+        }
+        super.compile(sourceFile)
+      }
+
+      override protected def compileBatch(sourceFiles: Seq[ScexSourceFile]) = {
+        val result = super.compileBatch(sourceFiles)
+        batchCompiled.countDown()
+        result
+      }
+    }
+    val profile = createProfile(defaultAcl)
+    val exprDef = compiler.expressionDef[SimpleContext[Unit], Int](profile, "7 + 8", template = false)
+    def compileSingle() = compiler.getCompiledExpression[SimpleContext[Unit], Int](profile, "7 + 8", template = false)
+
+    val single = new CompletableFuture[Expression[SimpleContext[Unit], Int]]
+    new Thread(() => single.complete(compileSingle()), "single-compilation").start()
+    assert(singleCompiling.await(60, TimeUnit.SECONDS))
+    val Seq(batch) = compiler.getCompiledExpressions[SimpleContext[Unit], Int](Seq(exprDef))
+
+    assert(batch.get.apply(SimpleContext(())) == 15)
+    assert(batch.get.debugInfo eq single.get(60, TimeUnit.SECONDS).debugInfo)
+    assert(compileSingle().debugInfo eq batch.get.debugInfo)
+  }
+}
@@ -0,0 +1,45 @@
+package com.avsystem.scex
+package compiler
+
+import java.util.concurrent.ForkJoinPool
+
+import com.avsystem.scex.util.SimpleContext
+import org.scalatest.funsuite.AnyFunSuite
+
+class BatchEvaluationTest extends AnyFunSuite with CompilationTest {
+
+  private lazy val profile = createProfile(defaultAcl)
+
+  private val contexts = (0 until 1000).map(SimpleContext(_))
+
+  private def assertResults(results: Array[Int], failures: Array[EvaluationException]): Unit = {
+    assert(failures(0).getCause.isInstanceOf[ArithmeticException])
+    assert(failures.iterator.drop(1).forall(_ == null))
+    assert((1 until contexts.size).forall(i => results(i) == 1000 / i))
+  }
+
+  test("batch evaluation collects failures without interrupting the batch") {
+    val expr = compiler.getCompiledExpression[SimpleContext[Int], Int](profile, "1000 / _root", template = false)
+    val results = new Array[Int](contexts.size)
+    val failures = new Array[EvaluationException](contexts.size)
+    expr.applyAll(contexts, EvaluationSink.intoArrays(results, failures))
+    assertResults(results, failures)
+  }
+
+  test("parallel batch evaluation") {
+    val expr = compiler.getCompiledExpression[SimpleContext[Int], Int](profile, "1000 / _root", template = false)
+    val results = new Array[Int](contexts.size)
+    val failures = new Array[EvaluationException](contexts.size)
+    val pool = new ForkJoinPool(4)
+    try expr.applyAllParallel(contexts, EvaluationSink.intoArrays(results, failures), pool, chunkSize = 64)
+    finally pool.shutdown()
+    assertResults(results, failures)
+  }
+
+  test("batch evaluation of literal template") {
+    val expr = compiler.getCompiledExpression[SimpleContext[Int], String](profile, "literal", template = true)
+    val results = new Array[String](3)
+    expr.applyAll(contexts, 1, 3, EvaluationSink.intoArrays(results, new Array[EvaluationException](3)))
+    assert(results.toSeq == Seq(null, "literal", "literal"))
+  }
+}
@@ -0,0 +1,94 @@
+package com.avsystem.scex.compiler
+
+import java.io.{File, RandomAccessFile}
+import java.nio.file.Files
+
+import org.scalatest.BeforeAndAfter
+import org.scalatest.funsuite.AnyFunSuite
+
+class ClassfilePackTest extends AnyFunSuite with BeforeAndAfter {
+
+  private var dir: File = _
+
+  private def packFile = new File(dir, "test.pack")
+
+  private def openPack() = new ClassfilePack(packFile, new File(dir, "test.lock"))
+
+  private def withPack[T](code: ClassfilePack => T): T = {
+    val pack = openPack()
+    try code(pack) finally pack.close()
+  }
+
+  private def contents(entry: Option[ClassfilePack.Entry]) =
+    entry.map(_.files.map { case (path, content) => (path, new String(content)) })
+
+  before {
+    dir = Files.createTempDirectory("scex-pack").toFile
+  }
+
+  after {
+    dir.listFiles().foreach(_.delete())
+    dir.delete()
+  }
+
+  test("written entries are readable") {
+    withPack { pack =>
+      pack.write("first", "sig", Seq("first/A.class" -> "A".getBytes, "first/B.class" -> "B".getBytes))
+      pack.write("second", "", Seq("second/B.class" -> "B".getBytes))
+      assert(pack.read("first").map(_.signature) == Some("sig"))
+      assert(contents(pack.read("first")) == Some(Seq("first/A.class" -> "A", "first/B.class" -> "B")))
+      assert(contents(pack.read("second")) == Some(Seq("second/B.class" -> "B")))
+      assert(pack.read("third").isEmpty)
+    }
+  }
+
+  test("entries are visible to other instances") {
+    withPack { pack =>
+      withPack { other =>
+        pack.write("entry", "sig", Seq("entry/A.class" -> "old".getBytes))
+        assert(contents(other.read("entry")) == Some(Seq("entry/A.class" -> "old")))
+        other.write("entry", "sig", Seq("entry/A.class" -> "new".getBytes))
+      }
+    }
+    withPack(pack => assert(contents(pack.read("entry")) == Some(Seq("entry/A.class" -> "new"))))
+  }
+
+  test("incomplete trailing entry is ignored and truncated by next write") {
+    withPack(_.write("complete", "sig", Seq("complete/A.class" -> "A".getBytes)))
+    val completeLength = packFile.length
+    withPack(_.write("incomplete", "sig", Seq("incomplete/B.class" -> "B".getBytes)))
+
+    val raf = new RandomAccessFile(packFile, "rw")
+    try raf.setLength(raf.length - 3) finally raf.close()
+
+    withPack { pack =>
+      assert(pack.read("incomplete").isEmpty)
+      assert(contents(pack.read("complete")) == Some(Seq("complete/A.class" -> "A")))
+      pack.write("other", "sig", Seq("other/C.class" -> "C".getBytes))
+    }
+    withPack { pack =>
+      assert(pack.read("incomplete").isEmpty)
+      assert(contents(pack.read("other")) == Some(Seq("other/C.class" -> "C")))
+    }
+    assert(packFile.length > completeLength)
+  }
+
+  test("corrupted entry is not returned") {
+    withPack(_.write("entry", "sig", Seq("entry/A.class" -> "AAAA".getBytes)))
+    val raf = new RandomAccessFile(packFile, "rw")
+    try {
+      raf.seek(raf.length - 10)
+      raf.write('X')
+    } finally raf.close()
+    withPack(pack => assert(pack.read("entry").isEmpty))
+  }
+
+  test("signatures are readable without files") {
+    withPack { pack =>
+      pack.write("entry", "SIGNATURES:\nfoo.bar: Int\nfoo.bar()I\n", Seq("entry/A.class" -> "A".getBytes))
+      assert(pack.signature("entry") == Some("SIGNATURES:\nfoo.bar: Int\nfoo.bar()I\n"))
+      assert(pack.signature("other").isEmpty)
+    }
+    withPack(pack => assert(pack.signature("entry") == Some("SIGNATURES:\nfoo.bar: Int\nfoo.bar()I\n")))
+  }
+}
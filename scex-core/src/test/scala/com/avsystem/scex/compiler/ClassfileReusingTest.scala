@@ -74,6 +74,25 @@ class ClassfileReusingTest extends AnyFunSuite with BeforeAndAfter {
     assert(compiler.sourcesCompiled.size == sourcesCompiled - 1)
   }
 
+  test("classfile pack shared between compilers test") {
+    val expr = "2.toDouble + 3.5.toInt"
+    assert(applyIntExpr(s"($expr).toInt") == 5)
+
+    object otherCompiler
+      extends ScexCompiler
+      with ScexCompilerInterceptor
+      with ScexPresentationCompiler
+      with ClassfileReusingScexCompiler {
+
+      val settings = new ScexSettings
+      settings.classfileDirectory.value = compiler.settings.classfileDirectory.value
+    }
+
+    val cexpr = otherCompiler.getCompiledExpression[SimpleContext[Unit], Int](testProfile, s"($expr).toInt", template = false)
+    assert(cexpr(SimpleContext(())) == 5)
+    assert(!otherCompiler.sourcesCompiled.exists(_.file.name.startsWith(CodeGeneration.ExpressionPkgPrefix)))
+  }
+
   test("recompilation on binary compatibility breach test") {
     import com.avsystem.scex.validation.SymbolValidator._
 
@@ -106,6 +125,45 @@ class ClassfileReusingTest extends AnyFunSuite with BeforeAndAfter {
     assert(cexpr2(SimpleContext(())) == "implicitString2")
   }
 
+  test("signature prevalidation test") {
+    val expr = "(7.toDouble + 1.5.toInt).toInt"
+    assert(applyIntExpr(expr) == 8)
+
+    object otherCompiler
+      extends ScexCompiler
+      with ScexCompilerInterceptor
+      with ScexPresentationCompiler
+      with ClassfileReusingScexCompiler {
+
+      val settings = new ScexSettings
+      settings.classfileDirectory.value = compiler.settings.classfileDirectory.value
+    }
+
+    otherCompiler.prevalidateClassfileCache()
+    val cexpr = otherCompiler.getCompiledExpression[SimpleContext[Unit], Int](testProfile, expr, template = false)
+    assert(cexpr(SimpleContext(())) == 8)
+    assert(!otherCompiler.sourcesCompiled.exists(_.file.name.startsWith(CodeGeneration.ExpressionPkgPrefix)))
+  }
+
+  test("classfile reuse metrics test") {
+    val metrics = new InMemoryScexMetrics
+    compiler.setMetrics(metrics)
+    try {
+      val expr = "(6.toDouble + 2.5.toInt).toInt"
+      assert(applyIntExpr(expr) == 8)
+      assert(metrics.classfilesRecompiledCount(SourceKind.Expression) == 1)
+      assert(metrics.classfilesReusedCount(SourceKind.Expression) == 0)
+
+      compiler.reset()
+      assert(metrics.resetCount == 1)
+      assert(applyIntExpr(expr) == 8)
+      assert(metrics.classfilesRecompiledCount(SourceKind.Expression) == 1)
+      assert(metrics.classfilesReusedCount(SourceKind.Expression) == 1)
+    } finally {
+      compiler.setMetrics(ScexMetrics.NoOp)
+    }
+  }
+
   ignore("recompilation on overloaded method addition") {
     val symbolValidator = SymbolValidator(PredefinedAccessSpecs.basicOperations)
     val expr = "utilMethod(42)"
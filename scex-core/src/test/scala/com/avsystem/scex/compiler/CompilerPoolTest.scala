@@ -0,0 +1,74 @@
+package com.avsystem.scex
+package compiler
+
+import java.util.concurrent.{Callable, CountDownLatch, Executors, TimeUnit}
+
+import com.avsystem.scex.japi.{DefaultJavaScexCompiler, JavaScexCompiler}
+import com.avsystem.scex.util.{NamingThreadFactory, SimpleContext}
+import org.scalatest.funsuite.AnyFunSuite
+
+class CompilerPoolTest extends AnyFunSuite with CompilationTest {
+
+  override protected def createCompiler: JavaScexCompiler = {
+    val settings = new ScexSettings
+    settings.compilerPoolSize.value = 4
+    new DefaultJavaScexCompiler(settings)
+  }
+
+  private val executor = Executors.newFixedThreadPool(8, new NamingThreadFactory("compiler-pool-test"))
+
+  override protected def afterAll(): Unit = {
+    executor.shutdown()
+    executor.awaitTermination(10, TimeUnit.SECONDS)
+    super.afterAll()
+  }
+
+  private def evaluateInParallel(profiles: Seq[ExpressionProfile], count: Int): Seq[Int] = {
+    val futures = (0 until count).map { i =>
+      executor.submit(new Callable[Int] {
+        def call(): Int = compiler.getCompiledExpression[SimpleContext[Unit], Int](
+          profiles(i % profiles.size), s"utilValue + $i", template = false).apply(SimpleContext(()))
+      })
+    }
+    futures.map(_.get(60, TimeUnit.SECONDS))
+  }
+
+  test("parallel compilation with shared utils") {
+    val profile = createProfile(defaultAcl, utils = "val utilValue = 42")
+    assert(evaluateInParallel(Seq(profile), 32) == (0 until 32).map(_ + 42))
+  }
+
+  test("shared sources compiled after pool warm-up are visible to all instances") {
+    val profiles = (0 until 4).map(_ => createProfile(defaultAcl, utils = "val utilValue = 10"))
+    assert(evaluateInParallel(profiles, 32) == (0 until 32).map(_ + 10))
+  }
+
+  test("cached expressions are available while compiler lock is held") {
+    val compiler = new LockHoldingScexCompiler(new ScexSettings)
+    val profile = createProfile(defaultAcl, utils = "val utilValue = 42")
+    def evaluate() = compiler.getCompiledExpression[SimpleContext[Unit], Int](
+      profile, "utilValue + 1", template = false).apply(SimpleContext(()))
+
+    assert(evaluate() == 43)
+    val locked = new CountDownLatch(1)
+    val release = new CountDownLatch(1)
+    executor.submit(new Runnable {
+      def run(): Unit = compiler.holdingLock {
+        locked.countDown()
+        release.await()
+      }
+    })
+    try {
+      locked.await()
+      assert(executor.submit(new Callable[Int] {
+        def call(): Int = evaluate()
+      }).get(10, TimeUnit.SECONDS) == 43)
+    } finally {
+      release.countDown()
+    }
+  }
+}
+
+class LockHoldingScexCompiler(settings: ScexSettings) extends DefaultJavaScexCompiler(settings) {
+  def holdingLock[T](code: => T): T = underLock(code)
+}
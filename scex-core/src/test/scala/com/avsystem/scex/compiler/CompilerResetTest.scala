@@ -0,0 +1,165 @@
+package com.avsystem.scex
+package compiler
+
+import java.lang.ref.WeakReference
+
+import com.avsystem.scex.japi.{DefaultJavaScexCompiler, JavaScexCompiler}
+import com.avsystem.scex.util.SimpleContext
+import org.scalatest.funsuite.AnyFunSuite
+
+class CompilerResetTest extends AnyFunSuite with CompilationTest {
+
+  override protected def createCompiler: JavaScexCompiler = {
+    val settings = new ScexSettings
+    settings.backgroundReset.value = true
+    new DefaultJavaScexCompiler(settings)
+  }
+
+  private def awaitResets(metrics: InMemoryScexMetrics, count: Int): Unit = {
+    val deadline = System.nanoTime + 60L * 1000000000
+    while (metrics.resetCount < count && System.nanoTime < deadline) {
+      Thread.sleep(50)
+    }
+    assert(metrics.resetCount >= count)
+  }
+
+  test("background reset keeps compiled profiles and caches") {
+    val metrics = new InMemoryScexMetrics
+    compiler.setMetrics(metrics)
+    // exactly one reset, so that the assertions below don't race with another one
+    compiler.setResetPolicy(stats => metrics.resetCount == 0 && stats.compilationCount > 3)
+    val profile = createProfile(defaultAcl, utils = "val utilValue = 42")
+    def compile(expr: String) =
+      compiler.getCompiledExpression[SimpleContext[Unit], Int](profile, expr, template = false)
+
+    val first = compile("utilValue + 0")
+    (1 to 4).foreach(i => assert(compile(s"utilValue + $i").apply(SimpleContext(())) == 42 + i))
+    awaitResets(metrics, 1)
+
+    assert(first.apply(SimpleContext(())) == 42)
+    assert(compile("utilValue + 0").debugInfo eq first.debugInfo)
+    assert(compile("utilValue + 10").apply(SimpleContext(())) == 52)
+    assert(metrics.compilationTime(SourceKind.Utils).count == 1)
+
+    val completer = compiler.getCompleter[SimpleContext[Unit], Int](profile, template = false)
+    assert(completer.getScopeCompletion.members.exists(_.name == "utilValue"))
+  }
+
+  test("custom reset policy test") {
+    val metrics = new InMemoryScexMetrics
+    val compiler = new DefaultJavaScexCompiler(new ScexSettings)
+    compiler.setMetrics(metrics)
+    compiler.setResetPolicy(stats => stats.compilationCount >= 2)
+    val profile = createProfile(defaultAcl, utils = "val utilValue = 42")
+
+    assert(compiler.getCompiledExpression[SimpleContext[Unit], Int](profile, "utilValue + 1", template = false)
+      .apply(SimpleContext(())) == 43)
+    assert(metrics.resetCount == 1)
+    assert(compiler.compilerStats.compilationCount == 0)
+  }
+
+  test("compiler stats test") {
+    val compiler = new DefaultJavaScexCompiler(new ScexSettings)
+    assert(compiler.getCompiledExpression[SimpleContext[Unit], Int](createProfile(defaultAcl), "1 + 2", template = false)
+      .apply(SimpleContext(())) == 3)
+    val stats = compiler.compilerStats
+    assert(stats.compilationCount >= 1)
+    assert(stats.symbolCount > 0)
+    assert(stats.classLoaderCount >= 2) // shared and expression's one
+    assert(stats.nanosSinceReset > 0)
+    assert(stats.heapMax > 0)
+  }
+
+  test("reset compiler can be garbage collected") {
+    // symbol infos of profile's validator are indexed in the compiler which validated them
+    val profile = createProfile(defaultAcl)
+    @volatile var firstGlobal: WeakReference[ScexGlobal] = null
+    val compiler = new DefaultJavaScexCompiler(new ScexSettings) {
+      override protected def runCompiler(global: ScexGlobal, sourceFiles: List[ScexSourceFile]): Unit = {
+        if (firstGlobal == null) {
+          firstGlobal = new WeakReference(global)
+        }
+        super.runCompiler(global, sourceFiles)
+      }
+    }
+    def evaluate(expr: String) =
+      compiler.getCompiledExpression[SimpleContext[Unit], Int](profile, expr, template = false).apply(SimpleContext(()))
+
+    assert(evaluate("\"abc\".length") == 3)
+    compiler.reset()
+    assert(evaluate("\"abcd\".length") == 4)
+
+    val deadline = System.nanoTime + 10L * 1000000000
+    while (firstGlobal.get != null && System.nanoTime < deadline) {
+      System.gc()
+      Thread.sleep(50)
+    }
+    assert(firstGlobal.get == null)
+  }
+
+  test("reset between code generation and compilation") {
+    val profile = createProfile(defaultAcl, utils = "val utilValue = 42")
+    // simulates another thread resetting the compiler right after code generation compiled expression utils
+    class ResettingCompiler extends DefaultJavaScexCompiler(new ScexSettings) {
+      @volatile var resetPending = true
+
+      override protected def compileExpressionUtils(utils: NamedSource) = {
+        val result = super.compileExpressionUtils(utils)
+        if (resetPending) {
+          resetPending = false
+          reset()
+        }
+        result
+      }
+    }
+
+    val compiler = new ResettingCompiler
+    def evaluate(expr: String) =
+      compiler.getCompiledExpression[SimpleContext[Unit], Int](profile, expr, template = false).apply(SimpleContext(()))
+    assert(evaluate("utilValue + 1") == 43)
+    assert(!compiler.resetPending)
+    assert(evaluate("utilValue + 1") == 43)
+
+    val batchCompiler = new ResettingCompiler
+    val exprDef = batchCompiler.expressionDef[SimpleContext[Unit], Int](profile, "utilValue + 2", template = false)
+    val Seq(result) = batchCompiler.getCompiledExpressions[SimpleContext[Unit], Int](Seq(exprDef))
+    assert(result.get.apply(SimpleContext(())) == 44)
+    assert(!batchCompiler.resetPending)
+  }
+
+  test("only retained classloaders counted") {
+    def classLoaderCount(generationSize: Int) = {
+      val settings = new ScexSettings
+      settings.expressionGenerationSize.value = generationSize
+      val compiler = new DefaultJavaScexCompiler(settings)
+      val profile = createProfile(defaultAcl)
+      (1 to 3).foreach { i =>
+        compiler.getCompiledExpression[SimpleContext[Unit], Int](profile, s"$i + 1", template = false)
+      }
+      compiler.compilerStats.classLoaderCount
+    }
+
+    assert(classLoaderCount(generationSize = 0) == 4) // shared and one for every expression
+    assert(classLoaderCount(generationSize = 10) == 2) // shared and a single generation
+  }
+
+  test("predefined reset policies test") {
+    import ResetPolicy._
+
+    case class Stats(compilationCount: Int = 0, nanosSinceReset: Long = 0, symbolCount: Int = 0,
+      classLoaderCount: Int = 0, heapUsedAfterGc: Long = 0, heapMax: Long = 1000) extends CompilerStats
+
+    val heapPolicy = HeapUsageAfterGc(0.8, minCompilations = 10)
+    assert(!heapPolicy.shouldReset(Stats(compilationCount = 10, heapUsedAfterGc = 800)))
+    assert(heapPolicy.shouldReset(Stats(compilationCount = 10, heapUsedAfterGc = 900)))
+    assert(!heapPolicy.shouldReset(Stats(compilationCount = 9, heapUsedAfterGc = 900)))
+
+    val timePolicy = AfterTime(java.time.Duration.ofSeconds(1))
+    assert(!timePolicy.shouldReset(Stats(nanosSinceReset = 2000000000L)))
+    assert(timePolicy.shouldReset(Stats(compilationCount = 1, nanosSinceReset = 2000000000L)))
+
+    val combined = AnyOf(AfterSymbolCount(100), AfterClassLoaderCount(10))
+    assert(!combined.shouldReset(Stats(symbolCount = 100, classLoaderCount = 10)))
+    assert(combined.shouldReset(Stats(classLoaderCount = 11)))
+  }
+}
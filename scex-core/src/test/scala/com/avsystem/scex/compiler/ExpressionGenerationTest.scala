@@ -0,0 +1,109 @@
+package com.avsystem.scex
+package compiler
+
+import com.avsystem.scex.compiler.ScexCompiler.CompileError
+import com.avsystem.scex.japi.{DefaultJavaScexCompiler, JavaScexCompiler}
+import com.avsystem.scex.util.{PredefinedAccessSpecs, SimpleContext}
+import org.scalatest.funsuite.AnyFunSuite
+
+import scala.collection.mutable.ListBuffer
+import scala.ref.WeakReference
+
+class ExpressionGenerationTest extends AnyFunSuite with CompilationTest {
+
+  private val classLoaders = new ListBuffer[ClassLoader]
+
+  private def createGenerationalCompiler(cacheSize: Int, tiered: Boolean = false): JavaScexCompiler = {
+    val settings = new ScexSettings
+    settings.expressionGenerationSize.value = 4
+    settings.expressionCacheSize.value = cacheSize
+    settings.tieredCompilation.value = tiered
+    new DefaultJavaScexCompiler(settings) {
+      override protected def compile(sourceFile: ScexSourceFile): Either[ScexClassLoader, List[CompileError]] = {
+        val result = super.compile(sourceFile)
+        if (!sourceFile.shared) {
+          result.left.foreach(classLoader => classLoaders.synchronized(classLoaders += classLoader))
+        }
+        result
+      }
+    }
+  }
+
+  private lazy val profile = createProfile(defaultAcl)
+
+  private def evaluate(compiler: JavaScexCompiler, i: Int): Int =
+    compiler.getCompiledExpression[SimpleContext[Unit], Int](profile, s"$i + 1", template = false)
+      .apply(SimpleContext(()))
+
+  test("expressions share generation classloaders") {
+    classLoaders.clear()
+    val compiler = createGenerationalCompiler(cacheSize = 100)
+    (1 to 5).foreach(i => assert(evaluate(compiler, i) == i + 1))
+
+    assert(classLoaders.size == 5)
+    assert(classLoaders.take(4).forall(_ eq classLoaders.head))
+    assert(classLoaders(4) ne classLoaders.head)
+  }
+
+  test("dropped generation is unloaded after migrating remaining expressions") {
+    classLoaders.clear()
+    val compiler = createGenerationalCompiler(cacheSize = 2)
+    (1 to 4).foreach(i => assert(evaluate(compiler, i) == i + 1))
+    val firstGeneration = new WeakReference(classLoaders.head)
+    classLoaders.clear()
+
+    // evicts third expression, which leaves only one of four expressions of the first generation in cache
+    assert(evaluate(compiler, 5) == 6)
+    assert(classLoaders.size == 1)
+
+    val deadline = System.nanoTime + 30L * 1000000000
+    while (firstGeneration.get.isDefined && System.nanoTime < deadline) {
+      System.gc()
+      Thread.sleep(50)
+    }
+    assert(firstGeneration.get.isEmpty)
+
+    // fourth expression has been migrated, not compiled again
+    assert(evaluate(compiler, 4) == 5)
+    assert(classLoaders.size == 1)
+  }
+
+  test("source compiled again after eviction takes single generation slot") {
+    classLoaders.clear()
+    val compiler = createGenerationalCompiler(cacheSize = 1)
+    Seq(1, 2, 1, 2, 3, 4).foreach(i => assert(evaluate(compiler, i) == i + 1))
+
+    assert(classLoaders.size == 6)
+    assert(classLoaders.forall(_ eq classLoaders.head))
+  }
+
+  test("background compilations of tiered expressions are not packed into generations") {
+    classLoaders.clear()
+    val compiler = createGenerationalCompiler(cacheSize = 100, tiered = true)
+    (1 to 2).foreach(i => assert(evaluate(compiler, i) == i + 1))
+
+    val deadline = System.nanoTime + 60L * 1000000000
+    while (classLoaders.synchronized(classLoaders.size) < 2 && System.nanoTime < deadline) {
+      Thread.sleep(50)
+    }
+    assert(classLoaders.size == 2)
+    assert(classLoaders.head ne classLoaders(1))
+  }
+
+  test("expression compiled right before reset is loaded with shared classes it was compiled against") {
+    import com.avsystem.scex.validation.SymbolValidator._
+
+    val settings = new ScexSettings
+    settings.expressionGenerationSize.value = 4
+    settings.resetAfterCount.value = 1
+    val compiler = new DefaultJavaScexCompiler(settings)
+    val acl = PredefinedAccessSpecs.basicOperations ++ allow {
+      on { jc: JavaRoot =>
+        jc.all.members
+      }
+    }
+    // uses Java getter adapter compiled into the shared classloader which is replaced right after compilation
+    val cexpr = compiler.getCompiledExpression[SimpleContext[JavaRoot], String](createProfile(acl), "property", template = false)
+    assert(cexpr(SimpleContext(new JavaRoot)) == "property")
+  }
+}
@@ -0,0 +1,66 @@
+package com.avsystem.scex
+package compiler
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.avsystem.scex.compiler.ScexCompiler.{CompilationFailedException, CompileError}
+import com.avsystem.scex.japi.{DefaultJavaScexCompiler, JavaScexCompiler}
+import com.avsystem.scex.util.SimpleContext
+
+/**
+ * Runs all template tests with template arguments fused into a single class.
+ */
+class FusedTemplateExpressionsTest extends TemplateExpressionsTest {
+
+  private val expressionCompilations = new AtomicInteger
+
+  override protected def createCompiler: JavaScexCompiler = {
+    val settings = new ScexSettings
+    settings.classfileDirectory.value = "testClassfileCache"
+    settings.fuseTemplateArguments.value = true
+    new DefaultJavaScexCompiler(settings) {
+      override protected def compile(sourceFile: ScexSourceFile): Either[ScexClassLoader, List[CompileError]] = {
+        if (sourceFile.isInstanceOf[ExpressionSourceFile]) {
+          expressionCompilations.incrementAndGet()
+        }
+        super.compile(sourceFile)
+      }
+    }
+  }
+
+  test("all arguments compiled at once") {
+    expressionCompilations.set(0)
+    val template = (1 to 15).map(i => s"$i:$${$i * 2}").mkString("[", ", ", "]")
+    assert((1 to 15).map(i => s"$i:${i * 2}").mkString("[", ", ", "]") == evaluateTemplate[String](template))
+    assert(expressionCompilations.get == 1)
+  }
+
+  test("compilation errors reported for every argument") {
+    val expr = "abc${unknownValue}def\n${1.unknownMember} and ${\"ok\"}"
+    intercept[CompilationFailedException] {
+      compiler.getCompiledExpression[SimpleContext[Unit], String](createProfile(defaultAcl), expr, template = true)
+    }.errors match {
+      case List(CompileError("${unknownValue}", 3, msg1), CompileError("${1.unknownMember}", 5, msg2)) =>
+        assert(msg1 == "not found: value unknownValue")
+        assert(msg2 == "value unknownMember is not a member of Int")
+    }
+  }
+
+  test("member access validated in every argument") {
+    assertMemberAccessForbidden {
+      evaluateTemplate[String]("${1 + 2} and ${System.exit(0)}")
+    }
+  }
+
+  test("batch compilation of fused templates") {
+    val profile = createProfile(defaultAcl, utils = "val utilValue = 42")
+    val results = compiler.getCompiledExpressions[SimpleContext[Unit], String](Seq(
+      "${utilValue} and ${1 + 2}", "${utilValue}", "${utilValue} or ${nonexistent}", "literal"
+    ).map(expr => compiler.expressionDef[SimpleContext[Unit], String](profile, expr, template = true)))
+
+    assert(results(0).get.apply(SimpleContext(())) == "42 and 3")
+    assert(results(1).get.apply(SimpleContext(())) == "42")
+    assert(results(2).failed.get.asInstanceOf[CompilationFailedException].errors.map(_.line) == List("${nonexistent}"))
+    assert(results(3).get.apply(SimpleContext(())) == "literal")
+  }
+}
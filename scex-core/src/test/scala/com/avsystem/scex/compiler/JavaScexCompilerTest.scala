@@ -65,6 +65,34 @@ class JavaScexCompilerTest extends AnyFunSuite with CompilationTest {
     }
   }
 
+  test("expression builder reuse test") {
+    val builder = compiler.buildExpression
+      .contextType(ScalaTypeTokens.create[SimpleContext[Unit]])
+      .resultType(classOf[String])
+      .expression("${1 + 2}")
+      .profile(createProfile(PredefinedAccessSpecs.basicOperations))
+
+    val first = builder.get
+    assert(builder.get.debugInfo eq first.debugInfo)
+    assert(first(SimpleContext(())) == "3")
+
+    // modification of the builder must not reuse previously compiled expression
+    val modified = builder.expression("${3 + 4}").get
+    assert(modified(SimpleContext(())) == "7")
+  }
+
+  test("expression definition equality test") {
+    val profile = createProfile(PredefinedAccessSpecs.basicOperations)
+    def exprDef(expression: String) =
+      compiler.expressionDef[SimpleContext[Unit], String](profile, new String(expression), template = false)
+
+    assert(exprDef("1 + 2") == exprDef("1 + 2"))
+    assert(exprDef("1 + 2").hashCode == exprDef("1 + 2").hashCode)
+    assert(exprDef("1 + 2") != exprDef("1 + 3"))
+    assert(exprDef("1 + 2") != exprDef("1 + 2").copy(template = true)(
+      "1 + 2", exprDef("1 + 2").positionMapping, exprDef("1 + 2").rootObjectClass))
+  }
+
   private def initContextWithTypedVariable(variableName: String, value: Double): SimpleContext[Unit] = {
     val ctx = SimpleContext(())
     ctx.setTypedVariable(variableName, value)
@@ -2,8 +2,13 @@ package com.avsystem.scex
 package compiler
 
 import java.lang.annotation.RetentionPolicy
-import com.avsystem.scex.compiler.ScexCompiler.CompilationFailedException
+import java.util.concurrent.atomic.AtomicInteger
+import java.{lang => jl}
+
+import com.avsystem.commons.misc.TypeString
+import com.avsystem.scex.compiler.ScexCompiler.{CompilationFailedException, CompileError}
 import com.avsystem.scex.compiler.TestUtils.CustomBooleanConversionRoot
+import com.avsystem.scex.japi.{DefaultJavaScexCompiler, JavaScexCompiler}
 import com.avsystem.scex.util.{PredefinedAccessSpecs, SimpleContext}
 import org.scalatest.funsuite.AnyFunSuite
 
@@ -15,6 +20,24 @@ class LiteralExpressionsTest extends AnyFunSuite with CompilationTest {
 
   import com.avsystem.scex.validation.SymbolValidator._
 
+  private val expressionCompilations = new AtomicInteger
+  private val conversionCompilations = new AtomicInteger
+
+  override protected def createCompiler: JavaScexCompiler = {
+    val settings = new ScexSettings
+    settings.classfileDirectory.value = "testClassfileCache"
+    new DefaultJavaScexCompiler(settings) {
+      override protected def compile(sourceFile: ScexSourceFile): Either[ScexClassLoader, List[CompileError]] = {
+        if (sourceFile.isInstanceOf[ExpressionSourceFile]) {
+          expressionCompilations.incrementAndGet()
+        } else if (sourceFile.file.name.startsWith(CodeGeneration.ConversionSupplierPkgPrefix)) {
+          conversionCompilations.incrementAndGet()
+        }
+        super.compile(sourceFile)
+      }
+    }
+  }
+
   test("string literal test") {
     assert("trololo dafuq" == evaluateTemplate[String]("trololo dafuq"))
   }
@@ -109,4 +132,30 @@ class LiteralExpressionsTest extends AnyFunSuite with CompilationTest {
     assert(EnumInside.TheEnum.THIS == evaluateTemplate[EnumInside.TheEnum]("THIS", acl))
   }
 
+  test("literal conversion validated once per type") {
+    val profile = createProfile(defaultAcl)
+    def evaluateInt(expr: String) =
+      compiler.getCompiledExpression[SimpleContext[Unit], Int](profile, expr, template = true).apply(SimpleContext(()))
+
+    expressionCompilations.set(0)
+    assert((1 to 5).map(i => evaluateInt(i.toString)) == (1 to 5))
+    intercept[CompilationFailedException](evaluateInt("dafuq"))
+    assert(expressionCompilations.get == 1)
+  }
+
+  test("standard literal conversions without compilation of conversion") {
+    val profile = createProfile(defaultAcl, header = "")
+    def evaluateLiteral[T: TypeString](expr: String) =
+      compiler.getCompiledExpression[SimpleContext[Unit], T](profile, expr, template = true).apply(SimpleContext(()))
+
+    conversionCompilations.set(0)
+    assert(42 == evaluateLiteral[Int]("42"))
+    assert(jl.Integer.valueOf(42) == evaluateLiteral[jl.Integer]("42"))
+    assert(null == evaluateLiteral[jl.Integer](""))
+    assert('c' == evaluateLiteral[Char]("c"))
+    assert(1.5 == evaluateLiteral[jl.Double]("1.5"))
+    intercept[CompilationFailedException](evaluateLiteral[Long]("dafuq"))
+    assert(conversionCompilations.get == 0)
+  }
+
 }
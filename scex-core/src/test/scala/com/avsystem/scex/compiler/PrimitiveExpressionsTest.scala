@@ -0,0 +1,45 @@
+package com.avsystem.scex
+package compiler
+
+import com.avsystem.scex.japi.ScalaTypeTokens
+import com.avsystem.scex.util.SimpleContext
+import org.scalatest.funsuite.AnyFunSuite
+
+class PrimitiveExpressionsTest extends AnyFunSuite with CompilationTest {
+
+  private lazy val profile = createProfile(defaultAcl)
+
+  private val ctx = SimpleContext(10)
+
+  test("compiled expressions with primitive result type") {
+    val boolExpr = compiler.getCompiledBooleanExpression[SimpleContext[Int]](profile, "_root > 5", template = false)
+    assert(boolExpr.applyBoolean(ctx))
+    assert(boolExpr(ctx))
+    assert(compiler.getCompiledIntExpression[SimpleContext[Int]](profile, "_root * 2", template = false).applyInt(ctx) == 20)
+    assert(compiler.getCompiledLongExpression[SimpleContext[Int]](profile, "_root * 3L", template = false).applyLong(ctx) == 30L)
+    assert(compiler.getCompiledDoubleExpression[SimpleContext[Int]](profile, "_root / 4.0", template = false).applyDouble(ctx) == 2.5)
+  }
+
+  test("primitive expression failure") {
+    val expr = compiler.getCompiledIntExpression[SimpleContext[Int]](profile, "1 / (_root - 10)", template = false)
+    val exception = intercept[EvaluationException](expr.applyInt(ctx))
+    assert(exception.getCause.isInstanceOf[ArithmeticException])
+  }
+
+  test("primitive literal template") {
+    val expr = compiler.getCompiledBooleanExpression[SimpleContext[Int]](profile, "true")
+    assert(expr.applyBoolean(ctx))
+  }
+
+  test("primitive expression from java builder") {
+    val builder = compiler.buildExpression
+      .contextType(ScalaTypeTokens.create[SimpleContext[Unit]])
+      .resultType(classOf[Long])
+      .expression("10L + 1")
+      .template(false)
+      .profile(profile)
+
+    assert(builder.getLong.applyLong(SimpleContext(())) == 11L)
+    intercept[IllegalArgumentException](builder.getBoolean)
+  }
+}
@@ -106,4 +106,33 @@ final class ScexCompilationCachingTest extends AnyFunSuite with CompilationTest
     compileExpression(compiler)
     assert(compilationCount == 2)
   }
+
+  test("Expressions exceeding expression cache weight should be evicted") {
+    val weightedSettings = new ScexSettings
+    weightedSettings.noGetterAdapters.value = true
+    weightedSettings.expressionCacheWeight.value = 1
+    compilationCount = 0
+    val compiler = new DefaultJavaScexCompiler(weightedSettings) {
+      override protected def compile(sourceFile: ScexSourceFile): Either[ScexClassLoader, List[CompileError]] = {
+        compilationCount += 1
+        super.compile(sourceFile)
+      }
+    }
+
+    compileExpression(compiler)
+    assert(compilationCount == 2) // utils + expression value
+    assert(compiler.expressionCacheWeightedSize == 0)
+    compileExpression(compiler)
+    assert(compilationCount == 3) // expression recompiled, utils still cached
+  }
+
+  test("Weighted size of expression cache should account for compiled code") {
+    val compiler = new DefaultJavaScexCompiler(new ScexSettings)
+    assert(compiler.expressionCacheWeightedSize == 0)
+    compileExpression(compiler)
+    val compiledWeight = compiler.expressionCacheWeightedSize
+    assert(compiledWeight > CachingScexCompiler.ClassLoaderOverhead)
+    compileExpression(compiler, expression = """"other value"""")
+    assert(compiler.expressionCacheWeightedSize > compiledWeight)
+  }
 }
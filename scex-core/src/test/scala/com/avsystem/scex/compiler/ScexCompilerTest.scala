@@ -161,6 +161,24 @@ class ScexCompilerTest extends AnyFunSuite with CompilationTest {
     cexpr(SimpleContext(new DerivedJavaRoot))
   }
 
+  test("validation test with entries for different type arguments") {
+    val acl = deny {
+      on { l: ju.List[Int] =>
+        l.size
+      }
+    } ++ allow {
+      on { l: ju.List[String] =>
+        l.size
+      }
+    }
+    val expr = "_root.size"
+    val cexpr = compiler.getCompiledExpression[SimpleContext[ju.ArrayList[String]], Int](createProfile(acl), expr, template = false)
+    assert(0 == cexpr(SimpleContext(new ju.ArrayList[String])))
+    assertMemberAccessForbidden {
+      compiler.getCompiledExpression[SimpleContext[ju.ArrayList[Int]], Int](createProfile(acl), expr, template = false)
+    }
+  }
+
   test("header test") {
     val acl = allow {
       new ju.ArrayList[String]
@@ -0,0 +1,53 @@
+package com.avsystem.scex
+package compiler
+
+import com.avsystem.scex.compiler.CachingScexCompiler.{ExpressionCacheName, UtilsCacheName}
+import com.avsystem.scex.compiler.InMemoryScexMetrics.Histogram
+import com.avsystem.scex.compiler.presentation.CachingScexPresentationCompiler.ErrorsCacheName
+import com.avsystem.scex.util.SimpleContext
+import org.scalatest.funsuite.AnyFunSuite
+
+class ScexMetricsTest extends AnyFunSuite with CompilationTest {
+
+  private val metrics = new InMemoryScexMetrics
+  compiler.setMetrics(metrics)
+
+  test("compilation and cache metrics test") {
+    val profile = createProfile(defaultAcl, utils = "val utilValue = 42")
+    def evaluate() = compiler.getCompiledExpression[SimpleContext[Unit], Int](
+      profile, "utilValue + 1", template = false).apply(SimpleContext(()))
+
+    assert(evaluate() == 43)
+    assert(metrics.compilationTime(SourceKind.Utils).count == 1)
+    assert(metrics.compilationTime(SourceKind.Expression).count == 1)
+    assert(metrics.compilationTime(SourceKind.Expression).totalNanos > 0)
+    assert(metrics.cacheMissCount(ExpressionCacheName) == 1)
+    assert(metrics.cacheHitCount(ExpressionCacheName) == 0)
+    assert(metrics.cacheMissCount(UtilsCacheName) == 1)
+    assert(metrics.globalLockWaitTime.count > 0)
+    assert(metrics.compilerInstanceWaitTime.count == 1)
+
+    assert(evaluate() == 43)
+    assert(metrics.compilationTime(SourceKind.Expression).count == 1)
+    assert(metrics.cacheHitCount(ExpressionCacheName) == 1)
+  }
+
+  test("presentation compiler cache metrics test") {
+    val profile = createProfile(defaultAcl)
+    val completer = compiler.getCompleter[SimpleContext[Unit], Int](profile, template = false)
+    completer.getErrors("1 + 2")
+    completer.getErrors("1 + 2")
+    assert(metrics.cacheMissCount(ErrorsCacheName) == 1)
+    assert(metrics.cacheHitCount(ErrorsCacheName) == 1)
+  }
+
+  test("histogram test") {
+    val histogram = new Histogram
+    Seq(0L, 1L, 3L, 100L, 1000L).foreach(histogram.record)
+    assert(histogram.count == 5)
+    assert(histogram.totalNanos == 1104)
+    assert(histogram.bucketCounts.take(3) == Seq(1, 1, 1))
+    assert(histogram.percentileUpperBound(0.5) == 4)
+    assert(histogram.percentileUpperBound(1.0) == 1024)
+  }
+}
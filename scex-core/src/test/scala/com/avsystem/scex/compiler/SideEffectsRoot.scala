@@ -0,0 +1,18 @@
+package com.avsystem.scex
+package compiler
+
+import scala.collection.mutable.ListBuffer
+
+class SideEffectsRoot {
+  val log = new ListBuffer[String]
+
+  def record(name: String): Int = {
+    log += name
+    log.size
+  }
+
+  def fail(name: String): Int = {
+    log += name
+    throw new IllegalStateException(name)
+  }
+}
@@ -53,6 +53,23 @@ class TemplateExpressionsTest extends AnyFunSuite with CompilationTest {
     assert(" null" == evaluateTemplate[String](" ${null}"))
   }
 
+  test("single argument with one-sided surroundings test") {
+    assert("5 apples" == evaluateTemplate[String]("${15/3} apples"))
+    assert("apples: null" == evaluateTemplate[String]("apples: ${null}"))
+  }
+
+  test("repeated evaluation of multiple-argument template test") {
+    val cexpr = compiler.getCompiledExpression[SimpleContext[Unit], String](
+      createProfile(defaultAcl), "${\"abc\" + \"def\"}-${1 + 1}-${null}", template = true)
+    (1 to 3).foreach(_ => assert("abcdef-2-null" == cexpr.apply(SimpleContext(()))))
+  }
+
+  test("template compiled as a whole test") {
+    // CharSequence is not recognized as String supertype, so template is not split into separate arguments
+    assert("a2b c true 2.5 7 null" ==
+      evaluateTemplate[CharSequence]("a${1 + 1}b ${'c'} ${true} ${2.5} ${7L} ${null}").toString)
+  }
+
   test("custom splicer test") {
     val acl = allow {
       on { fsr: FancySplicedRoot =>
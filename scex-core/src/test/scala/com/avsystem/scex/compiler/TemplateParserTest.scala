@@ -1,7 +1,7 @@
 package com.avsystem.scex.compiler
 
 import com.avsystem.scex.compiler.xmlfriendly.XmlFriendlyTranslator
-import com.avsystem.scex.parsing.TemplateParser
+import com.avsystem.scex.parsing.{CombinatorTemplateParser, TemplateParser}
 import com.google.common.io.ByteStreams
 import org.scalatest.funsuite.AnyFunSuite
 
@@ -49,4 +49,20 @@ class TemplateParserTest extends AnyFunSuite {
 
     assert(parse(tpl) == (List("", "a\na$b\nb", ""), List("""${""}""", """${""}""")))
   }
+
+  test("same results as combinator parser") {
+    val templates = List(
+      "", "$", "$$$", "${", "${}", "$_a_b", "$a_+", "${a}}", "${{}", "abc\u0001${x}",
+      "${x + \"}\"}", "${s\"$x${y}\"}", "${\"\"\"a\"\"b\"\"\"\"}", "${'a'}", "${'sym}", "${`bt`(1.5e3)}",
+      "${a\\b}", "${\"\\u00e9\\n\"}", "\"\"\"${x}", "a\n\tb${[(x, y); z]}c"
+    )
+    templates.foreach { tpl =>
+      (TemplateParser.parseTemplate(tpl), CombinatorTemplateParser.parseTemplate(tpl)) match {
+        case (TemplateParser.Success(result, _), CombinatorTemplateParser.Success(expected, _)) =>
+          assert(result == expected, tpl)
+        case (result, expected) =>
+          assert(!result.successful && !expected.successful, tpl)
+      }
+    }
+  }
 }
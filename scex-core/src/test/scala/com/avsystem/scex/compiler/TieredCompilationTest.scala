@@ -0,0 +1,160 @@
+package com.avsystem.scex
+package compiler
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{CountDownLatch, ThreadPoolExecutor, TimeUnit}
+
+import com.avsystem.scex.compiler.ScexCompiler.{CompilationFailedException, CompileError}
+import com.avsystem.scex.japi.{DefaultJavaScexCompiler, JavaScexCompiler}
+import com.avsystem.scex.util.{PredefinedAccessSpecs, SimpleContext}
+import com.avsystem.scex.validation.SymbolValidator._
+import org.scalatest.funsuite.AnyFunSuite
+
+import scala.util.{Success, Try}
+
+class TieredCompilationTest extends AnyFunSuite with CompilationTest {
+
+  private val compilationAllowed = new CountDownLatch(1)
+  private val foregroundCompilations = new AtomicInteger
+
+  override protected def createCompiler: JavaScexCompiler = {
+    val settings = new ScexSettings
+    settings.tieredCompilation.value = true
+    new DefaultJavaScexCompiler(settings) {
+      // background compilation is held until the test allows it, so expressions must be evaluated by the interpreter
+      override protected def compile(sourceFile: ScexSourceFile): Either[ScexClassLoader, List[CompileError]] = {
+        if (Thread.currentThread.getName.startsWith("scex-compilation")) {
+          compilationAllowed.await(60, TimeUnit.SECONDS)
+        } else if (sourceFile.isInstanceOf[ExpressionSourceFile]) {
+          foregroundCompilations.incrementAndGet()
+        }
+        super.compile(sourceFile)
+      }
+    }
+  }
+
+  test("arithmetic and conditionals") {
+    assert(evaluate[Int]("1 + 5 * 250 + 42") == 1293)
+    assert(evaluate[String]("if (2 * 3 > 5) \"yes\" else \"no\"") == "yes")
+    assert(evaluate[Long]("(7: Int) * 3L") == 21L)
+    assert(foregroundCompilations.get == 0)
+  }
+
+  test("utils access") {
+    val cexpr = compiler.getCompiledExpression[SimpleContext[Unit], Int](
+      createProfile(defaultAcl, utils = "val utilValue = 42"), "utilValue * 2", template = false)
+    assert(cexpr(SimpleContext(())) == 84)
+    assert(foregroundCompilations.get == 0)
+  }
+
+  test("root access with java getter adapters") {
+    val acl = PredefinedAccessSpecs.basicOperations ++ allow {
+      on { jc: JavaRoot =>
+        jc.all.members
+      }
+    }
+    val expr = "property + extraordinary + extraordinarilyBoxed + field + twice(42)"
+    val cexpr = compiler.getCompiledExpression[SimpleContext[JavaRoot], String](createProfile(acl), expr, template = false)
+    assert(cexpr(SimpleContext(new JavaRoot)) == "propertytruefalse42.4284")
+    assert(foregroundCompilations.get == 0)
+  }
+
+  test("implicit context") {
+    val acl = allow {
+      on { car: ContextAccessingRoot =>
+        car.gimmeVar(_: String)(_: ExpressionContext[ContextAccessingRoot, String])
+      }
+    }
+    val cexpr = compiler.getCompiledExpression[SimpleContext[ContextAccessingRoot], String](
+      createProfile(acl), "gimmeVar(\"tehname\")", template = false)
+    val ctx = SimpleContext(new ContextAccessingRoot)
+    ctx.setVariable("tehname", "tehvalue")
+    assert(cexpr(ctx) == "tehvalue")
+    assert(foregroundCompilations.get == 0)
+  }
+
+  test("compilation errors are reported immediately") {
+    intercept[CompilationFailedException](evaluate[Int]("nonexistent + 1"))
+    assertMemberAccessForbidden(evaluate[Unit]("System.exit(0)"))
+  }
+
+  private val sideEffectsAcl = PredefinedAccessSpecs.basicOperations ++ allow {
+    on { r: SideEffectsRoot =>
+      r.all.introduced.members
+    }
+  }
+
+  private def evaluateWithSideEffects(expr: String, header: String): (Try[Int], List[String]) = {
+    foregroundCompilations.set(0)
+    val cexpr = compiler.getCompiledExpression[SimpleContext[SideEffectsRoot], Int](
+      createProfile(sideEffectsAcl), expr, template = false, header = header)
+    val root = new SideEffectsRoot
+    val result = Try(cexpr(SimpleContext(root)))
+    (result, root.log.toList)
+  }
+
+  test("block values evaluated in order") {
+    val (result, log) = evaluateWithSideEffects("record(\"second\") * 10 + first", "val first = record(\"first\")")
+    assert(result == Success(21))
+    assert(log == List("first", "second"))
+    assert(foregroundCompilations.get == 0)
+  }
+
+  test("unused block values evaluated") {
+    val (result, log) = evaluateWithSideEffects("record(\"used\")", "val unused = record(\"unused\")")
+    assert(result == Success(2))
+    assert(log == List("unused", "used"))
+    assert(foregroundCompilations.get == 0)
+
+    val (failedResult, failedLog) = evaluateWithSideEffects("record(\"used\")", "val unused = fail(\"unused\")")
+    assert(failedResult.failed.get.getCause.isInstanceOf[IllegalStateException])
+    assert(failedLog == List("unused"))
+    assert(foregroundCompilations.get == 0)
+  }
+
+  test("side effects not repeated by compiled expression") {
+    compilationAllowed.countDown()
+    val (result, log) = evaluateWithSideEffects("record(\"once\") / (2 - 2)", "")
+    assert(result.failed.get.getCause.isInstanceOf[ArithmeticException])
+    assert(log == List("once"))
+  }
+
+  test("evaluation errors reported as evaluation exceptions") {
+    val cexpr = compiler.getCompiledExpression[SimpleContext[Unit], Int](createProfile(defaultAcl), "1 / (2 - 2)", template = false)
+    compilationAllowed.countDown()
+    val exception = intercept[EvaluationException](cexpr(SimpleContext(())))
+    assert(exception.getCause.isInstanceOf[ArithmeticException])
+  }
+
+  test("failed background compilation is not kept as interpreted expression") {
+    val settings = new ScexSettings
+    settings.tieredCompilation.value = true
+    val failingCompiler = new DefaultJavaScexCompiler(settings) {
+      override protected def compile(sourceFile: ScexSourceFile): Either[ScexClassLoader, List[CompileError]] =
+        if (Thread.currentThread.getName.startsWith("scex-compilation") && sourceFile.isInstanceOf[ExpressionSourceFile])
+          Right(List(CompileError("", 1, "simulated failure")))
+        else super.compile(sourceFile)
+    }
+    val profile = createProfile(defaultAcl)
+    def lookup() = Try(failingCompiler.getCompiledExpression[SimpleContext[Unit], Int](profile, "2 + 2", template = false))
+
+    assert(lookup().get.apply(SimpleContext(())) == 4)
+    val deadline = System.nanoTime + TimeUnit.SECONDS.toNanos(60)
+    while (lookup().isSuccess && System.nanoTime < deadline) {
+      Thread.sleep(10)
+    }
+    assert(lookup().failed.get.isInstanceOf[CompilationFailedException])
+  }
+
+  test("literal conversion validation does not start background compilation") {
+    val settings = new ScexSettings
+    settings.tieredCompilation.value = true
+    class TaskCountingCompiler extends DefaultJavaScexCompiler(settings) {
+      def backgroundTasks: Long = compilationExecutor.asInstanceOf[ThreadPoolExecutor].getTaskCount
+    }
+    val countingCompiler = new TaskCountingCompiler
+    val cexpr = countingCompiler.getCompiledExpression[SimpleContext[Unit], Int](createProfile(defaultAcl), "42", template = true)
+    assert(cexpr(SimpleContext(())) == 42)
+    assert(countingCompiler.backgroundTasks == 0)
+  }
+}
@@ -0,0 +1,55 @@
+package com.avsystem.scex.compiler.presentation
+
+import java.util.concurrent.{Executors, TimeUnit}
+
+import com.avsystem.scex.compiler.{CompilationTest, InMemoryScexMetrics, LockHoldingScexCompiler, ScexSettings}
+import com.avsystem.scex.japi.JavaScexCompiler
+import com.avsystem.scex.util.SimpleContext
+import org.scalatest.funsuite.AnyFunSuite
+
+class PresentationCompilerPoolTest extends AnyFunSuite with CompilationTest {
+
+  override protected def createCompiler: JavaScexCompiler = {
+    val settings = new ScexSettings
+    settings.presentationCompilerPoolSize.value = 3
+    new LockHoldingScexCompiler(settings)
+  }
+
+  private def lockHoldingCompiler = compiler.asInstanceOf[LockHoldingScexCompiler]
+
+  test("concurrent error checking on multiple presentation compilers") {
+    val metrics = new InMemoryScexMetrics
+    compiler.setMetrics(metrics)
+    val profiles = Vector.fill(4)(createProfile(defaultAcl, utils = "val utilValue = 42"))
+    val executor = Executors.newFixedThreadPool(8)
+    try {
+      val results = (0 until 40).map { i =>
+        val profile = profiles(i % profiles.size)
+        executor.submit { () =>
+          val completer = compiler.getCompleter[SimpleContext[Unit], Int](profile, template = false)
+          (completer.getErrors(s"utilValue + $i").isEmpty, completer.getErrors(s"utilValu + $i").nonEmpty)
+        }
+      }
+      results.foreach(r => assert(r.get(60, TimeUnit.SECONDS) == (true, true)))
+    } finally {
+      executor.shutdown()
+    }
+    assert(metrics.presentationInstanceWaitTime.count == 80)
+  }
+
+  test("error checking does not wait for compiler lock") {
+    val profile = createProfile(defaultAcl)
+    val completer = compiler.getCompleter[SimpleContext[Unit], Int](profile, template = false)
+    assert(completer.getErrors("1 + 1").isEmpty)
+
+    val executor = Executors.newSingleThreadExecutor()
+    try {
+      lockHoldingCompiler.holdingLock {
+        val errors = executor.submit(() => completer.getErrors("1 + true"))
+        assert(errors.get(60, TimeUnit.SECONDS).nonEmpty)
+      }
+    } finally {
+      executor.shutdown()
+    }
+  }
+}
@@ -132,6 +132,25 @@ class ScopeAndTypeCompletionTest extends AnyFunSuite with CompilationTest with C
     ))
   }
 
+  test("type completion in successive expressions and after loading another profile") {
+    val completer = compiler.getCompleter[SimpleContext[JavaRootWithGetter], Any](profile, template = false)
+    def completionNames(expr: String) =
+      completer.getTypeCompletion(expr, expr.length - 1).members.map(_.name).sorted
+
+    val rootMembers = Vector("getName", "name")
+    assert(completionNames("_root.") == rootMembers)
+    assert(completionNames("_root.n") == rootMembers)
+    assert(completionNames("_root.name.") == Vector("charAt", "empty", "isEmpty", "toInt"))
+
+    // loads shared sources of another profile into presentation compiler
+    val otherProfile = createProfile(acl, utils = "val otherStuff = 42")
+    assert(compiler.getCompleter[SimpleContext[Unit], Any](otherProfile, template = false)
+      .getErrors("otherStuff").isEmpty)
+
+    assert(completionNames("_root.") == rootMembers)
+    assert(completionNames("_root.name.") == Vector("charAt", "empty", "isEmpty", "toInt"))
+  }
+
   test("literal as Any") {
     val completer = compiler.getCompleter[SimpleContext[Unit], Any](profile, template = true)
     val errors = completer.getErrors("123")
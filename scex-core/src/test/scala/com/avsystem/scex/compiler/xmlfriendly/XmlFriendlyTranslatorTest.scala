@@ -80,4 +80,18 @@ class XmlFriendlyTranslatorTest extends AnyFunSuite {
         |b$$$$cc""".stripMargin
     assert(res == translate("${''}a\na$b\nb$$cc", template = true).result)
   }
+
+  test("malformed block test") {
+    val original = "a lt ${b and {c}"
+    val pstr = translate(original, template = true)
+    assert("a lt ${b and {c}" == pstr.result)
+    assert(original.indices.map(pstr.positionMapping.apply) == original.indices)
+    assert("{x &&  y} &&  {z" == translate("{x and y} and {z").result)
+  }
+
+  test("trailing newline test") {
+    assert("a &&  b ¬" == translate("a and b ¬\n").result)
+    assert("a &&  b ¬" == translate("a and b ¬\r\n").result)
+    assert("a and b ¬\n\n" == translate("a and b ¬\n\n").result)
+  }
 }
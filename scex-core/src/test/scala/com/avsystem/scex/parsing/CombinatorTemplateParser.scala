@@ -0,0 +1,18 @@
+package com.avsystem.scex.parsing
+
+/**
+ * Original, parser combinator based implementation of [[TemplateParser]], kept as a reference for tests
+ * and benchmarks.
+ */
+private[scex] object CombinatorTemplateParser extends ScalaParsingCommons with PositionTrackingParsers {
+
+  private val part = multilineInterpolationChars ^^ (_.replace("$$", "$"))
+  private val arg = new ParserWithPos(interpolationArg)
+
+  private val templateParser = rep(part ~ arg) ~ part ^^ {
+    case pairs ~ lastPart => (pairs.map(_._1) :+ lastPart, pairs.map(_._2))
+  }
+
+  def parseTemplate(expr: String): ParseResult[(List[String], List[PString])] =
+    parseAll(templateParser, expr)
+}
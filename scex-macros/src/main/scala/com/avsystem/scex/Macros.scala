@@ -21,10 +21,14 @@ class Macros(val c: blackbox.Context) extends MacroUtils {
   lazy val ScexLiteralTpe = getType(tq"$ScexPkg.util.Literal")
   lazy val ScexLiteralObj = ScexLiteralTpe.typeSymbol.companion
   lazy val TemplateInterpolationsObj = q"$ScexPkg.compiler.TemplateInterpolations"
+  lazy val PrimitiveTpes = List(typeOf[Boolean], typeOf[Char], typeOf[Byte], typeOf[Short], typeOf[Int],
+    typeOf[Long], typeOf[Float], typeOf[Double])
   lazy val ExpressionContextCls = getType(tq"$ScexPkg.ExpressionContext[_,_]").typeSymbol
 
   val CommonsPkg = q"_root_.com.avsystem.commons"
 
+  final val EstimatedArgLength = 16
+
   def templateInterpolation_impl[T: c.WeakTypeTag, A](args: c.Expr[A]*): c.Tree = {
     val Apply(_, List(Apply(_, parts))) = c.prefix.tree
     val argTrees = args.iterator.map(_.tree).toList
@@ -48,19 +52,39 @@ class Macros(val c: blackbox.Context) extends MacroUtils {
     lazy val soleArgTree = args.head.tree
     lazy val soleArgImplicitConv = c.inferImplicitView(soleArgTree, soleArgTree.tpe, resultType)
 
-    def reifyConcatenation(parts: List[Tree], args: List[Tree]) = {
-      val convertedArgs = args.map { arg =>
-        val splicerTpe = getType(tq"$TemplateInterpolationsObj.Splicer[${arg.tpe}]")
-        c.inferImplicitValue(splicerTpe) match {
-          case EmptyTree => q"$TemplateInterpolationsObj.safeToString($arg)"
-          case tree => q"$tree.toString($arg)"
-        }
-      }
+    def isPrimitive(tpe: Type) =
+      PrimitiveTpes.exists(_ =:= tpe.widen)
 
-      if (singleArgNoParts) convertedArgs.head
-      else q"$TemplateInterpolationsObj.concat(..$parts)(..$convertedArgs)"
+    def splicer(arg: Tree) =
+      c.inferImplicitValue(getType(tq"$TemplateInterpolationsObj.Splicer[${arg.tpe}]"))
+
+    def convertedArg(arg: Tree) = splicer(arg) match {
+      case EmptyTree => q"$TemplateInterpolationsObj.safeToString($arg)"
+      case tree => q"$tree.toString($arg)"
     }
 
+    // straight-line appends into a presized builder, primitives (without custom splicers) are appended unboxed
+    def reifyConcatenation(parts: List[Tree], args: List[Tree]) =
+      if (singleArgNoParts) convertedArg(args.head)
+      else {
+        val capacity = parts.foldLeft(0) {
+          case (acc, Literal(Constant(str: String))) => acc + str.length
+          case (acc, _) => acc
+        } + args.size * EstimatedArgLength
+
+        def appendPart(sb: Tree, part: Tree) =
+          if (isEmptyStringLiteral(part)) sb else q"$TemplateInterpolationsObj.append($sb, $part)"
+
+        def appendArg(sb: Tree, arg: Tree) =
+          if (isPrimitive(arg.tpe) && splicer(arg) == EmptyTree) q"$TemplateInterpolationsObj.appendToString($sb, $arg)"
+          else q"$TemplateInterpolationsObj.append($sb, ${convertedArg(arg)})"
+
+        val builder = (args zip parts.tail).foldLeft(appendPart(q"$TemplateInterpolationsObj.newBuilder($capacity)", parts.head)) {
+          case (sb, (arg, part)) => appendPart(appendArg(sb, arg), part)
+        }
+        q"$TemplateInterpolationsObj.result($builder)"
+      }
+
     lazy val Literal(Constant(literalString: String)) = parts.head
     lazy val literalTree = q"$ScexLiteralObj($literalString)"
     lazy val literalConv = c.inferImplicitView(literalTree, ScexLiteralTpe, resultType)
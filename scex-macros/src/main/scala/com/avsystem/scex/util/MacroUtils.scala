@@ -32,6 +32,7 @@ trait MacroUtils extends CrossMacroUtils {
   lazy val stringAddPlus: Symbol = typeOf[any2stringadd[_]].member(TermName("+").encodedName)
   lazy val stringConcat: Symbol = typeOf[String].member(TermName("+").encodedName)
   lazy val safeToString: Symbol = templateInterpolationsType.companion.decl(TermName("safeToString"))
+  lazy val appendToString: Set[Symbol] = symAlternatives(templateInterpolationsType.companion.decl(TermName("appendToString"))).toSet
   lazy val splicerToString: Symbol = splicerType.decl(TermName("toString"))
   lazy val stringTpe: Type = typeOf[String]
   lazy val booleanTpe: Type = typeOf[Boolean]